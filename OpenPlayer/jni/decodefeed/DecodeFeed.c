@@ -8,27 +8,89 @@
 
 #include "DecodeFeed.h"
 
+__thread int threadLogs = 0;
+
+//Looks up the DecodeFeed class and methods and allocates the shared buffers, returns 0 on failure
+int initDecodeFeedSession(JNIEnv *env, DecodeFeedSession *feed, int writeBufferLength) {
+    memset(feed, 0, sizeof(DecodeFeedSession));
+
+    jclass feedClass = (*env)->FindClass(env, "com/audionowdigital/android/openplayer/DecodeFeed");
+    if (feedClass == NULL) return 0;
+    //Keep the class loaded for as long as the method ids are in use
+    feed->feedClass = (*env)->NewGlobalRef(env, feedClass);
+    (*env)->DeleteLocalRef(env, feedClass);
+
+    // type signatures are presented here: http://docs.oracle.com/javase/7/docs/technotes/guides/jni/spec/types.html
+    //Find our java method id's we'll be calling
+    feed->readDataMethodId = (*env)->GetMethodID(env, feed->feedClass, "onReadEncodedData", "(Ljava/nio/ByteBuffer;II)I");
+    feed->writePCMDataMethodId = (*env)->GetMethodID(env, feed->feedClass, "onWritePCMData", "([SII)V");
+    feed->getPCMBufferMethodId = (*env)->GetMethodID(env, feed->feedClass, "getPCMBuffer", "()Ljava/nio/ByteBuffer;");
+    feed->writePCMBufferMethodId = (*env)->GetMethodID(env, feed->feedClass, "onWritePCMBuffer", "(II)V");
+    feed->getPCMBatchSizeMethodId = (*env)->GetMethodID(env, feed->feedClass, "getPCMBatchSize", "()I");
+    feed->getMaxChannelsMethodId = (*env)->GetMethodID(env, feed->feedClass, "getMaxChannels", "()I");
+    feed->isDitheredMethodId = (*env)->GetMethodID(env, feed->feedClass, "isDithered", "()Z");
+    feed->isFloatOutputMethodId = (*env)->GetMethodID(env, feed->feedClass, "isFloatOutput", "()Z");
+    feed->writePCMFloatDataMethodId = (*env)->GetMethodID(env, feed->feedClass, "onWritePCMFloatData", "([FII)V");
+    feed->startMethodId = (*env)->GetMethodID(env, feed->feedClass, "onStart", "(JJLjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
+    feed->startReadingHeaderMethodId = (*env)->GetMethodID(env, feed->feedClass, "onStartReadingHeader", "()V");
+    feed->stopMethodId = (*env)->GetMethodID(env, feed->feedClass, "onStop", "()V");
+    if (feed->readDataMethodId == NULL || feed->writePCMDataMethodId == NULL || feed->getPCMBufferMethodId == NULL ||
+    		feed->writePCMBufferMethodId == NULL || feed->getPCMBatchSizeMethodId == NULL || feed->getMaxChannelsMethodId == NULL ||
+    		feed->isDitheredMethodId == NULL || feed->isFloatOutputMethodId == NULL ||
+    		feed->writePCMFloatDataMethodId == NULL || feed->startMethodId == NULL ||
+    		feed->startReadingHeaderMethodId == NULL || feed->stopMethodId == NULL) {
+    	releaseDecodeFeedSession(env, feed);
+    	return 0;
+    }
+
+    //Create our write buffer
+    jshortArray writeBuffer = (*env)->NewShortArray(env, writeBufferLength);
+    if (writeBuffer == NULL) {
+    	releaseDecodeFeedSession(env, feed);
+    	return 0;
+    }
+    feed->writeBuffer = (*env)->NewGlobalRef(env, writeBuffer);
+    (*env)->DeleteLocalRef(env, writeBuffer);
+    feed->writeBufferLength = writeBufferLength;
+    return 1;
+}
+
+//Drops the global references held by the session
+void releaseDecodeFeedSession(JNIEnv *env, DecodeFeedSession *feed) {
+    if (feed->readBuffer != NULL) (*env)->DeleteGlobalRef(env, feed->readBuffer);
+    if (feed->writeBuffer != NULL) (*env)->DeleteGlobalRef(env, feed->writeBuffer);
+    if (feed->writeFloatBuffer != NULL) (*env)->DeleteGlobalRef(env, feed->writeFloatBuffer);
+    if (feed->feedClass != NULL) (*env)->DeleteGlobalRef(env, feed->feedClass);
+    memset(feed, 0, sizeof(DecodeFeedSession));
+}
+
 //Stops the vorbis data feed
 void onStop(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* stopMethodId) {
     (*env)->CallVoidMethod(env, (*javaDecodeFeedObj), (*stopMethodId));
 }
 
-//Reads raw vorbis data from the jni callback
-int onReadEncodedData(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* readVorbisDataMethodId, char* buffer, jbyteArray* jByteArrayReadBuffer) {
-    //Call the read method
-    int readByteCount = (*env)->CallIntMethod(env, (*javaDecodeFeedObj), (*readVorbisDataMethodId), (*jByteArrayReadBuffer), BUFFER_LENGTH);
-
-    //Don't bother copying, just return 0
-    if(readByteCount == 0) {
-        return 0;
+//Reads raw encoded data from the jni callback straight into the ogg sync buffer, no intermediate copy
+int onReadEncodedData(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* readDataMethodId, ogg_sync_state *oy, jobject* directBuffer) {
+    //Make room in the sync buffer, this may move its storage around
+    char *buffer = ogg_sync_buffer(oy, BUFFER_LENGTH);
+    if (buffer == NULL) return 0;
+
+    //Map a direct ByteBuffer over the whole storage, only renewed when libogg reallocates it.
+    //The sync buffer outlives a single track, so the mapping is held as a global reference
+    if ((*directBuffer) == NULL || (*env)->GetDirectBufferAddress(env, (*directBuffer)) != oy->data ||
+    		(*env)->GetDirectBufferCapacity(env, (*directBuffer)) != oy->storage) {
+    	if ((*directBuffer) != NULL) (*env)->DeleteGlobalRef(env, (*directBuffer));
+    	jobject mapped = (*env)->NewDirectByteBuffer(env, oy->data, oy->storage);
+    	(*directBuffer) = (mapped != NULL) ? (*env)->NewGlobalRef(env, mapped) : NULL;
+    	if (mapped != NULL) (*env)->DeleteLocalRef(env, mapped);
+    	if ((*directBuffer) == NULL) return 0;
     }
 
-    //Gets the bytes from the java array and copies them to the vorbis buffer
-    jbyte* readBytes = (*env)->GetByteArrayElements(env, (*jByteArrayReadBuffer), NULL);
-    memcpy(buffer, readBytes, readByteCount);
+    //Call the read method, Java writes at the current fill position
+    int readByteCount = (*env)->CallIntMethod(env, (*javaDecodeFeedObj), (*readDataMethodId), (*directBuffer), (jint)((unsigned char *)buffer - oy->data), BUFFER_LENGTH);
+    if (readByteCount < 0) readByteCount = 0;
 
-    //Clean up memory and return how much data was read
-    (*env)->ReleaseByteArrayElements(env, (*jByteArrayReadBuffer), readBytes, JNI_ABORT);
+    ogg_sync_wrote(oy, readByteCount);
 
     //Return the amount actually read
     return readByteCount;
@@ -49,6 +111,49 @@ void onWritePCMData(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* writePCM
     (*env)->CallVoidMethod(env, (*javaDecodeFeedObj), (*writePCMDataMethodId), (*jShortArrayWriteBuffer), bytes, -1);
 }
 
+//Writes the float pcm data to the Java layer
+void onWritePCMFloatData(JNIEnv *env, jobject* javaDecodeFeedObj, DecodeFeedSession *feed, float* buffer, int samples) {
+
+    //No data to read, just exit
+    if(samples == 0) return;
+
+    //Most feeds take 16 bit samples, the float array is only made for the first one that does not
+    if (feed->writeFloatBuffer == NULL) {
+    	jfloatArray writeBuffer = (*env)->NewFloatArray(env, feed->writeBufferLength);
+    	if (writeBuffer == NULL) return;
+    	feed->writeFloatBuffer = (*env)->NewGlobalRef(env, writeBuffer);
+    	(*env)->DeleteLocalRef(env, writeBuffer);
+    	if (feed->writeFloatBuffer == NULL) return;
+    }
+
+    (*env)->SetFloatArrayRegion(env, feed->writeFloatBuffer, 0, samples, (jfloat *)buffer);
+
+    (*env)->CallVoidMethod(env, (*javaDecodeFeedObj), feed->writePCMFloatDataMethodId, feed->writeFloatBuffer, samples, -1);
+}
+
+//Asks the Java layer for the direct buffer to decode PCM into, returns NULL to keep using the array path
+void* getPCMBuffer(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* getPCMBufferMethodId, int sampleSize, int* capacity) {
+    (*capacity) = 0;
+    jobject byteBuffer = (*env)->CallObjectMethod(env, (*javaDecodeFeedObj), (*getPCMBufferMethodId));
+    if (byteBuffer == NULL) return NULL;
+
+    void* pcm = (*env)->GetDirectBufferAddress(env, byteBuffer);
+    if (pcm != NULL) (*capacity) = (int)((*env)->GetDirectBufferCapacity(env, byteBuffer) / sampleSize);
+
+    //Java keeps the buffer alive, we only need the address
+    (*env)->DeleteLocalRef(env, byteBuffer);
+    return pcm;
+}
+
+//Tells the Java layer the pcm data is ready at the start of its direct buffer, no copy needed
+void onWritePCMBuffer(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* writePCMBufferMethodId, int samples) {
+
+    //No data to read, just exit
+    if(samples == 0) return;
+
+    (*env)->CallVoidMethod(env, (*javaDecodeFeedObj), (*writePCMBufferMethodId), samples, -1);
+}
+
 //Starts the decode feed with the necessary information about sample rates, channels, etc about the stream
 void onStart(JNIEnv *env, jobject *javaDecodeFeedObj, jmethodID* startMethodId, long sampleRate, long channels, char* vendor,
 		char *title, char *artist, char *album, char *date, char *track) {
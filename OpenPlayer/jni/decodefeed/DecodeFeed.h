@@ -10,22 +10,52 @@
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include <android/log.h>
 #include <ogg/ogg.h>
 #include "Log.h"
 
 #define BUFFER_LENGTH 4096
 
+//Java side class, method ids and buffers, resolved once per native decoder session and reused by every track it plays
+typedef struct {
+	jclass feedClass;
+	jmethodID readDataMethodId, writePCMDataMethodId, getPCMBufferMethodId, writePCMBufferMethodId, getPCMBatchSizeMethodId,
+		getMaxChannelsMethodId, isDitheredMethodId, isFloatOutputMethodId, writePCMFloatDataMethodId, startMethodId,
+		startReadingHeaderMethodId, stopMethodId;
+	jshortArray writeBuffer; // the short[] for the copying pcm path
+	jfloatArray writeFloatBuffer; // the float[] for the copying pcm path in float output, made on first use
+	int writeBufferLength;
+	jobject readBuffer; // direct ByteBuffer over the ogg sync buffer, see onReadEncodedData
+	int debug; // the native logs are on while this session decodes, see Log.h
+} DecodeFeedSession;
+
+//Looks up the DecodeFeed class and methods and allocates the shared buffers, returns 0 on failure.
+//writeBufferLength is the most samples the decoder hands over at once through onWritePCMData
+int initDecodeFeedSession(JNIEnv *env, DecodeFeedSession *feed, int writeBufferLength);
+
+//Drops the global references held by the session
+void releaseDecodeFeedSession(JNIEnv *env, DecodeFeedSession *feed);
 
 //Stops the vorbis data feed
 void onStop(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* stopMethodId);
 
-//Reads raw vorbis data from the jni callback
-int onReadEncodedData(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* readVorbisDataMethodId, char* buffer, jbyteArray* jByteArrayReadBuffer);
+//Reads raw encoded data from the jni callback straight into the ogg sync buffer, through a direct ByteBuffer over its storage
+int onReadEncodedData(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* readDataMethodId, ogg_sync_state *oy, jobject* directBuffer);
 
 //Writes the pcm data to the Java layer
 void onWritePCMData(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* writePCMDataMethodId, ogg_int16_t* buffer, int bytes, jshortArray* jShortArrayWriteBuffer);
 
+//Writes the float pcm data to the Java layer
+void onWritePCMFloatData(JNIEnv *env, jobject* javaDecodeFeedObj, DecodeFeedSession *feed, float* buffer, int samples);
+
+//Asks the Java layer for the direct buffer to decode PCM into, returns NULL to keep using the array path.
+//capacity is set in samples of sampleSize bytes
+void* getPCMBuffer(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* getPCMBufferMethodId, int sampleSize, int* capacity);
+
+//Tells the Java layer the pcm data is ready at the start of its direct buffer, no copy needed
+void onWritePCMBuffer(JNIEnv *env, jobject* javaDecodeFeedObj, jmethodID* writePCMBufferMethodId, int samples);
+
 //Starts the decode feed with the necessary information about sample rates, channels, etc about the stream
 void onStart(JNIEnv *env, jobject *javaDecodeFeedObj, jmethodID* startMethodId, long sampleRate, long channels, char* vendor,
 		char *title, char *artist, char *album, char *date, char *track);
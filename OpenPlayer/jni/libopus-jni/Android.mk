@@ -17,6 +17,6 @@ LOCAL_SHARED_LIBRARIES := libogg libopus
 LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -llog
 
 # force including the opus_header for the opus_header_parse code
-LOCAL_SRC_FILES := ../decodefeed/DecodeFeed.c ../libopus/src/opus_header.c OpusHeader.c org_xiph_opus_decoderjni_OpusDecoder.c
+LOCAL_SRC_FILES := ../decodefeed/DecodeFeed.c ../libopus/src/opus_header.c OpusHeader.c OpusDownmix.c org_xiph_opus_decoderjni_OpusDecoder.c
 
 include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,71 @@
+/*
+ * OpusDownmix.c
+ * Mixes the surround layouts of channel mapping family 1 down to stereo, for outputs that only take stereo.
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+#include "OpusDownmix.h"
+
+#define C  0.7071f /* -3dB */
+#define R  0.5f    /* -6dB, rear center into both sides */
+
+// left and right gains of each channel, in the Vorbis order of each layout (RFC 7845 5.1.1.2)
+static const float LAYOUT_GAINS[MAX_CHANNELS - 2][MAX_CHANNELS][2] = {
+	/* 3.0: L C R */
+	{ {1, 0}, {C, C}, {0, 1} },
+	/* quadraphonic: FL FR RL RR */
+	{ {1, 0}, {0, 1}, {C, 0}, {0, C} },
+	/* 5.0: FL C FR RL RR */
+	{ {1, 0}, {C, C}, {0, 1}, {C, 0}, {0, C} },
+	/* 5.1: FL C FR RL RR LFE */
+	{ {1, 0}, {C, C}, {0, 1}, {C, 0}, {0, C}, {C, C} },
+	/* 6.1: FL C FR SL SR RC LFE */
+	{ {1, 0}, {C, C}, {0, 1}, {C, 0}, {0, C}, {R, R}, {C, C} },
+	/* 7.1: FL C FR SL SR RL RR LFE */
+	{ {1, 0}, {C, C}, {0, 1}, {C, 0}, {0, C}, {C, 0}, {0, C}, {C, C} }
+};
+
+void downmix_weights(int channels, ogg_int16_t *weights) {
+	const float (*gains)[2] = LAYOUT_GAINS[channels - 3];
+	float sum = 0;
+	int i;
+	// both sides sum the same, normalize by one of them
+	for (i = 0; i < channels; i++) sum += gains[i][0];
+	for (i = 0; i < channels; i++) {
+		weights[2 * i] = (ogg_int16_t) (gains[i][0] / sum * 16384);
+		weights[2 * i + 1] = (ogg_int16_t) (gains[i][1] / sum * 16384);
+	}
+}
+
+void downmix_stereo(const ogg_int16_t *in, int channels, int frames, const ogg_int16_t *weights, ogg_int16_t *out) {
+	int i, c;
+	for (i = 0; i < frames; i++) {
+		ogg_int32_t left = 0, right = 0;
+		for (c = 0; c < channels; c++) {
+			left += in[c] * weights[2 * c];
+			right += in[c] * weights[2 * c + 1];
+		}
+		out[0] = (ogg_int16_t) (left >> 14);
+		out[1] = (ogg_int16_t) (right >> 14);
+		in += channels;
+		out += 2;
+	}
+}
+
+void downmix_stereo_float(const float *in, int channels, int frames, const ogg_int16_t *weights, float *out) {
+	int i, c;
+	for (i = 0; i < frames; i++) {
+		float left = 0, right = 0;
+		for (c = 0; c < channels; c++) {
+			left += in[c] * weights[2 * c];
+			right += in[c] * weights[2 * c + 1];
+		}
+		out[0] = left * (1.f / 16384);
+		out[1] = right * (1.f / 16384);
+		in += channels;
+		out += 2;
+	}
+}
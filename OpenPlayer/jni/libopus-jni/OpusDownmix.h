@@ -0,0 +1,23 @@
+/*
+ * OpusDownmix.h
+ * Mixes the surround layouts of channel mapping family 1 down to stereo, for outputs that only take stereo.
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+#include <ogg/ogg.h>
+
+// the widest family 1 layout, 7.1
+#define MAX_CHANNELS 8
+
+// fills weights with the left and right Q14 weights of each channel, for 3 to MAX_CHANNELS channels in Vorbis order.
+// Each side sums to at most 1.0, so the mix can not clip
+void downmix_weights(int channels, ogg_int16_t *weights);
+
+// mixes frames of interleaved channels in Vorbis order down to interleaved stereo, in and out must not overlap
+void downmix_stereo(const ogg_int16_t *in, int channels, int frames, const ogg_int16_t *weights, ogg_int16_t *out);
+
+// the same mix for float samples, with the same weights
+void downmix_stereo_float(const float *in, int channels, int frames, const ogg_int16_t *weights, float *out);
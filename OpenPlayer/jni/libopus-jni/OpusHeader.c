@@ -18,6 +18,7 @@
 // for some reason the opus_header.c code doesn't get included, so here it is...
 
 edit: added to Android.mk
+*/
 
 /* Header contents:
   - "OpusHead" (64 bits)
@@ -272,37 +273,59 @@ const int wav_permute_matrix[8][8] =
 };
 */
 
- OpusDecoder *process_header(ogg_packet *op, int *rate, int *channels, int *preskip, int quiet) {
-	int err;
-	OpusDecoder *st;
-	OpusHeader header;
+ OpusMSDecoder *process_header(ogg_packet *op, int *rate, OpusHeader *header, int max_channels, int quiet, OpusMSDecoder *st,
+		int st_rate, const OpusHeader *st_header) {
+	int err, i;
 
-	if (opus_header_parse(op->packet, op->bytes, &header) == 0) {
+	if (opus_header_parse(op->packet, op->bytes, header) == 0) {
 		LOGE(LOG_TAG, "Cannot parse header");
+		if (st) opus_multistream_decoder_destroy(st);
 		return NULL;
 	} else
-		LOGD(LOG_TAG, "Header parsed: ch:%d samplerate:%d", header.channels, header.input_sample_rate);
-	*channels = header.channels;
+		LOGD(LOG_TAG, "Header parsed: ch:%d samplerate:%d mapping:%d streams:%d coupled:%d", header->channels, header->input_sample_rate,
+				header->channel_mapping, header->nb_streams, header->nb_coupled);
+
+	// family 0 is mono or stereo, family 1 the Vorbis layouts up to 7.1. Other families have no known speaker positions
+	if (header->channel_mapping > 1 || header->channels > 8) {
+		LOGE(LOG_TAG, "Unsupported channel mapping %d for %d channels", header->channel_mapping, header->channels);
+		if (st) opus_multistream_decoder_destroy(st);
+		return NULL;
+	}
+	if (header->channels > 2 && header->channels <= max_channels) {
+		// reorder through the mapping table instead of the samples: WAV channel wav_permute_matrix[i] is Vorbis channel i
+		unsigned char vorbis_map[8];
+		memcpy(vorbis_map, header->stream_map, header->channels);
+		for (i = 0; i < header->channels; i++) header->stream_map[wav_permute_matrix[header->channels - 1][i]] = vorbis_map[i];
+	}
 
 	// validate sample rate: If the rate is unspecified we decode to 48000
-	if (!*rate) *rate = header.input_sample_rate;
+	if (!*rate) *rate = header->input_sample_rate;
 	if (*rate == 0) *rate = 48000;
 	if (*rate < 8000 || *rate > 192000) {
 		LOGE(LOG_TAG, "Invalid input_rate %d, defaulting to 48000 instead.",*rate);
 		*rate = 48000;
 	}
 
-	*preskip = header.preskip;
-	st = opus_decoder_create(*rate, header.channels, &err); // was 48000
-
-	//st->bandwidth;
-
-	//LOGE(LOG_TAG, "ST: bandwidth:%d framesize:%d",st->bandwidth,st->frame_size);
-
-
+	if (st && st_rate == *rate && st_header->channels == header->channels && st_header->nb_streams == header->nb_streams &&
+			st_header->nb_coupled == header->nb_coupled && memcmp(st_header->stream_map, header->stream_map, header->channels) == 0) {
+		// same layout as the previous stream: a reset is much cheaper than a new decoder
+		err = opus_multistream_decoder_ctl(st, OPUS_RESET_STATE);
+		// the gain survives a reset, so always set it
+		if (err == OPUS_OK) err = opus_multistream_decoder_ctl(st, OPUS_SET_GAIN((int) header->gain));
+		if (err != OPUS_OK) {
+			LOGE(LOG_TAG, "Cannot reset decoder: %s", opus_strerror(err));
+			opus_multistream_decoder_destroy(st);
+			return NULL;
+		}
+		return st;
+	}
+	if (st) opus_multistream_decoder_destroy(st);
+	// a single stream is a multistream of one, so mono and stereo take the same path
+	st = opus_multistream_decoder_create(*rate, header->channels, header->nb_streams, header->nb_coupled, header->stream_map, &err);
 
 	if (err != OPUS_OK)	{
 		LOGE(LOG_TAG, "Cannot create decoder: %s", opus_strerror(err));
+		if (st) opus_multistream_decoder_destroy(st);
 		return NULL;
 	}
 	if (!st) {
@@ -310,24 +333,25 @@ const int wav_permute_matrix[8][8] =
 		return NULL;
 	}
 
-	if (header.gain != 0) {
+	if (header->gain != 0) {
 		/*Gain API added in a newer libopus version, if we don't have it
 		 we apply the gain ourselves. We also add in a user provided
 		 manual gain at the same time.*/
-		int gainadj = (int) header.gain;
-		err = opus_decoder_ctl(st, OPUS_SET_GAIN(gainadj));
+		int gainadj = (int) header->gain;
+		err = opus_multistream_decoder_ctl(st, OPUS_SET_GAIN(gainadj));
 		if (err != OPUS_OK) {
 		  LOGE(LOG_TAG, "Error setting gain: %s", opus_strerror(err));
+		  opus_multistream_decoder_destroy(st);
 		  return NULL;
 		}
 	}
 
 	if (!quiet) {
-		LOGE(LOG_TAG, "Decoding to %d Hz (%d channels)", *rate, *channels);
-		if (header.version != 1) LOGE(LOG_TAG, "Header v%d",header.version);
+		LOGE(LOG_TAG, "Decoding to %d Hz (%d channels)", *rate, header->channels);
+		if (header->version != 1) LOGE(LOG_TAG, "Header v%d",header->version);
 
-		if (header.gain != 0) {
-			LOGE(LOG_TAG, "Playback gain: %f dB\n", header.gain / 256.);
+		if (header->gain != 0) {
+			LOGE(LOG_TAG, "Playback gain: %f dB\n", header->gain / 256.);
 		}
 	}
 
@@ -408,4 +432,5 @@ int process_comments(char *c, int length, char *vendor, char *title,  char *arti
 	    c += len;
 	    length -= len;
 	  }
+	return err;
 }
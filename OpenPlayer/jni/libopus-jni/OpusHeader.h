@@ -14,6 +14,7 @@
 #include <string.h>
 #include <ogg/ogg.h>
 #include <opus.h>
+#include <opus_multistream.h>
 #include <opus_header.h>
 #include <android/log.h>
 #include "../decodefeed/Log.h"
@@ -30,5 +31,9 @@
 #define min(a,b) ({ __typeof__ (a) _a = (a); __typeof__ (b) _b = (b); _a < _b ? _a : _b; })
 
 
- OpusDecoder *process_header(ogg_packet *op, int *rate, int *channels, int *preskip, int quiet);
+// st, when not NULL, is the decoder of the previous stream (created for st_rate and st_header): it is reset and returned
+// if the layout matches, else destroyed. Surround layouts up to max_channels are decoded in WAV order, wider ones stay
+// in Vorbis order for the downmix. header gets the layout the decoder was created for
+OpusMSDecoder *process_header(ogg_packet *op, int *rate, OpusHeader *header, int max_channels, int quiet, OpusMSDecoder *st,
+		int st_rate, const OpusHeader *st_header);
 int process_comments(char *c, int length, char *vendor, char *title,  char *artist, char *album, char *date, char *track, int maxlen);
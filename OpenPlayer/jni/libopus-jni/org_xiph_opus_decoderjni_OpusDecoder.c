@@ -9,14 +9,30 @@
 
 #include "org_xiph_opus_decoderjni_OpusDecoder.h"
 #include "OpusHeader.h"
+#include "OpusDownmix.h"
 #include "../decodefeed/DecodeFeed.h"
 
 #define OPUS_HEADERS 2
 
+/* 120ms at 48000, the longest Opus packet */
+#define MAX_FRAME_SIZE      5760
+
 
 #define COMMENT_MAX_LEN 40
 
-int debug = 0;
+//State kept by a native session between tracks, created by initJni
+typedef struct {
+	DecodeFeedSession feed; /* Java callbacks and buffers */
+	ogg_sync_state oy; /* reset for every track, but keeps its storage */
+	OpusMSDecoder *st; /* decoder of the last stream, reset instead of recreated when the next one has the same layout */
+	int rate; /* the rate st was created for */
+	OpusHeader header; /* the layout st was created for */
+	union {
+		ogg_int16_t s[MAX_FRAME_SIZE * MAX_CHANNELS];
+		float f[MAX_FRAME_SIZE * MAX_CHANNELS];
+	} convbuffer, mixbuffer; /* a frame for the array path, and a frame of all the channels before the stereo downmix */
+	ogg_int16_t weights[MAX_CHANNELS * 2]; /* the downmix weights of the current layout */
+} OpusSession;
 
 JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
   LOGD(LOG_TAG, "onLoad called.");
@@ -25,65 +41,64 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
 
 
 //onStartReadingHeader(env, &javaDecodeFeedObj, &startReadingHeaderMethodId);
-JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_initJni(JNIEnv *env, jclass cls, int debug0) {
-	debug = debug0;
-	LOGI(LOG_TAG, "initJni called, initing methods (opus)");
+JNIEXPORT jlong JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_initJni(JNIEnv *env, jclass cls, int debug0) {
+	OpusSession *session = calloc(1, sizeof(OpusSession));
+	if (session == NULL) return 0;
+	// the class lookup and method ids are done once here, not for every track
+	if (!initDecodeFeedSession(env, &session->feed, MAX_FRAME_SIZE * MAX_CHANNELS)) {
+		free(session);
+		return 0;
+	}
+	ogg_sync_init(&session->oy);
+	session->feed.debug = debug0;
+	return (jlong)(intptr_t)session;
 }
 
+JNIEXPORT void JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_releaseJni(JNIEnv *env, jclass cls, jlong handle) {
+	OpusSession *session = (OpusSession *)(intptr_t)handle;
+	if (session == NULL) return;
+	if (session->st != NULL) opus_multistream_decoder_destroy(session->st);
+	ogg_sync_clear(&session->oy);
+	releaseDecodeFeedSession(env, &session->feed);
+	free(session);
+}
 
 
+JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls, jlong handle, jobject javaDecodeFeedObj) {
+	OpusSession *session = (OpusSession *)(intptr_t)handle;
+	if (session == NULL) return DECODE_ERROR;
+	threadLogs = session->feed.debug;
+	LOGI(LOG_TAG, "startDecoding called, reusing session buffers (opus)");
+	DecodeFeedSession *feed = &session->feed;
+    void *convbuffer = &session->convbuffer;
 
-JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls, jobject javaDecodeFeedObj) {
-	LOGI(LOG_TAG, "startDecoding called, initing buffers (opus)");
-
-	//Create a new java byte array to pass to the opus data feed method
-	jbyteArray jByteArrayReadBuffer = (*env)->NewByteArray(env, BUFFER_LENGTH);
-
-	//Create our write buffer
-	jshortArray jShortArrayWriteBuffer = (*env)->NewShortArray(env, BUFFER_LENGTH*2);
-
-    //-- get Java layer method pointer --//
-	jclass javaDecodeFeedObjClass = (*env)->FindClass(env, "com/audionowdigital/android/openplayer/DecodeFeed");
-
-	// type signatures are presented here: http://docs.oracle.com/javase/7/docs/technotes/guides/jni/spec/types.html
-	//Find our java method id's we'll be calling
-	jmethodID readOpusDataMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onReadEncodedData", "([BI)I");
-	jmethodID writePCMDataMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onWritePCMData", "([SII)V");
-	jmethodID startMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onStart", "(JJLjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
-	jmethodID startReadingHeaderMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onStartReadingHeader", "()V");
-	jmethodID stopMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onStop", "()V");
-	//--
-    ogg_int16_t convbuffer[BUFFER_LENGTH]; /* take 8k out of the data segment, not the stack */
-    int convsize=BUFFER_LENGTH;
+    //Direct buffer owned by the Java side, when available we decode straight into it
+    void *pcmout = NULL;
+    int pcmsize = 0;
+    //Samples accumulated in pcmout, and how many to gather before crossing into Java
+    int pcmfill = 0, pcmbatch = 0;
     
-    ogg_sync_state   oy; /* sync and verify incoming physical bitstream */
+    ogg_sync_state   *oy = &session->oy; /* sync and verify incoming physical bitstream */
     ogg_stream_state os; /* take physical pages, weld into a logical stream of packets */
     ogg_page         og; /* one Ogg bitstream page. Opus packets are inside */
     ogg_packet       op; /* one raw packet of data for decode */
     
 
-    char *buffer;
     int  bytes;
 
     /********** Decode setup ************/
-	/* 20ms at 48000, TODO 120ms */
-	#define MAX_FRAME_SIZE      960
 	#define OPUS_STACK_SIZE     31684 /**/
 
 	/* global data */
 
 	int frame_size =0;
-	OpusDecoder *st = NULL;
-	opus_int64 packet_count;
-	int stream_init = 0;
-	int eos = 0;
 	int channels = 0;
+	int outchannels = 0; /* channels after the downmix, if any */
+	OpusHeader stream_header; /* the header of the current stream */
 	int rate = 0;
 	int preskip = 0;
-	int gran_offset = 0;
-	int has_opus_stream = 0;
-	ogg_int32_t opus_serialno = 0;
-	int proccessing_page = 0;
+	int skip = 0; /* samples still to drop from the start of the stream, its pre-skip at the decoding rate */
+	ogg_int64_t position = -1; /* granule position at the end of the last decoded packet, -1 when unknown after a gap */
 	//
 
 	char vendor[COMMENT_MAX_LEN] = {0};
@@ -94,15 +109,21 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
 	char track[COMMENT_MAX_LEN] = {0};
 
 	//Notify the decode feed we are starting to initialize
-    onStartReadingHeader(env, &javaDecodeFeedObj, &startReadingHeaderMethodId);
+    onStartReadingHeader(env, &javaDecodeFeedObj, &feed->startReadingHeaderMethodId);
 
     //1
-    ogg_sync_init(&oy); /* Now we can read pages */
+    ogg_sync_reset(oy); /* Now we can read pages, drop whatever a stopped track left behind */
 
     int inited = 0, header = OPUS_HEADERS;
 
     int err = SUCCESS;
-    int i;
+
+    //Layouts wider than the feed takes are mixed down to stereo
+    int maxchannels = (*env)->CallIntMethod(env, javaDecodeFeedObj, feed->getMaxChannelsMethodId);
+    if (maxchannels < 2) maxchannels = 2;
+    //Float output, as the decoder works in a float build; a fixed point build converts its samples
+    int floats = (*env)->CallBooleanMethod(env, javaDecodeFeedObj, feed->isFloatOutputMethodId);
+    int sampsize = floats ? sizeof(float) : sizeof(ogg_int16_t);
 
     // start source reading / decoding loop
     while (1) {
@@ -111,10 +132,8 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
     		break;
     	}
 
-        // READ DATA : submit a 4k block to Ogg layer
-        buffer = ogg_sync_buffer(&oy,BUFFER_LENGTH);
-        bytes = onReadEncodedData(env, &javaDecodeFeedObj, &readOpusDataMethodId, buffer, &jByteArrayReadBuffer);
-        ogg_sync_wrote(&oy,bytes);
+        // READ DATA : read a 4k block straight into the Ogg layer
+        bytes = onReadEncodedData(env, &javaDecodeFeedObj, &feed->readDataMethodId, oy, &feed->readBuffer);
 
         // Check available data
         if (bytes == 0) {
@@ -128,7 +147,7 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
         	// exit loop on error
         	if (err != SUCCESS) break;
         	// sync the stream and get a page
-        	int result = ogg_sync_pageout(&oy,&og);
+        	int result = ogg_sync_pageout(oy,&og);
         	// need more data, so go to PREVIOUS loop and read more */
         	if (result == 0) break;
            	// missing or corrupt data at this page position
@@ -137,6 +156,15 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
         		continue;
            	}
            	// we finally have a valid page
+			// a new chained stream may start before the previous one ended, e.g. a truncated file followed by a queued track.
+			// Grouped streams only have their BOS pages before the headers are done, so they don't get here
+			if (inited && header == 0 && ogg_page_bos(&og)) {
+				LOGW(LOG_TAG, "New stream before the end of the previous one.");
+				onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+				pcmfill = 0;
+				ogg_stream_clear(&os);
+				inited = 0;
+			}
 			if (!inited) {
 				ogg_stream_init(&os, ogg_page_serialno(&og));
 				LOGE(LOG_TAG, "inited stream, serial no: %ld header_fill:%d", os.serialno, os.header_fill);
@@ -153,12 +181,27 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
 				result = ogg_stream_packetout(&os,&op);
 
 				if(result == 0) break; // need more data so exit and go read data in PREVIOUS loop
-				if(result < 0) continue; // missing or corrupt data at this page position , drop here or tolerate error?
+				if(result < 0) { // missing or corrupt data at this page position, or a seek: the position is unknown until the next granule
+					position = -1;
+					continue;
+				}
 
 
 				// decode available data
 				if (header == 0) {
-					int ret = opus_decode(st, (unsigned char*) op.packet, op.bytes, convbuffer, MAX_FRAME_SIZE, 0);
+					// the samples of this packet, 2.5 to 120ms in one or several frames. A corrupt packet fails in the decoder
+					int samples = opus_packet_get_nb_samples((unsigned char*) op.packet, op.bytes, rate);
+					if (samples <= 0 || samples > MAX_FRAME_SIZE) samples = MAX_FRAME_SIZE;
+					// a packet that does not fit behind the samples already batched starts the next batch
+					if (pcmout != NULL && pcmfill > 0 && pcmsize - pcmfill < samples * outchannels) {
+						onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+						pcmfill = 0;
+					}
+					// decode into the Java side buffer, behind the samples already batched, if the whole packet fits
+					void *out = (pcmout != NULL && pcmsize - pcmfill >= samples * outchannels) ? (char *) pcmout + pcmfill * sampsize : convbuffer;
+					void *dec = outchannels == channels ? out : (void *) &session->mixbuffer;
+					int ret = floats ? opus_multistream_decode_float(session->st, (unsigned char*) op.packet, op.bytes, dec, samples, 0) :
+							opus_multistream_decode(session->st, (unsigned char*) op.packet, op.bytes, dec, samples, 0);
 
 					/*If the decoder returned less than zero, we have an error.*/
 					if (ret < 0) {
@@ -169,10 +212,39 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
 
 
 
-					frame_size = (ret < convsize?ret : convsize);
+					frame_size = ret;
+
+					if (outchannels != channels) {
+						if (floats) downmix_stereo_float(session->mixbuffer.f, channels, frame_size, session->weights, out);
+						else downmix_stereo(session->mixbuffer.s, channels, frame_size, session->weights, out);
+					}
+
+					// the granule position of the last page ends the stream, the encoder padding after it is dropped
+					if (position >= 0 && ogg_page_eos(&og)) {
+						ogg_int64_t left = (ogg_page_granulepos(&og) - position) * rate / 48000;
+						if (frame_size > left) frame_size = left > 0 ? (int) left : 0;
+					}
+					if (position >= 0) position += (ogg_int64_t) ret * 48000 / rate;
+					// the pre-skip is the encoder delay, nothing to play in it
+					if (skip > 0) {
+						int drop = min(skip, frame_size);
+						skip -= drop;
+						frame_size -= drop;
+						if (drop > 0 && frame_size > 0) memmove(out, (char *) out + drop * outchannels * sampsize, frame_size * outchannels * sampsize);
+					}
 
 
-					onWritePCMData(env, &javaDecodeFeedObj, &writePCMDataMethodId, convbuffer, channels*frame_size, &jShortArrayWriteBuffer);
+					if (out != convbuffer) {
+						pcmfill += outchannels*frame_size;
+						// cross into Java once the batch is complete
+						if (pcmfill >= pcmbatch) {
+							onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+							pcmfill = 0;
+						}
+					} else if (floats)
+						onWritePCMFloatData(env, &javaDecodeFeedObj, feed, convbuffer, outchannels*frame_size);
+					else
+						onWritePCMData(env, &javaDecodeFeedObj, &feed->writePCMDataMethodId, convbuffer, outchannels*frame_size, &feed->writeBuffer);
 
 
 				} // decoding done
@@ -185,8 +257,24 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
 							err = INVALID_HEADER;
 							break;
 						}
-						// prepare opus structures
-						st = process_header(&op, &rate, &channels, &preskip, 0);
+						// prepare opus structures, the session decoder is reset if the layout did not change
+						session->st = process_header(&op, &rate, &stream_header, maxchannels, 0, session->st, session->rate, &session->header);
+						if (session->st == NULL) {
+							err = INVALID_HEADER;
+							break;
+						}
+						session->rate = rate;
+						session->header = stream_header;
+						channels = stream_header.channels;
+						preskip = stream_header.preskip;
+						// granule positions and the pre-skip count 48kHz samples
+						skip = (int) ((ogg_int64_t) preskip * rate / 48000);
+						position = 0;
+						outchannels = channels > maxchannels ? 2 : channels;
+						if (outchannels != channels) {
+							LOGI(LOG_TAG, "Mixing %d channels down to stereo", channels);
+							downmix_weights(channels, session->weights);
+						}
 					}
 					if (header == OPUS_HEADERS -1) { // second and last header, read comments
 						// err = we ignore comment errors
@@ -201,16 +289,23 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
 					// we got all opus headers
 					if (header == 0) {
 						//  header ready , call player to pass stream details and init AudioTrack
-						onStart(env, &javaDecodeFeedObj, &startMethodId, rate, channels, vendor,
+						onStart(env, &javaDecodeFeedObj, &feed->startMethodId, rate, outchannels, vendor,
 								title, artist, album, date, track);
+						// the output mode is picked per track
+						pcmout = getPCMBuffer(env, &javaDecodeFeedObj, &feed->getPCMBufferMethodId, sampsize, &pcmsize);
+						pcmbatch = (*env)->CallIntMethod(env, javaDecodeFeedObj, feed->getPCMBatchSizeMethodId);
+						pcmfill = 0;
 					}
 				} // header decoding
 
 				// while packets
 
-				// check stream end
-				if (ogg_page_eos(&og)) {
+				// check stream end, once the last packet of the last page is decoded
+				if (ogg_page_eos(&og) && ogg_stream_packetpeek(&os, NULL) == 0) {
 					LOGE(LOG_TAG, "Stream finished.");
+					// the next chained stream may come in a different format
+					onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+					pcmfill = 0;
 					// clean up this logical bitstream;
 					ogg_stream_clear(&os);
 
@@ -221,6 +316,8 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
 					break;
 				}
 			}
+			// the page's granule position is where its last packet ends, which also finds the position again after a gap
+			if (inited && header == 0 && ogg_page_granulepos(&og) >= 0) position = ogg_page_granulepos(&og);
         	// page if
         } // while pages
 
@@ -231,14 +328,15 @@ JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteL
     // ogg_page and ogg_packet structs always point to storage in libopus.  They're never freed or manipulated directly
 
 
-    // OK, clean up the framer
-    ogg_sync_clear(&oy);
+    // OK, clean up this logical bitstream if we stopped in the middle of it, the framer stays with the session
+    if (inited) ogg_stream_clear(&os);
 
-    onStop(env, &javaDecodeFeedObj, &stopMethodId);
+    // hand over whatever is left in the batch
+    onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+    pcmfill = 0;
 
-    //Clean up our buffers
-    (*env)->DeleteLocalRef(env, jByteArrayReadBuffer);
-    (*env)->DeleteLocalRef(env, jShortArrayWriteBuffer);
+    onStop(env, &javaDecodeFeedObj, &feed->stopMethodId);
 
+    threadLogs = 0;
     return err;
 }
@@ -23,11 +23,14 @@
 	extern "C" {
 	#endif
 
-	// called to do the initialization
-	JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_initJni(JNIEnv *env, jclass cls, int debug0);
+	// called to do the initialization, returns the handle of a new decoder session
+	JNIEXPORT jlong JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_initJni(JNIEnv *env, jclass cls, int debug0);
+
+	// frees a decoder session
+	JNIEXPORT void JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_releaseJni(JNIEnv *env, jclass cls, jlong handle);
 
 	//Starts the decoding from a vorbis bitstream to pcm
-	JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls,  jobject OpusDataFeed);
+	JNIEXPORT int JNICALL Java_org_xiph_opus_decoderjni_OpusDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls, jlong handle, jobject OpusDataFeed);
 
 	//Stops the Opus data feed
 	void onStopDecodeFeed(JNIEnv *env, jobject* OpusDataFeed, jmethodID* stopMethodId);
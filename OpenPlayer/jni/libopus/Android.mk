@@ -5,12 +5,9 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 LOCAL_MODULE := libopus
 LOCAL_CFLAGS := -I$(LOCAL_PATH)/../libogg/include  \
-                -I$(LOCAL_PATH)/include -I$(LOCAL_PATH)/celt -I$(LOCAL_PATH)/silk -I$(LOCAL_PATH)/silk/fixed -Drestrict='' \
-                 -D__EMX__ -DOPUS_BUILD -DFIXED_POINT -DUSE_ALLOCA -DHAVE_LRINT -DHAVE_LRINTF -O3 -fno-math-errno
+                -I$(LOCAL_PATH)/include -I$(LOCAL_PATH)/celt -I$(LOCAL_PATH)/silk -Drestrict='' \
+                 -D__EMX__ -DOPUS_BUILD -DUSE_ALLOCA -DHAVE_LRINT -DHAVE_LRINTF -O3 -fno-math-errno
 
-#ifeq ($(TARGET_ARCH),arm)
-#	LOCAL_CFLAGS += -march=armv6 -marm -mfloat-abi=softfp -mfpu=vfp
-#endif
 LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -llog
 LOCAL_SRC_FILES		:= celt/bands.c								celt/celt.c \
 					   celt/cwrs.c								celt/entcode.c   \
@@ -59,23 +56,67 @@ LOCAL_SRC_FILES		:= celt/bands.c								celt/celt.c \
 					   silk/sort.c								silk/sum_sqr_shift.c \
 					   silk/stereo_decode_pred.c				silk/stereo_encode_pred.c \
 					   silk/stereo_find_predictor.c				silk/stereo_quant_pred.c \
-					   silk/fixed/LTP_analysis_filter_FIX.c		silk/fixed/LTP_scale_ctrl_FIX.c \
-					   silk/fixed/corrMatrix_FIX.c				silk/fixed/encode_frame_FIX.c \
-					   silk/fixed/find_LPC_FIX.c				silk/fixed/find_LTP_FIX.c \
-					   silk/fixed/find_pitch_lags_FIX.c			silk/fixed/find_pred_coefs_FIX.c \
-					   silk/fixed/noise_shape_analysis_FIX.c	silk/fixed/prefilter_FIX.c \
-					   silk/fixed/process_gains_FIX.c			silk/fixed/regularize_correlations_FIX.c \
-					   silk/fixed/residual_energy16_FIX.c		silk/fixed/residual_energy_FIX.c \
-					   silk/fixed/solve_LS_FIX.c				silk/fixed/warped_autocorrelation_FIX.c \
-					   silk/fixed/apply_sine_window_FIX.c		silk/fixed/autocorr_FIX.c \
-					   silk/fixed/burg_modified_FIX.c			silk/fixed/k2a_FIX.c \
-					   silk/fixed/k2a_Q16_FIX.c					silk/fixed/pitch_analysis_core_FIX.c \
-					   silk/fixed/vector_ops_FIX.c				silk/fixed/schur64_FIX.c \
-					   silk/fixed/schur_FIX.c					src/opus.c \
+					   src/opus.c \
                                            src/mlp.c                                                    src/mlp_data.c \
                                            src/analysis.c \
 					   src/opus_decoder.c						src/opus_encoder.c \
                                            src/opus_header.c \
-					   src/opus_multistream.c					src/repacketizer.c
+					   src/opus_multistream.c					src/opus_multistream_decoder.c \
+					   src/repacketizer.c
+
+# fixed point where the FPU is weak or missing, float where it is fast: the float CELT is quicker there and takes
+# the SSE pitch kernel on x86. Set OPUS_FLOAT_ABIS on the ndk-build command line to compare the two on a device
+OPUS_FLOAT_ABIS ?= arm64-v8a x86 x86_64
+
+ifneq ($(filter $(TARGET_ARCH_ABI),$(OPUS_FLOAT_ABIS)),)
+LOCAL_CFLAGS += -I$(LOCAL_PATH)/silk/float
+LOCAL_SRC_FILES += silk/float/apply_sine_window_FLP.c  silk/float/autocorrelation_FLP.c \
+					   silk/float/burg_modified_FLP.c  silk/float/bwexpander_FLP.c \
+					   silk/float/corrMatrix_FLP.c  silk/float/encode_frame_FLP.c \
+					   silk/float/energy_FLP.c  silk/float/find_LPC_FLP.c \
+					   silk/float/find_LTP_FLP.c  silk/float/find_pitch_lags_FLP.c \
+					   silk/float/find_pred_coefs_FLP.c  silk/float/inner_product_FLP.c \
+					   silk/float/k2a_FLP.c  silk/float/levinsondurbin_FLP.c \
+					   silk/float/LPC_analysis_filter_FLP.c  silk/float/LPC_inv_pred_gain_FLP.c \
+					   silk/float/LTP_analysis_filter_FLP.c  silk/float/LTP_scale_ctrl_FLP.c \
+					   silk/float/noise_shape_analysis_FLP.c  silk/float/pitch_analysis_core_FLP.c \
+					   silk/float/prefilter_FLP.c  silk/float/process_gains_FLP.c \
+					   silk/float/regularize_correlations_FLP.c  silk/float/residual_energy_FLP.c \
+					   silk/float/scale_copy_vector_FLP.c  silk/float/scale_vector_FLP.c \
+					   silk/float/schur_FLP.c  silk/float/solve_LS_FLP.c \
+					   silk/float/sort_FLP.c  silk/float/warped_autocorrelation_FLP.c \
+					   silk/float/wrappers_FLP.c
+else
+LOCAL_CFLAGS += -I$(LOCAL_PATH)/silk/fixed -DFIXED_POINT
+LOCAL_SRC_FILES += silk/fixed/apply_sine_window_FIX.c  silk/fixed/autocorr_FIX.c \
+					   silk/fixed/burg_modified_FIX.c  silk/fixed/corrMatrix_FIX.c \
+					   silk/fixed/encode_frame_FIX.c  silk/fixed/find_LPC_FIX.c \
+					   silk/fixed/find_LTP_FIX.c  silk/fixed/find_pitch_lags_FIX.c \
+					   silk/fixed/find_pred_coefs_FIX.c  silk/fixed/k2a_FIX.c \
+					   silk/fixed/k2a_Q16_FIX.c  silk/fixed/LTP_analysis_filter_FIX.c \
+					   silk/fixed/LTP_scale_ctrl_FIX.c  silk/fixed/noise_shape_analysis_FIX.c \
+					   silk/fixed/pitch_analysis_core_FIX.c  silk/fixed/prefilter_FIX.c \
+					   silk/fixed/process_gains_FIX.c  silk/fixed/regularize_correlations_FIX.c \
+					   silk/fixed/residual_energy16_FIX.c  silk/fixed/residual_energy_FIX.c \
+					   silk/fixed/schur64_FIX.c  silk/fixed/schur_FIX.c \
+					   silk/fixed/solve_LS_FIX.c  silk/fixed/vector_ops_FIX.c \
+					   silk/fixed/warped_autocorrelation_FIX.c
+
+# 32 bit ARM: inline EDSP multiplies in the fixed point macros (ARMv5TE and up), and the EDSP or NEON pitch
+# correlation picked at load time from /proc/cpuinfo, so ARMv7 devices without NEON still run
+ifeq ($(TARGET_ARCH),arm)
+LOCAL_ARM_MODE := arm
+LOCAL_CFLAGS += -DOPUS_ARM_ASM -DOPUS_ARM_INLINE_ASM -DOPUS_ARM_INLINE_EDSP -DOPUS_HAVE_RTCD \
+                -DOPUS_ARM_MAY_HAVE_EDSP -DOPUS_ARM_MAY_HAVE_MEDIA -DOPUS_ARM_MAY_HAVE_NEON
+# celt/arm/*-gnu.S are celt/arm/*.s converted by celt/arm/arm2gnu.pl, the kernels include celt/arm/armopts-gnu.S
+LOCAL_ASFLAGS := -Wa,-I$(LOCAL_PATH)
+LOCAL_SRC_FILES += celt/arm/armcpu.c  celt/arm/arm_celt_map.c  celt/arm/celt_pitch_xcorr_arm-gnu.S
+endif
+endif
+
+# the x86 ABI guarantees SSE3, for the float SSE kernels
+ifeq ($(TARGET_ARCH),x86)
+LOCAL_CFLAGS += -msse3 -mfpmath=sse
+endif
 
 include $(BUILD_SHARED_LIBRARY)
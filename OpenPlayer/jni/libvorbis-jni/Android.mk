@@ -4,14 +4,30 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE := vorbis-jni
 LOCAL_CFLAGS += -I$(LOCAL_PATH)/../libvorbis/include -I$(LOCAL_PATH)/../libogg/include -fsigned-char
-ifeq ($(TARGET_ARCH),arm)
-	LOCAL_CFLAGS += -march=armv6 -marm -mfloat-abi=softfp -mfpu=vfp
-endif
 
 LOCAL_SHARED_LIBRARIES := libogg libvorbis
 
 LOCAL_LDLIBS := -L$(SYSROOT)/usr/lib -llog
 
-LOCAL_SRC_FILES := ../decodefeed/DecodeFeed.c org_xiph_vorbis_decoderjni_VorbisDecoder.c
+LOCAL_SRC_FILES := ../decodefeed/DecodeFeed.c VorbisConvert.c org_xiph_vorbis_decoderjni_VorbisDecoder.c
+
+# the float to 16 bit conversion has NEON kernels: optional on ARMv7, so checked at run time, always there on ARMv8.
+# x86 and x86_64 take the SSE2 ones without asking
+ifeq ($(TARGET_ARCH_ABI),armeabi)
+	LOCAL_CFLAGS += -march=armv6 -marm -mfloat-abi=softfp -mfpu=vfp
+endif
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+	LOCAL_CFLAGS += -marm -DCONVERT_MAY_HAVE_NEON
+	LOCAL_SRC_FILES += VorbisConvertNeon.c.neon
+	LOCAL_STATIC_LIBRARIES := cpufeatures
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+	LOCAL_CFLAGS += -DCONVERT_PRESUME_NEON
+	LOCAL_SRC_FILES += VorbisConvertNeon.c
+endif
 
 include $(BUILD_SHARED_LIBRARY)
+
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+$(call import-module,android/cpufeatures)
+endif
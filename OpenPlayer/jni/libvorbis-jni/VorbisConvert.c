@@ -0,0 +1,219 @@
+/*
+ * VorbisConvert.c
+ * Converts the planar float synthesis of libvorbis to interleaved 16 bit or float samples, with SSE2 or NEON where there is one.
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+#include <string.h>
+#include "VorbisConvert.h"
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#endif
+
+#if defined(CONVERT_MAY_HAVE_NEON)
+#include <cpu-features.h>
+#endif
+
+// 1.0 maps to 32767, like the decoder always did
+#define SCALE 32767.f
+// adding 1.5 * 2^23 to a float below 2^22 leaves it rounded to the nearest integer in the low bits of the mantissa,
+// the same rounding as the SSE2 and NEON paths without depending on lrintf or floor
+#define MAGIC 12582912.f
+#define MAGIC_BITS 0x4B400000
+
+// frames converted at a time, the noise for them is made up front so the kernels stay branch free
+#define BLOCK 256
+
+static inline ogg_int16_t to_int16(float v) {
+	union { float f; ogg_int32_t i; } bits;
+	v = v < -32768.f ? -32768.f : (v > 32767.f ? 32767.f : v);
+	bits.f = v + MAGIC;
+	return (ogg_int16_t) (bits.i - MAGIC_BITS);
+}
+
+static void convert_mono_c(const float *in, const float *noise, ogg_int16_t *out, int n) {
+	int i;
+	if (noise != NULL) {
+		for (i = 0; i < n; i++) out[i] = to_int16(in[i] * SCALE + noise[i]);
+	} else {
+		for (i = 0; i < n; i++) out[i] = to_int16(in[i] * SCALE);
+	}
+}
+
+static void convert_stereo_c(const float *left, const float *right, const float *noise_left, const float *noise_right,
+		ogg_int16_t *out, int n) {
+	int i;
+	if (noise_left != NULL) {
+		for (i = 0; i < n; i++) {
+			out[2 * i] = to_int16(left[i] * SCALE + noise_left[i]);
+			out[2 * i + 1] = to_int16(right[i] * SCALE + noise_right[i]);
+		}
+	} else {
+		for (i = 0; i < n; i++) {
+			out[2 * i] = to_int16(left[i] * SCALE);
+			out[2 * i + 1] = to_int16(right[i] * SCALE);
+		}
+	}
+}
+
+#if defined(__SSE2__)
+// 8 samples to 16 bit, the conversion rounds to the nearest and the pack saturates
+static inline __m128i convert8_sse2(const float *in, const float *noise) {
+	const __m128 scale = _mm_set1_ps(SCALE), low = _mm_set1_ps(-32768.f), high = _mm_set1_ps(32767.f);
+	__m128 a = _mm_mul_ps(_mm_loadu_ps(in), scale);
+	__m128 b = _mm_mul_ps(_mm_loadu_ps(in + 4), scale);
+	if (noise != NULL) {
+		a = _mm_add_ps(a, _mm_loadu_ps(noise));
+		b = _mm_add_ps(b, _mm_loadu_ps(noise + 4));
+	}
+	// clamped first, far out of range floats would not convert to 32 bit
+	a = _mm_min_ps(_mm_max_ps(a, low), high);
+	b = _mm_min_ps(_mm_max_ps(b, low), high);
+	return _mm_packs_epi32(_mm_cvtps_epi32(a), _mm_cvtps_epi32(b));
+}
+
+static void convert_mono_sse2(const float *in, const float *noise, ogg_int16_t *out, int n) {
+	int i;
+	for (i = 0; i < n; i += 8) {
+		_mm_storeu_si128((__m128i *) (out + i), convert8_sse2(in + i, noise != NULL ? noise + i : NULL));
+	}
+}
+
+static void convert_stereo_sse2(const float *left, const float *right, const float *noise_left, const float *noise_right,
+		ogg_int16_t *out, int n) {
+	int i;
+	for (i = 0; i < n; i += 8) {
+		__m128i l = convert8_sse2(left + i, noise_left != NULL ? noise_left + i : NULL);
+		__m128i r = convert8_sse2(right + i, noise_right != NULL ? noise_right + i : NULL);
+		_mm_storeu_si128((__m128i *) (out + 2 * i), _mm_unpacklo_epi16(l, r));
+		_mm_storeu_si128((__m128i *) (out + 2 * i + 8), _mm_unpackhi_epi16(l, r));
+	}
+}
+
+static void interleave_stereo_sse2(const float *left, const float *right, float *out, int n) {
+	int i;
+	for (i = 0; i < n; i += 4) {
+		__m128 l = _mm_loadu_ps(left + i), r = _mm_loadu_ps(right + i);
+		_mm_storeu_ps(out + 2 * i, _mm_unpacklo_ps(l, r));
+		_mm_storeu_ps(out + 2 * i + 4, _mm_unpackhi_ps(l, r));
+	}
+}
+#endif
+
+#if defined(CONVERT_MAY_HAVE_NEON)
+// not every ARMv7 has NEON, checked once
+static int neon = -1;
+
+static int have_neon(void) {
+	if (neon < 0) {
+		neon = android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM &&
+				(android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+	}
+	return neon;
+}
+#elif defined(CONVERT_PRESUME_NEON)
+#define have_neon() 1
+#endif
+
+// converts n samples, the multiple of 8 with the vector kernel there is one, the rest in C
+static void convert_mono(const float *in, const float *noise, ogg_int16_t *out, int n) {
+	int simd = n & ~7;
+#if defined(CONVERT_MAY_HAVE_NEON) || defined(CONVERT_PRESUME_NEON)
+	if (simd > 0 && have_neon()) convert_mono_neon(in, noise, out, simd);
+	else simd = 0;
+#elif defined(__SSE2__)
+	if (simd > 0) convert_mono_sse2(in, noise, out, simd);
+#else
+	simd = 0;
+#endif
+	convert_mono_c(in + simd, noise != NULL ? noise + simd : NULL, out + simd, n - simd);
+}
+
+static void convert_stereo(const float *left, const float *right, const float *noise_left, const float *noise_right,
+		ogg_int16_t *out, int n) {
+	int simd = n & ~7;
+#if defined(CONVERT_MAY_HAVE_NEON) || defined(CONVERT_PRESUME_NEON)
+	if (simd > 0 && have_neon()) convert_stereo_neon(left, right, noise_left, noise_right, out, simd);
+	else simd = 0;
+#elif defined(__SSE2__)
+	if (simd > 0) convert_stereo_sse2(left, right, noise_left, noise_right, out, simd);
+#else
+	simd = 0;
+#endif
+	if (noise_left != NULL) {
+		convert_stereo_c(left + simd, right + simd, noise_left + simd, noise_right + simd, out + 2 * simd, n - simd);
+	} else {
+		convert_stereo_c(left + simd, right + simd, NULL, NULL, out + 2 * simd, n - simd);
+	}
+}
+
+// triangular noise from -1 to 1 step, from a xorshift generator: the difference of two uniform values
+static void fill_noise(float *noise, int n, ogg_uint32_t *state) {
+	ogg_uint32_t r = *state;
+	int i;
+	for (i = 0; i < n; i++) {
+		r ^= r << 13;
+		r ^= r >> 17;
+		r ^= r << 5;
+		noise[i] = ((int) (r >> 16) - (int) (r & 0xffff)) * (1.f / 65536);
+	}
+	*state = r;
+}
+
+void convert_interleave(float **pcm, int channels, int frames, ogg_int16_t *out, ogg_uint32_t *dither) {
+	float noise[2][BLOCK];
+	ogg_int16_t planar[BLOCK];
+	int done, n, c, i;
+	for (done = 0; done < frames; done += n) {
+		n = frames - done < BLOCK ? frames - done : BLOCK;
+		if (channels == 2) {
+			if (dither != NULL) {
+				fill_noise(noise[0], n, dither);
+				fill_noise(noise[1], n, dither);
+			}
+			convert_stereo(pcm[0] + done, pcm[1] + done, dither != NULL ? noise[0] : NULL, dither != NULL ? noise[1] : NULL,
+					out + 2 * done, n);
+			continue;
+		}
+		for (c = 0; c < channels; c++) {
+			if (dither != NULL) fill_noise(noise[0], n, dither);
+			if (channels == 1) {
+				convert_mono(pcm[0] + done, dither != NULL ? noise[0] : NULL, out + done, n);
+			} else {
+				// other layouts go through a block of one channel, then to its place in the frames
+				convert_mono(pcm[c] + done, dither != NULL ? noise[0] : NULL, planar, n);
+				for (i = 0; i < n; i++) out[(done + i) * channels + c] = planar[i];
+			}
+		}
+	}
+}
+
+void interleave_float(float **pcm, int channels, int frames, float *out) {
+	int i, c;
+	if (channels == 1) {
+		memcpy(out, pcm[0], frames * sizeof(float));
+	} else if (channels == 2) {
+		int simd = frames & ~7;
+#if defined(CONVERT_MAY_HAVE_NEON) || defined(CONVERT_PRESUME_NEON)
+		if (simd > 0 && have_neon()) interleave_stereo_neon(pcm[0], pcm[1], out, simd);
+		else simd = 0;
+#elif defined(__SSE2__)
+		if (simd > 0) interleave_stereo_sse2(pcm[0], pcm[1], out, simd);
+#else
+		simd = 0;
+#endif
+		for (i = simd; i < frames; i++) {
+			out[2 * i] = pcm[0][i];
+			out[2 * i + 1] = pcm[1][i];
+		}
+	} else {
+		for (c = 0; c < channels; c++) {
+			const float *in = pcm[c];
+			for (i = 0; i < frames; i++) out[i * channels + c] = in[i];
+		}
+	}
+}
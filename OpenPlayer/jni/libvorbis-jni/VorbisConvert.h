@@ -0,0 +1,24 @@
+/*
+ * VorbisConvert.h
+ * Converts the planar float synthesis of libvorbis to interleaved 16 bit or float samples, with SSE2 or NEON where there is one.
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+#include <ogg/ogg.h>
+
+// converts frames of each channel in pcm to interleaved 16 bit samples in out, rounded to the nearest and clipped.
+// When dither is not NULL, triangular noise of one step peak is added first; *dither keeps the noise generator
+// between calls and must start non zero. The C and vector paths round the same way
+void convert_interleave(float **pcm, int channels, int frames, ogg_int16_t *out, ogg_uint32_t *dither);
+
+// interleaves frames of each channel in pcm as they are, for float output: no scaling, clipping or rounding
+void interleave_float(float **pcm, int channels, int frames, float *out);
+
+// the NEON kernels, in VorbisConvertNeon.c. n is a multiple of 8, noise may be NULL
+void convert_mono_neon(const float *in, const float *noise, ogg_int16_t *out, int n);
+void convert_stereo_neon(const float *left, const float *right, const float *noise_left, const float *noise_right,
+		ogg_int16_t *out, int n);
+void interleave_stereo_neon(const float *left, const float *right, float *out, int n);
@@ -0,0 +1,58 @@
+/*
+ * VorbisConvertNeon.c
+ * The NEON kernels of VorbisConvert.c, built with NEON enabled on armeabi-v7a and arm64-v8a only.
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+#include <arm_neon.h>
+#include "VorbisConvert.h"
+
+// 8 samples to 16 bit. ARMv7 NEON only converts toward zero, so the rounding is done by adding 1.5 * 2^23:
+// the nearest integer ends up in the low bits of the mantissa, the same result as the C and SSE2 paths
+static inline int16x8_t convert8_neon(const float *in, const float *noise) {
+	const float32x4_t low = vdupq_n_f32(-32768.f), high = vdupq_n_f32(32767.f), magic = vdupq_n_f32(12582912.f);
+	const int32x4_t magic_bits = vdupq_n_s32(0x4B400000);
+	float32x4_t a = vmulq_n_f32(vld1q_f32(in), 32767.f);
+	float32x4_t b = vmulq_n_f32(vld1q_f32(in + 4), 32767.f);
+	if (noise != NULL) {
+		a = vaddq_f32(a, vld1q_f32(noise));
+		b = vaddq_f32(b, vld1q_f32(noise + 4));
+	}
+	a = vminq_f32(vmaxq_f32(a, low), high);
+	b = vminq_f32(vmaxq_f32(b, low), high);
+	int32x4_t ia = vsubq_s32(vreinterpretq_s32_f32(vaddq_f32(a, magic)), magic_bits);
+	int32x4_t ib = vsubq_s32(vreinterpretq_s32_f32(vaddq_f32(b, magic)), magic_bits);
+	return vcombine_s16(vmovn_s32(ia), vmovn_s32(ib));
+}
+
+void convert_mono_neon(const float *in, const float *noise, ogg_int16_t *out, int n) {
+	int i;
+	for (i = 0; i < n; i += 8) {
+		vst1q_s16(out + i, convert8_neon(in + i, noise != NULL ? noise + i : NULL));
+	}
+}
+
+void convert_stereo_neon(const float *left, const float *right, const float *noise_left, const float *noise_right,
+		ogg_int16_t *out, int n) {
+	int i;
+	for (i = 0; i < n; i += 8) {
+		int16x8x2_t frames;
+		frames.val[0] = convert8_neon(left + i, noise_left != NULL ? noise_left + i : NULL);
+		frames.val[1] = convert8_neon(right + i, noise_right != NULL ? noise_right + i : NULL);
+		// the interleaving store writes left and right in turn
+		vst2q_s16(out + 2 * i, frames);
+	}
+}
+
+void interleave_stereo_neon(const float *left, const float *right, float *out, int n) {
+	int i;
+	for (i = 0; i < n; i += 4) {
+		float32x4x2_t frames;
+		frames.val[0] = vld1q_f32(left + i);
+		frames.val[1] = vld1q_f32(right + i);
+		vst2q_f32(out + 2 * i, frames);
+	}
+}
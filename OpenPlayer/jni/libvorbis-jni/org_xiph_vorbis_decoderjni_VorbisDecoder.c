@@ -10,6 +10,7 @@
 #include "org_xiph_vorbis_decoderjni_VorbisDecoder.h"
 #include "../decodefeed/Log.h"
 #include "../decodefeed/DecodeFeed.h"
+#include "VorbisConvert.h"
 
 /*Define message codes*/
 #define INVALID_HEADER -1
@@ -22,12 +23,48 @@
 
 //extern void _VDBG_dump(void);
 
-int debug = 0;
-
 
 #define max(a,b) ({ __typeof__ (a) _a = (a); __typeof__ (b) _b = (b); _a > _b ? _a : _b; })
 #define min(a,b) ({ __typeof__ (a) _a = (a); __typeof__ (b) _b = (b); _a < _b ? _a : _b; })
 
+//State kept by a native session between tracks, created by initJni
+typedef struct {
+	DecodeFeedSession feed; /* Java callbacks and buffers */
+	ogg_sync_state oy; /* reset for every track, but keeps its storage */
+	vorbis_info      vi; /* struct that stores all the static vorbis bitstream settings */
+	vorbis_comment   vc; /* struct that stores all the bitstream user comments */
+	vorbis_dsp_state vd; /* central working state for the packet->PCM decoder */
+	vorbis_block     vb; /* local working space for packet->PCM decode */
+	int ready; /* vd and vb are set up for vi */
+	unsigned char *ident, *setup; /* the header packets vi was built from, a stream with the same ones reuses the decoder */
+	long identlen, setuplen;
+	ogg_uint32_t noise; /* the dither noise generator, carried on from track to track */
+} VorbisSession;
+
+//Frees the decoder and the header data of the last stream
+static void clear_decoder(VorbisSession *session) {
+	if (session->ready) {
+		vorbis_block_clear(&session->vb);
+		vorbis_dsp_clear(&session->vd);
+		session->ready = 0;
+	}
+	vorbis_comment_clear(&session->vc);
+	vorbis_info_clear(&session->vi);  // must be called last
+}
+
+//Keeps a copy of a header packet
+static void keep_packet(unsigned char **copy, long *len, ogg_packet *op) {
+	unsigned char *p = realloc(*copy, op->bytes);
+	if (p != NULL) memcpy(p, op->packet, op->bytes);
+	*copy = p;
+	*len = (p != NULL) ? op->bytes : 0;
+}
+
+//Checks a header packet against the kept copy
+static int same_packet(unsigned char *copy, long len, ogg_packet *op) {
+	return copy != NULL && len == op->bytes && memcmp(copy, op->packet, len) == 0;
+}
+
 
 JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
   LOGD(LOG_TAG, "onLoad called.");
@@ -37,50 +74,63 @@ JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
 
 
 //onStartReadingHeader(env, &javaDecodeFeedObj, &startReadingHeaderMethodId);
-JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_initJni(JNIEnv *env, jclass cls, int debug0) {
-	debug = debug0;
-	LOGI(LOG_TAG, "initJni called, initing methods (vorbis)");
+JNIEXPORT jlong JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_initJni(JNIEnv *env, jclass cls, int debug0) {
+	VorbisSession *session = calloc(1, sizeof(VorbisSession));
+	if (session == NULL) return 0;
+	// the class lookup and method ids are done once here, not for every track
+	if (!initDecodeFeedSession(env, &session->feed, BUFFER_LENGTH * 2)) {
+		free(session);
+		return 0;
+	}
+	ogg_sync_init(&session->oy);
+	session->feed.debug = debug0;
+	session->noise = 1;
+	return (jlong)(intptr_t)session;
 }
 
-JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls, jobject javaDecodeFeedObj) {
-	LOGI(LOG_TAG, "startDecoding called, initing buffers (vorbis)");
-
-	//Create a new java byte array to pass to the vorbis data feed method
-	jbyteArray jByteArrayReadBuffer = (*env)->NewByteArray(env, BUFFER_LENGTH);
-
-	//Create our write buffer
-	jshortArray jShortArrayWriteBuffer = (*env)->NewShortArray(env, BUFFER_LENGTH*2);
-
-        //-- get Java layer method pointer --//
-//	jclass javaDecodeFeedObjClass = (*env)->FindClass(env, "org/xiph/vorbis/decoderjni/DecodeFeed");
-	jclass javaDecodeFeedObjClass = (*env)->FindClass(env, "com/audionowdigital/android/openplayer/DecodeFeed");
+JNIEXPORT void JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_releaseJni(JNIEnv *env, jclass cls, jlong handle) {
+	VorbisSession *session = (VorbisSession *)(intptr_t)handle;
+	if (session == NULL) return;
+	clear_decoder(session);
+	free(session->ident);
+	free(session->setup);
+	ogg_sync_clear(&session->oy);
+	releaseDecodeFeedSession(env, &session->feed);
+	free(session);
+}
 
-	// type signatures are presented here: http://docs.oracle.com/javase/7/docs/technotes/guides/jni/spec/types.html
-	//Find our java method id's we'll be calling
-	jmethodID readDataMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onReadEncodedData", "([BI)I");
-	jmethodID writePCMDataMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onWritePCMData", "([SII)V");
-	jmethodID startMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onStart", "(JJLjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
-	jmethodID startReadingHeaderMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onStartReadingHeader", "()V");
-	jmethodID stopMethodId = (*env)->GetMethodID(env, javaDecodeFeedObjClass, "onStop", "()V");
-	//--
-    ogg_int16_t convbuffer[BUFFER_LENGTH]; /* take 8k out of the data segment, not the stack */
+JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls, jlong handle, jobject javaDecodeFeedObj) {
+	VorbisSession *session = (VorbisSession *)(intptr_t)handle;
+	if (session == NULL) return INVALID_HEADER;
+	threadLogs = session->feed.debug;
+	LOGI(LOG_TAG, "startDecoding called, reusing session buffers (vorbis)");
+	DecodeFeedSession *feed = &session->feed;
+    union {
+    	ogg_int16_t s[BUFFER_LENGTH];
+    	float f[BUFFER_LENGTH];
+    } convbuffer; /* a block for the array path, in the output format */
     int convsize=BUFFER_LENGTH;
+
+    //Direct buffer owned by the Java side, when available we decode straight into it
+    void *pcmout = NULL;
+    int pcmsize = 0;
+    //Samples accumulated in pcmout, and how many to gather before crossing into Java
+    int pcmfill = 0, pcmbatch = 0;
     
-    ogg_sync_state   oy; /* sync and verify incoming physical bitstream */
+    ogg_sync_state   *oy = &session->oy; /* sync and verify incoming physical bitstream */
     ogg_stream_state os; /* take physical pages, weld into a logical stream of packets */
     ogg_page         og; /* one Ogg bitstream page. Vorbis packets are inside */
     ogg_packet       op; /* one raw packet of data for decode */
     
-    vorbis_info      vi; /* struct that stores all the static vorbis bitstream settings */
-    vorbis_comment   vc; /* struct that stores all the bitstream user comments */
-    vorbis_dsp_state vd; /* central working state for the packet->PCM decoder */
-    vorbis_block     vb; /* local working space for packet->PCM decode */
+    vorbis_info      *vi = &session->vi;
+    vorbis_comment   *vc = &session->vc;
+    vorbis_dsp_state *vd = &session->vd;
+    vorbis_block     *vb = &session->vb;
+    int reuse = 0; /* the stream has the same identification header as the session decoder */
     
-    char *buffer;
     int  bytes;
     
 
-	char vendor[COMMENT_MAX_LEN] = {0};
 	char title[COMMENT_MAX_LEN] = {0};
 	char artist[COMMENT_MAX_LEN] = {0};
 	char album[COMMENT_MAX_LEN] = {0};
@@ -90,15 +140,19 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
     /********** Decode setup ************/
 
     //Notify the decode feed we are starting to initialize
-    onStartReadingHeader(env, &javaDecodeFeedObj, &startReadingHeaderMethodId);
+    onStartReadingHeader(env, &javaDecodeFeedObj, &feed->startReadingHeaderMethodId);
     
     //1
-    ogg_sync_init(&oy); /* Now we can read pages */
+    ogg_sync_reset(oy); /* Now we can read pages, drop whatever a stopped track left behind */
     
     int inited = 0, header = 3;
-    int eos = 0;
     int err = SUCCESS;
-    int i;
+
+    //Dither the conversion to 16 bit if the feed wants it
+    ogg_uint32_t *dither = (*env)->CallBooleanMethod(env, javaDecodeFeedObj, feed->isDitheredMethodId) ? &session->noise : NULL;
+    //Or hand the synthesis over as floats, with no conversion at all
+    int floats = (*env)->CallBooleanMethod(env, javaDecodeFeedObj, feed->isFloatOutputMethodId);
+    int sampsize = floats ? sizeof(float) : sizeof(ogg_int16_t);
 
     // start source reading / decoding loop
     while (1) {
@@ -107,10 +161,8 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
     		break;
     	}
 
-        // READ DATA : submit a 4k block to Ogg layer
-        buffer = ogg_sync_buffer(&oy,BUFFER_LENGTH);
-        bytes = onReadEncodedData(env, &javaDecodeFeedObj, &readDataMethodId, buffer, &jByteArrayReadBuffer);
-        ogg_sync_wrote(&oy,bytes);
+        // READ DATA : read a 4k block straight into the Ogg layer
+        bytes = onReadEncodedData(env, &javaDecodeFeedObj, &feed->readDataMethodId, oy, &feed->readBuffer);
 
         // Check available data
         if (bytes == 0) {
@@ -124,7 +176,7 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
         	// exit loop on error
         	if (err != SUCCESS) break;
         	// sync the stream and get a page
-        	int result = ogg_sync_pageout(&oy,&og);
+        	int result = ogg_sync_pageout(oy,&og);
         	// need more data, so go to PREVIOUS loop and read more */
         	if (result == 0) break;
            	// missing or corrupt data at this page position
@@ -133,6 +185,15 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
         		continue;
            	}
            	// we finally have a valid page
+			// a new chained stream may start before the previous one ended, e.g. a truncated file followed by a queued track.
+			// Grouped streams only have their BOS pages before the headers are done, so they don't get here
+			if (inited && header == 0 && ogg_page_bos(&og)) {
+				LOGW(LOG_TAG, "New stream before the end of the previous one.");
+				onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+				pcmfill = 0;
+				ogg_stream_clear(&os);
+				inited = 0;
+			}
 			if (!inited) {
 				ogg_stream_init(&os, ogg_page_serialno(&og));
 				LOGE(LOG_TAG, "inited stream, serial no: %ld", os.serialno);
@@ -157,58 +218,84 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
 					float **pcm;
 					int samples;
 					// test for success!
-					if(vorbis_synthesis(&vb,&op)==0) vorbis_synthesis_blockin(&vd,&vb);
-					while((samples = vorbis_synthesis_pcmout(&vd,&pcm)) > 0) {
+					if(vorbis_synthesis(vb,&op)==0) vorbis_synthesis_blockin(vd,vb);
+					while((samples = vorbis_synthesis_pcmout(vd,&pcm)) > 0) {
 						//LOGE(LOG_TAG, "start while 8, decoding %d samples: %d convsize:%d", op.bytes,  samples, convsize);
-						int j;
-						int frame_size = (samples < convsize?samples : convsize);
-
-						// convert floats to 16 bit signed ints (host order) and interleave
-						for(i = 0; i < vi.channels; i++){
-							ogg_int16_t *ptr = convbuffer + i;
-							float  *mono = pcm[i];
-							for(j=0;j<frame_size;j++){
-								int val = floor(mono[j]*32767.f+.5f);
-								// might as well guard against clipping
-								if(val>32767) { val=32767; }
-								if(val<-32768) { val=-32768; }
-								*ptr=val;
-								ptr += vi.channels;
-							}
-						}
+						// convert into the Java side buffer if we have one, behind the samples already batched
+						int room = (pcmout != NULL) ? (pcmsize - pcmfill) / vi->channels : convsize;
+						int frame_size = (samples < room?samples : room);
+						void *out = (pcmout != NULL) ? (char *) pcmout + pcmfill * sampsize : (void *) &convbuffer;
+
+						// interleave, converting floats to 16 bit signed ints (host order) unless the feed takes floats
+						if (floats) interleave_float(pcm, vi->channels, frame_size, out);
+						else convert_interleave(pcm, vi->channels, frame_size, out, dither);
 
 						// Call decodefeed to push data to AudioTrack
-						onWritePCMData(env, &javaDecodeFeedObj, &writePCMDataMethodId, convbuffer, frame_size*vi.channels, &jShortArrayWriteBuffer);
-						vorbis_synthesis_read(&vd,frame_size); // tell libvorbis how many samples we actually consumed
+						if (pcmout != NULL) {
+							pcmfill += frame_size*vi->channels;
+							// cross into Java once the batch is complete, or when the buffer is full
+							if (pcmfill >= pcmbatch || pcmsize - pcmfill < vi->channels) {
+								onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+								pcmfill = 0;
+							}
+						} else if (floats)
+							onWritePCMFloatData(env, &javaDecodeFeedObj, feed, convbuffer.f, frame_size*vi->channels);
+						else
+							onWritePCMData(env, &javaDecodeFeedObj, &feed->writePCMDataMethodId, convbuffer.s, frame_size*vi->channels, &feed->writeBuffer);
+						vorbis_synthesis_read(vd,frame_size); // tell libvorbis how many samples we actually consumed
 					}
 				} // decoding done
 
 				// do we need the header? that's the first thing to take
 				if (header > 0) {
+					int skip = 0;
 					if (header == VORBIS_HEADERS) {
-						// prepare vorbis structures
-						vorbis_info_init(&vi);
-						vorbis_comment_init(&vc);
+						// prepare vorbis structures, unless the session decoder was built from the same identification header
+						reuse = session->ready && same_packet(session->ident, session->identlen, &op);
+						if (reuse) {
+							vorbis_comment_clear(vc);
+							skip = 1;
+						} else {
+							clear_decoder(session);
+							vorbis_info_init(vi);
+						}
+						vorbis_comment_init(vc);
+					}
+					if (header == 1 && reuse) {
+						if (same_packet(session->setup, session->setuplen, &op)) skip = 1;
+						else {
+							// new codebooks: rebuild the decoder from the kept identification header
+							ogg_packet ident = { session->ident, session->identlen, 1, 0, 0, 0 };
+							vorbis_block_clear(vb);
+							vorbis_dsp_clear(vd);
+							session->ready = 0;
+							reuse = 0;
+							vorbis_info_clear(vi);
+							vorbis_info_init(vi);
+							vorbis_synthesis_headerin(vi,vc,&ident);
+						}
 					}
 					// we need to do this 3 times, for all 3 vorbis headers!
 					// add data to header structure
-					if(vorbis_synthesis_headerin(&vi,&vc,&op) < 0) {
+					if(!skip && vorbis_synthesis_headerin(vi,vc,&op) < 0) {
 						// error case; not a vorbis header
 						LOGE(LOG_TAG, "Err: not a vorbis header.");
 						err = INVALID_HEADER;
 						break;
 					}
+					if (!skip && header == VORBIS_HEADERS) keep_packet(&session->ident, &session->identlen, &op);
+					if (!skip && header == 1) keep_packet(&session->setup, &session->setuplen, &op);
 					// signal next header
 					header--;
 
 					// we got all 3 vorbis headers
 					if (header == 0) {
-						LOGE(LOG_TAG, "Vorbis header data: ver:%d ch:%d samp:%ld [%s]" ,  vi.version, vi.channels, vi.rate, vc.vendor);
+						LOGE(LOG_TAG, "Vorbis header data: ver:%d ch:%d samp:%ld [%s]" ,  vi->version, vi->channels, vi->rate, vc->vendor);
 						int i=0;
-						for (i=0; i<vc.comments; i++) {
-							LOGD(LOG_TAG,"Header comment:%d len:%d [%s]", i, vc.comment_lengths[i], vc.user_comments[i]);
-							char *c = vc.user_comments[i];
-							int len = vc.comment_lengths[i];
+						for (i=0; i<vc->comments; i++) {
+							LOGD(LOG_TAG,"Header comment:%d len:%d [%s]", i, vc->comment_lengths[i], vc->user_comments[i]);
+							char *c = vc->user_comments[i];
+							int len = vc->comment_lengths[i];
 							 // keys we are looking for in the comments, careful if size if bigger than 10
 							char keys[5][10] = { "title=", "artist=", "album=", "date=", "track=" };
 							char *values[5] = { title, artist, album, date, track }; // put the values in these pointers
@@ -218,35 +305,44 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
 								if (!strncasecmp(c, keys[j], keylen )) strncpy(values[j], c + keylen, min(len - keylen , COMMENT_MAX_LEN));
 							}
 						}
-						// init vorbis decoder
-						if(vorbis_synthesis_init(&vd,&vi) != 0) {
-							// corrupt header
-							LOGE(LOG_TAG, "Err: corrupt header.");
-							err = INVALID_HEADER;
-							break;
+						if (reuse) {
+							// same setup as the previous stream, only the decoder position needs a reset
+							LOGD(LOG_TAG, "Reusing the vorbis decoder");
+							vorbis_synthesis_restart(vd);
+						} else {
+							// init vorbis decoder
+							if(vorbis_synthesis_init(vd,vi) != 0) {
+								// corrupt header
+								LOGE(LOG_TAG, "Err: corrupt header.");
+								err = INVALID_HEADER;
+								break;
+							}
+							// central decode state
+							vorbis_block_init(vd,vb);
+							session->ready = 1;
 						}
-						// central decode state
-						vorbis_block_init(&vd,&vb);
 
 						// header ready , call player to pass stream details and init AudioTrack
-						onStart(env, &javaDecodeFeedObj, &startMethodId, vi.rate, vi.channels, vc.vendor,
+						onStart(env, &javaDecodeFeedObj, &feed->startMethodId, vi->rate, vi->channels, vc->vendor,
 								title, artist, album, date, track);
+						// the output mode is picked per track
+						pcmout = getPCMBuffer(env, &javaDecodeFeedObj, &feed->getPCMBufferMethodId, sampsize, &pcmsize);
+						pcmbatch = (*env)->CallIntMethod(env, javaDecodeFeedObj, feed->getPCMBatchSizeMethodId);
+						pcmfill = 0;
+						convsize = BUFFER_LENGTH / vi->channels;
 					}
 				} // header decoding
 
 				// while packets
 
-				// check stream end
-				if (ogg_page_eos(&og)) {
+				// check stream end, once the last packet of the last page is decoded
+				if (ogg_page_eos(&og) && ogg_stream_packetpeek(&os, NULL) == 0) {
 					LOGE(LOG_TAG, "Stream finished.");
-					// clean up this logical bitstream;
+					// the next chained stream may come in a different format
+					onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+					pcmfill = 0;
+					// clean up this logical bitstream, the decoder stays with the session for the next one
 					ogg_stream_clear(&os);
-					vorbis_comment_clear(&vc);
-					vorbis_info_clear(&vi);  // must be called last
-
-					// clear decoding structures
-					vorbis_block_clear(&vb);
-					vorbis_dsp_clear(&vd);
 
 					// attempt to go for re-initialization until EOF in data source
 					err = SUCCESS;
@@ -263,21 +359,17 @@ JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWr
 
 
     // ogg_page and ogg_packet structs always point to storage in libvorbis.  They're never freed or manipulated directly
-	vorbis_comment_clear(&vc);
-	vorbis_info_clear(&vi);  // must be called last
-
-	vorbis_block_clear(&vb);
-	vorbis_dsp_clear(&vd);
-
+    // the decoder and the framer stay with the session, released by releaseJni
 
-    // OK, clean up the framer
-    ogg_sync_clear(&oy);
+    // OK, clean up this logical bitstream if we stopped in the middle of it
+    if (inited) ogg_stream_clear(&os);
 
-    onStop(env, &javaDecodeFeedObj, &stopMethodId);
+    // hand over whatever is left in the batch
+    onWritePCMBuffer(env, &javaDecodeFeedObj, &feed->writePCMBufferMethodId, pcmfill);
+    pcmfill = 0;
 
-    //Clean up our buffers
-    (*env)->DeleteLocalRef(env, jByteArrayReadBuffer);
-    (*env)->DeleteLocalRef(env, jShortArrayWriteBuffer);
+    onStop(env, &javaDecodeFeedObj, &feed->stopMethodId);
 
+    threadLogs = 0;
     return err;
 }
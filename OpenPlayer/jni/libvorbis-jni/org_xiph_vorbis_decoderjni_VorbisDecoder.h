@@ -22,11 +22,14 @@
 	extern "C" {
 	#endif
 
-	// called to do the initialization
-	JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_initJni(JNIEnv *env, jclass cls, int debug0);
+	// called to do the initialization, returns the handle of a new decoder session
+	JNIEXPORT jlong JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_initJni(JNIEnv *env, jclass cls, int debug0);
+
+	// frees a decoder session
+	JNIEXPORT void JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_releaseJni(JNIEnv *env, jclass cls, jlong handle);
 
 	//Starts the decoding from a vorbis bitstream to pcm
-	JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls,  jobject vorbisDataFeed);
+	JNIEXPORT int JNICALL Java_org_xiph_vorbis_decoderjni_VorbisDecoder_readDecodeWriteLoop(JNIEnv *env, jclass cls, jlong handle, jobject vorbisDataFeed);
 
 	//Stops the vorbis data feed
 	void onStopDecodeFeed(JNIEnv *env, jobject* vorbisDataFeed, jmethodID* stopMethodId);
@@ -0,0 +1,87 @@
+/*
+ * AbstractDataSource.java - What the data sources have in common: the path, the length and the read position
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.io.InputStream;
+
+/**
+ * A base for sources that do not read ahead and have no stream to hand out, app-supplied
+ * sources can start from here too. Subclasses keep length, readoffset and version up to date.
+ */
+
+public abstract class AbstractDataSource implements DataSource {
+
+    protected final String dataPath;
+
+    protected long length = -1, readoffset = -1;
+
+    /**
+     * Changes when the content does: the file modification time, or the remote ETag (Last-Modified if none)
+     */
+    protected String version;
+
+    protected AbstractDataSource(String path) {
+        dataPath = path;
+    }
+
+    @Override
+    public long getSourceLength() {
+        return length;
+    }
+
+    @Override
+    public long getReadOffset() {
+        return readoffset;
+    }
+
+    @Override
+    public String getCacheKey() {
+        if (length <= 0) return null;
+        return dataPath + "|" + length + "|" + version;
+    }
+
+    @Override
+    public String getPath() {
+        return dataPath;
+    }
+
+    @Override
+    public void setPrefetchListener(DataPrefetcher.Listener listener) {
+    }
+
+    @Override
+    public int getBufferFill() {
+        return -1;
+    }
+
+    @Override
+    public boolean isBuffering() {
+        return false;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return null;
+    }
+
+    @Override
+    public synchronized int skip(long offset) {
+        // invalid content fix : make sure we are pass the header always
+        if (offset < 500) offset = 500;
+        seekTo(offset);
+
+        //return DATA_SRC_INVALID;
+        return 0; // return result not used
+    }
+
+    @Override
+    public SeekIndex.PageReader openPageReader() {
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * CachedRemoteStream.java - Reads a remote track from the download cache, and from the network only where the cache has gaps
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A gap is requested in Range requests of at most {@link #WINDOW} bytes, each up to the next cached range
+ * or to the end of the track, and the downloaded bytes go to the cache on their way to the reader. A
+ * request is read to its end, or drained when abandoned, so its keep-alive connection can be used again.
+ * A server ignoring the Range header sends the track from its start: the bytes before the position are
+ * then only stored, not returned.
+ *
+ * The window is the trade-off: an open-ended request would be left with most of the track unread after a
+ * seek, too much to drain, and its connection closed, so each seek would pay a new connection (and TLS
+ * handshake). A window costs one request per {@link #WINDOW} bytes on a connection kept alive, which the
+ * read-ahead hides, and a seek drains at most one window on the old prefetch thread while the new stream
+ * waits for its connection, up to {@link #HANDOFF_MS}.
+ */
+
+class CachedRemoteStream extends InputStream {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "CachedRemoteStream";
+
+    /**
+     * The most bytes asked for in one request; what is left of an abandoned one is still read, to keep
+     * its connection
+     */
+    static final int WINDOW = 256 * 1024;
+
+    /**
+     * How long the first request after a seek waits for the stream it replaces to drain its connection
+     */
+    private static final long HANDOFF_MS = 500;
+
+    private final HttpDataSource source;
+    private final DownloadCache.Entry cache;
+    private final long length;
+
+    // the next byte to return
+    private long position;
+
+    // the open download, its position and where it is to stop (exclusive), null if none
+    private InputStream connection;
+    private long connectionPosition, connectionEnd;
+
+    private byte[] discard;
+
+    // the stream this one replaces, until the first request; counted down once this one is closed
+    private CachedRemoteStream previous;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * @param source        the track, which makes the requests
+     * @param cache         the cached ranges of the track, null to not keep the downloaded bytes
+     * @param position      where to start reading
+     * @param length        the track length in bytes
+     * @param connection    a download already open at position, or null
+     * @param connectionEnd where that download stops (exclusive)
+     * @param previous      the stream this one replaces after a seek, whose connection is waited for, or null
+     */
+    CachedRemoteStream(HttpDataSource source, DownloadCache.Entry cache, long position, long length, InputStream connection,
+                       long connectionEnd, CachedRemoteStream previous) {
+        this.source = source;
+        this.cache = cache;
+        this.position = position;
+        this.length = length;
+        this.connection = connection;
+        connectionPosition = position;
+        this.connectionEnd = connectionEnd;
+        this.previous = previous;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (position >= length) return -1;
+        if (count == 0) return 0;
+
+        long cached = (cache != null) ? cache.cachedUntil(position) : position;
+        if (cached > position) {
+            // the download runs into cached bytes, they are read from disk
+            closeConnection();
+            int n = cache.read(position, buffer, offset, (int) Math.min(count, cached - position));
+            if (n > 0) position += n;
+            return n;
+        }
+
+        if (connection == null || connectionPosition > position) openGap();
+        // a download from an earlier position, only stored until it gets here
+        while (connectionPosition < position) {
+            if (discard == null) discard = new byte[4096];
+            int n = connection.read(discard, 0, (int) Math.min(discard.length, position - connectionPosition));
+            if (n < 0) throw new IOException("download ended at " + connectionPosition);
+            store(connectionPosition, discard, n);
+            connectionPosition += n;
+        }
+
+        // up to the next cached range at most, the download is dropped there
+        long stop = (cache != null) ? cache.nextCached(position, connectionEnd) : connectionEnd;
+        int n = connection.read(buffer, offset, (int) Math.min(count, stop - position));
+        if (n < 0) {
+            closeConnection();
+            throw new IOException("download ended at " + position);
+        }
+        if (cache != null) cache.write(position, buffer, offset, n);
+        position += n;
+        connectionPosition = position;
+        if (position >= connectionEnd) closeConnection();
+        return n;
+    }
+
+    /**
+     * Requests the bytes from the position up to the next cached range, the end of the track or a window
+     * further, whichever comes first
+     */
+    private void openGap() throws IOException {
+        closeConnection();
+        if (previous != null) {
+            // its drained connection goes back to the pool, to be taken by this request
+            previous.awaitClosed();
+            previous = null;
+        }
+        long end = Math.min(position + WINDOW, (cache != null) ? cache.nextCached(position, length) : length);
+        HttpURLConnection cn = source.connect(position, end < length ? end : -1);
+        int code = cn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            connectionPosition = position;
+            connectionEnd = end;
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            Log.w(TAG, "no range support, downloading from the start to get to:" + position);
+            connectionPosition = 0;
+            connectionEnd = length;
+        } else {
+            cn.disconnect();
+            throw new IOException("range request failed:" + code);
+        }
+        Log.d(TAG, "downloading gap " + connectionPosition + "-" + connectionEnd);
+        connection = cn.getInputStream();
+    }
+
+    private void closeConnection() {
+        if (connection == null) return;
+        // an unfinished response would take its connection along when closed
+        long left = connectionEnd - connectionPosition;
+        try {
+            if (left > 0 && left <= WINDOW) drain();
+        } catch (IOException e) {
+            Log.d(TAG, "could not drain the download:" + e.getMessage());
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.d(TAG, "download already closed");
+        }
+        connection = null;
+    }
+
+    /**
+     * Reads the rest of the open download, into the cache if there is one
+     */
+    private void drain() throws IOException {
+        if (discard == null) discard = new byte[4096];
+        while (connectionPosition < connectionEnd) {
+            int n = connection.read(discard, 0, (int) Math.min(discard.length, connectionEnd - connectionPosition));
+            if (n < 0) break;
+            store(connectionPosition, discard, n);
+            connectionPosition += n;
+        }
+    }
+
+    /**
+     * Writes downloaded bytes that are not read to the cache, leaving the ranges it already has as they are
+     */
+    private void store(long pos, byte[] buffer, int count) throws IOException {
+        if (cache == null) return;
+        long end = pos + count;
+        while (pos < end) {
+            long cached = cache.cachedUntil(pos);
+            if (cached > pos) {
+                pos = cached;
+                continue;
+            }
+            long stop = cache.nextCached(pos, end);
+            cache.write(pos, buffer, (int) (pos + count - end), (int) (stop - pos));
+            pos = stop;
+        }
+    }
+
+    private void awaitClosed() throws InterruptedIOException {
+        try {
+            closed.await(HANDOFF_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("closed while waiting for the previous download");
+        }
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+        closed.countDown();
+    }
+}
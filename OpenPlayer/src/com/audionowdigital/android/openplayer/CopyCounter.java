@@ -0,0 +1,54 @@
+/*
+ * CopyCounter.java - Measures how many bytes per second get copied along a data path
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Created by radhoo on /14.
+ */
+
+public class CopyCounter {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "CopyCounter";
+
+    private final String name;
+    private long bytes = 0, windowStart = 0;
+    private volatile long bytesPerSecond = 0;
+
+    public CopyCounter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Accounts for a copy, closing the measuring window every second
+     */
+    public synchronized void add(int copied) {
+        long now = SystemClock.elapsedRealtime();
+        if (windowStart == 0) windowStart = now;
+        bytes += copied;
+        long elapsed = now - windowStart;
+        if (elapsed >= 1000) {
+            bytesPerSecond = bytes * 1000 / elapsed;
+            Log.d(TAG, name + " bytes copied per second:" + bytesPerSecond);
+            bytes = 0;
+            windowStart = now;
+        }
+    }
+
+    /**
+     * @return the copy rate measured over the last full window
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * DataPrefetcher.java - Reads a remote stream ahead of the decoder into a bounded memory ring
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The network thread fills the ring up to the high watermark, then sleeps until the decoder
+ * has drained it below the low watermark. The decoder only ever copies from memory.
+ */
+
+public class DataPrefetcher implements Runnable {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "DataPrefetcher";
+
+    /**
+     * Default ring size: a few seconds of a typical Opus/Vorbis stream
+     */
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    /**
+     * Size of a single network read
+     */
+    private static final int CHUNK_LENGTH = 4096;
+
+    /**
+     * Only report fill level changes of at least this many percent
+     */
+    private static final int FILL_REPORT_STEP = 5;
+
+    /**
+     * Receives the buffer fill level, called on the prefetch thread or on the reading one
+     */
+    public interface Listener {
+        /**
+         * @param percent   how much of the ring is filled, 0 to 100
+         * @param buffering true from the moment the reader emptied the ring until it is filled up to the
+         *                  high watermark again, or the stream ended
+         */
+        public void onBufferFill(int percent, boolean buffering);
+    }
+
+    private final InputStream inputStream;
+    private final byte[] ring;
+    private final int capacity, lowWatermark, highWatermark;
+
+    // guarded by this
+    private int readIndex = 0, fill = 0;
+    private boolean finished = false, closed = false;
+    private IOException error = null;
+    // the reader emptied the ring and it was not refilled up to the high watermark since, guarded by this
+    private boolean buffering = false;
+
+    private volatile Listener listener;
+    private final Object reportLock = new Object();
+    private Thread thread;
+    // guarded by this
+    private int reportedFill = -1;
+    private boolean reportedBuffering = false;
+
+    /**
+     * @param inputStream   the stream to read ahead
+     * @param capacity      the ring size in bytes
+     * @param lowWatermark  refilling resumes once the fill drops below this many bytes
+     * @param highWatermark refilling pauses once the fill reaches this many bytes
+     */
+    public DataPrefetcher(InputStream inputStream, int capacity, int lowWatermark, int highWatermark) {
+        if (capacity <= 0 || lowWatermark < 0 || highWatermark > capacity || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("Invalid prefetch buffer sizes");
+        }
+        this.inputStream = inputStream;
+        this.capacity = capacity;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Uses the whole ring, refilling when it drops to half
+     */
+    public DataPrefetcher(InputStream inputStream, int capacity) {
+        this(inputStream, capacity, capacity / 2, capacity);
+    }
+
+    public synchronized void start() {
+        thread = new Thread(this, "DataPrefetcher");
+        thread.start();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return how much of the ring is filled, 0 to 100
+     */
+    public synchronized int getFillPercent() {
+        return (int) (100L * fill / capacity);
+    }
+
+    /**
+     * @return true from the reader emptying the ring until it is refilled to the high watermark or the stream ends
+     */
+    public synchronized boolean isBuffering() {
+        return buffering;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "prefetch started, capacity:" + capacity);
+        byte[] chunk = new byte[CHUNK_LENGTH];
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (fill >= highWatermark) {
+                        // full enough, wait for the decoder to drain below the low watermark
+                        while (fill >= lowWatermark && !closed) wait();
+                    }
+                    if (closed) break;
+                }
+
+                int bytes = inputStream.read(chunk, 0, Math.min(CHUNK_LENGTH, highWatermark - fillLevel()));
+                if (bytes == -1) break;
+
+                synchronized (this) {
+                    if (closed) break;
+                    int writeIndex = (readIndex + fill) % capacity;
+                    int first = Math.min(bytes, capacity - writeIndex);
+                    System.arraycopy(chunk, 0, ring, writeIndex, first);
+                    if (first < bytes) System.arraycopy(chunk, first, ring, 0, bytes - first);
+                    fill += bytes;
+                    if (fill >= highWatermark) buffering = false;
+                    notifyAll();
+                }
+                reportFill();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "prefetch read exception:" + e.getMessage());
+            synchronized (this) {
+                error = e;
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "prefetch interrupted");
+        }
+
+        boolean ended;
+        synchronized (this) {
+            finished = true;
+            ended = !closed;
+            // all there is left is in the ring
+            buffering = false;
+            notifyAll();
+        }
+        if (ended) reportFill();
+        // closed on this thread, so the stream is never closed under a read
+        Thread.interrupted();
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            Log.d(TAG, "stream already closed");
+        }
+        Log.d(TAG, "prefetch stopped");
+    }
+
+    private synchronized int fillLevel() {
+        return fill;
+    }
+
+    private void reportFill() {
+        Listener l = listener;
+        if (l == null) return;
+        // both the prefetch and the reading thread report, one at a time so the last state is the one reported last
+        synchronized (reportLock) {
+            int percent;
+            boolean refilling;
+            synchronized (this) {
+                percent = (int) (100L * fill / capacity);
+                refilling = buffering;
+                if (reportedFill != -1 && Math.abs(percent - reportedFill) < FILL_REPORT_STEP && refilling == reportedBuffering &&
+                        !(percent == 100 && reportedFill != 100) && !(percent == 0 && reportedFill != 0)) return;
+                reportedFill = percent;
+                reportedBuffering = refilling;
+            }
+            l.onBufferFill(percent, refilling);
+        }
+    }
+
+    /**
+     * Copies buffered bytes out, blocking only while the ring is empty
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the network read failed and everything before the failure was consumed
+     */
+    public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+        return take(buffer, null, byteOffset, byteCount);
+    }
+
+    /**
+     * Same as {@link #read(byte[], int, int)}, copying into a (direct) ByteBuffer at the given absolute offset
+     */
+    public int read(ByteBuffer buffer, int byteOffset, int byteCount) throws IOException {
+        return take(null, buffer, byteOffset, byteCount);
+    }
+
+    private int take(byte[] buffer, ByteBuffer byteBuffer, int byteOffset, int byteCount) throws IOException {
+        int bytes;
+        boolean underrun;
+        synchronized (this) {
+            while (fill == 0 && !finished && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for data");
+                }
+            }
+            if (fill == 0) {
+                if (error != null && !closed) throw error;
+                return -1;
+            }
+            bytes = Math.min(byteCount, fill);
+            int first = Math.min(bytes, capacity - readIndex);
+            if (byteBuffer != null) {
+                byteBuffer.position(byteOffset);
+                byteBuffer.put(ring, readIndex, first);
+                if (first < bytes) byteBuffer.put(ring, 0, bytes - first);
+            } else {
+                System.arraycopy(ring, readIndex, buffer, byteOffset, first);
+                if (first < bytes) System.arraycopy(ring, 0, buffer, byteOffset + first, bytes - first);
+            }
+            readIndex = (readIndex + bytes) % capacity;
+            fill -= bytes;
+            // wake the prefetch thread if we crossed the low watermark
+            if (fill < lowWatermark) notifyAll();
+            // once the stream is all read, an empty ring is just its end
+            underrun = fill == 0 && !finished;
+            if (underrun) buffering = true;
+        }
+        // an empty ring is an underrun about to happen, let the client know
+        if (underrun) reportFill();
+        return bytes;
+    }
+
+    /**
+     * Stops prefetching; pending and future reads return -1. The stream is closed by the prefetch
+     * thread, once a network read in progress returns (the connection read timeout bounds that);
+     * a stream waiting to reconnect is interrupted
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        if (thread != null) thread.interrupt();
+    }
+}
@@ -8,209 +8,109 @@
 
 package com.audionowdigital.android.openplayer;
 
-import android.util.Log;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
 
 /**
- * Created by radhoo on /14.
+ * Where the decoder reads the encoded bytes from. Sources are opened by a {@link DataSourceRegistry},
+ * which asks its factories in turn: the ones registered by the app first, then the built-in
+ * {@link FileDataSource} and {@link HttpDataSource}.
  */
 
-public class DataSource  {
-
-	/**
-	 * The debug tag
-	 */
-	private String TAG = "DataSource";
-
-    private final static int DATA_SRC_FINISHED = -2;
-	private final static int DATA_SRC_INVALID = -1;
-	private final static int DATA_SRC_LOCAL = 0;
-	private final static int DATA_SRC_REMOTE = 1;
-	
-	private InputStream inputStream;
-	private String dataPath = null;
-	private int dataSource = DATA_SRC_INVALID; 
-	
-	private long length = -1, readoffset = -1;
-	
-	private InputStream getRemote(String url, long offset) {
-        Log.d(TAG, "getRemote:" + url);
-
-		try {
-			URLConnection cn = new URL( url ).openConnection();
-            cn.setConnectTimeout(5000);
-			cn.setRequestProperty ("Range", "bytes="+offset+"-");
-			/* iOS implementtion:
-			 NSString * str = [NSString stringWithFormat:@"GET %@ HTTP/1.0\r\nHost: %@\r\nRange: bytes=%ld-\r\n\r\n",
-			                   [sourceUrl path], [sourceUrl host], offset];
-			 */
-			cn.connect();
-			
-			if (offset == 0)
-				length = cn.getContentLength();
-			
-			readoffset = offset;
-			
-			return cn.getInputStream();
-		} catch (MalformedURLException e ) { e.printStackTrace();
-		} catch (IOException e) { e.printStackTrace(); }
-        
-        // check URL for type of content! other parameters can be accessed here!
-        /*for (java.util.Map.Entry<String, java.util.List<String>> me : cn.getHeaderFields().entrySet()) {
-            if ("content-type".equalsIgnoreCase( me.getKey())) {
-                for (String s : me.getValue()) {
-                    String ct = s;
-                    Log.e(TAG, "content:" + s); // 04-18 13:20:51.121: E/Player(7417): content:audio/aacp
-                }
-            }
-        }*/
-		return null;
-	}
-	
-	private InputStream getLocal(String path) {
-		File f = new File(path);
-		if (f.exists() && f.length() > 0) {
-			try {
-				InputStream is = new BufferedInputStream(new FileInputStream(f));
-				length = f.length();
-				is.markSupported();
-		        is.mark((int)length);
-		            
-				return is;
-			} catch (FileNotFoundException e) { e.printStackTrace(); }
-		}
-		return null;
-	}
-	
-	/**
-	 * 
-	 * @param path can be a local path or a remote url
-	 */
-	DataSource(String path) {
-		dataSource = DATA_SRC_INVALID;
-		inputStream = null;
-		dataPath = path;
-		
-		// first see if it's a local path
-		inputStream = getLocal(path);
-		if (inputStream != null ) {
-			Log.d(TAG, "Local Source length:" + length);
-			dataSource = DATA_SRC_LOCAL;
-			return;
-		} 
-		
-		inputStream = getRemote(path, 0);
-		if (inputStream != null) {
-			Log.d(TAG, "Remote Source length:" + length);
-			dataSource = DATA_SRC_REMOTE;
-			return;
-		}
-		
-	}
-
-	public void release() {
-		Log.d(TAG, "release called.");
-		try {
-			inputStream.close();
-		} catch (Exception e) {
-            Log.d(TAG, "source already released");
-        }
-		inputStream = null;
-		dataSource = DATA_SRC_INVALID;
-	}
-	
-	/**
-	 * 
-	 * @return the current track size in bytes, or -1 for live streams
-	 */
-	public long getSourceLength() {
-		return length;
-	}
-	
-	/**
-	 * 
-	 * @return the current read position in bytes, must be smaller then source lengths @getSourceLength()
-	 */
-	public long getReadOffset() {
-		return readoffset;
-	}
-	
-	public boolean isSourceValid() {
-		return dataSource != DATA_SRC_INVALID;
-	}
-
-
-	public synchronized int read(byte buffer[], int byteOffset, int byteCount) {
-		try {
-			if (dataSource != DATA_SRC_INVALID) {
-                // Reads up to byteCount bytes from this stream and stores them in the byte array buffer starting at byteOffset.
-                // Returns the number of bytes actually read or -1 if the end of the stream has been reached.
-                // if the stream is closed or another IOException occurs.
-				int bytes = inputStream.read(buffer, byteOffset, byteCount);
-				if (bytes > 0) readoffset += bytes;
-                //Log.d(TAG, "readoffset:" + readoffset)
-                if (bytes == -1)
-                    return DATA_SRC_FINISHED;
-                else
-				    return bytes;
-			}
-		} catch (IOException e) {
-            Log.d(TAG, "InputStream exception:" + e.getMessage());
-            e.printStackTrace();
-        }
-	
-		return DATA_SRC_INVALID;	
-	}
-	
-	public InputStream getInputStream() {
-		return inputStream;
-	}
-	
-	public String getPath() {
-		return dataPath;
-	}
-	
-	public synchronized int skip(long offset) {
-		// invalid content fix : make sure we are pass the header always
-		if (offset < 500) offset = 500;
-		
-		if (dataSource == DATA_SRC_LOCAL) {
-			try {
-			    int retry = 10;
-                long skip = 0;
-                // enforce skip to correct position for local inputstreams
-                do {
-                    inputStream.reset(); // will reset to mark: TODO: test if memory is ok on local big files
-
-                    skip = inputStream.skip(offset);
-                    retry --;
-                    Log.e("SKIP", "res skip:" + skip + " retry:" + retry);
-                } while (Math.abs(skip - offset) > 4096 && retry > 0);
-
-                readoffset = offset;
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		
-		if (dataSource == DATA_SRC_REMOTE) {
-			inputStream = getRemote(dataPath, offset);
-			if (inputStream != null) {
-				Log.d(TAG, "Skip reconnect to:" + offset);
-				dataSource = DATA_SRC_REMOTE;
-			}
-		}
-		
-		//return DATA_SRC_INVALID;
-        return 0; // return result not used
-	}
-}
\ No newline at end of file
+public interface DataSource {
+
+    /**
+     * Returned by the reads at the end of the source
+     */
+    public static final int DATA_SRC_FINISHED = -2;
+
+    /**
+     * Returned by the reads on error, or for a source that could not be opened
+     */
+    public static final int DATA_SRC_INVALID = -1;
+
+    /**
+     * Opens the sources of the paths it knows
+     */
+    public interface Factory {
+        /**
+         * @param path     the path or url given to the player
+         * @param registry the settings the source should use: read-ahead size, download cache, timeouts
+         * @return the source, or null if the path is not one this factory handles
+         */
+        public DataSource open(String path, DataSourceRegistry registry);
+    }
+
+    /**
+     * Closes the source, reads fail afterwards
+     */
+    public void release();
+
+    /**
+     * @return the current track size in bytes, or -1 for live streams
+     */
+    public long getSourceLength();
+
+    /**
+     * @return the current read position in bytes, must be smaller then source lengths @getSourceLength()
+     */
+    public long getReadOffset();
+
+    /**
+     * @return a key identifying this content for {@link SeekIndexCache} and {@link DownloadCache}, or null if it is not to be cached
+     */
+    public String getCacheKey();
+
+    public boolean isSourceValid();
+
+    /**
+     * Receives the read-ahead buffer fill level of sources reading ahead
+     */
+    public void setPrefetchListener(DataPrefetcher.Listener listener);
+
+    /**
+     * @return how full the read-ahead buffer is (0 to 100), or -1 for sources not reading ahead
+     */
+    public int getBufferFill();
+
+    /**
+     * @return true while the read-ahead buffer is refilled after running empty, until its high watermark
+     */
+    public boolean isBuffering();
+
+    /**
+     * Reads up to byteCount bytes into buffer at byteOffset
+     * @return the number of bytes read, DATA_SRC_FINISHED at the end of the stream or DATA_SRC_INVALID on error
+     */
+    public int read(byte buffer[], int byteOffset, int byteCount);
+
+    /**
+     * Reads into a (direct) ByteBuffer at the given absolute offset, used by the native decoders to read straight into their own memory
+     * @return the number of bytes read, DATA_SRC_FINISHED at the end of the stream or DATA_SRC_INVALID on error
+     */
+    public int read(ByteBuffer buffer, int byteOffset, int byteCount);
+
+    /**
+     * @return the underlying stream, or null if the source is not read through one
+     */
+    public InputStream getInputStream();
+
+    public String getPath();
+
+    /**
+     * Continues reading near the given offset, always past the first bytes of the file
+     */
+    public int skip(long offset);
+
+    /**
+     * Continues reading at exactly the given offset
+     * @return true if the next read starts at offset
+     */
+    public boolean seekTo(long offset);
+
+    /**
+     * Opens a second, positional view of the source, used to look up pages without disturbing the decoder's reads
+     * @return the reader, or null if the source can not be read at arbitrary offsets
+     */
+    public SeekIndex.PageReader openPageReader();
+}
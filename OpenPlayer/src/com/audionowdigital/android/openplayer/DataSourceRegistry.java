@@ -0,0 +1,159 @@
+/*
+ * DataSourceRegistry.java - Picks the data source for a path, and holds the settings the sources are opened with
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Factories are asked in turn, the last registered first, until one of them takes the path. The
+ * built-in {@link FileDataSource#FACTORY} and {@link HttpDataSource#FACTORY} are asked last.
+ * Settings changes apply to the sources opened afterwards.
+ */
+
+public class DataSourceRegistry {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "DataSourceRegistry";
+
+    /**
+     * Default time to wait for a connection to a server
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
+    /**
+     * Default time to wait for data from a connected server, before the read fails
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15000;
+
+    /**
+     * Default time to keep trying to connect again to a live stream that dropped
+     */
+    public static final int DEFAULT_RECONNECT_MS = 60000;
+
+    private final CopyOnWriteArrayList<DataSource.Factory> factories = new CopyOnWriteArrayList<DataSource.Factory>();
+
+    private volatile int prefetchCapacity = DataPrefetcher.DEFAULT_CAPACITY;
+    private volatile DownloadCache downloadCache;
+    private volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS, readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private volatile int reconnectMs = DEFAULT_RECONNECT_MS;
+    private volatile HttpDataSource.StreamTitleListener streamTitleListener;
+
+    public DataSourceRegistry() {
+        factories.add(FileDataSource.FACTORY);
+        factories.add(HttpDataSource.FACTORY);
+    }
+
+    /**
+     * Adds a factory, asked before the ones registered earlier
+     */
+    public void register(DataSource.Factory factory) {
+        factories.add(0, factory);
+    }
+
+    public void unregister(DataSource.Factory factory) {
+        factories.remove(factory);
+    }
+
+    /**
+     * @param path can be a local path, a remote url, or a path known to a registered factory
+     * @return the source, check {@link DataSource#isSourceValid()}
+     */
+    public DataSource open(String path) {
+        for (DataSource.Factory factory : factories) {
+            DataSource source = factory.open(path, this);
+            if (source != null) return source;
+        }
+        Log.e(TAG, "no data source for:" + path);
+        // the same as a missing file: never valid
+        return new FileDataSource(path);
+    }
+
+    /**
+     * Opens a path for a decoder that reads it itself, MXDecoder through MediaExtractor: a remote path is not
+     * connected or read ahead, so it is not downloaded twice. Other paths open as with {@link #open(String)}
+     * @return the source, check {@link DataSource#isSourceValid()}
+     */
+    public DataSource openPathOnly(String path) {
+        if (HttpDataSource.isRemote(path)) return new HttpDataSource.PathOnly(path);
+        return open(path);
+    }
+
+    /**
+     * @return how many bytes of a remote source to read ahead of the decoder
+     */
+    public int getPrefetchCapacity() {
+        return prefetchCapacity;
+    }
+
+    public void setPrefetchCapacity(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Prefetch size must be above 0");
+        }
+        prefetchCapacity = bytes;
+    }
+
+    /**
+     * @return where what is downloaded of remote sources is kept, or null
+     */
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+
+    public void setDownloadCache(DownloadCache cache) {
+        downloadCache = cache;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    /**
+     * @param connectMs how long to wait for a connection to a server, 0 to wait forever
+     * @param readMs how long to wait for data from a connected server, 0 to wait forever
+     */
+    public void setTimeouts(int connectMs, int readMs) {
+        if (connectMs < 0 || readMs < 0) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        connectTimeoutMs = connectMs;
+        readTimeoutMs = readMs;
+    }
+
+    public int getReconnectMs() {
+        return reconnectMs;
+    }
+
+    /**
+     * @param ms how long to keep trying to connect again to a live stream that dropped, 0 to end playback right away
+     */
+    public void setReconnectMs(int ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("Reconnect time must not be negative");
+        }
+        reconnectMs = ms;
+    }
+
+    public HttpDataSource.StreamTitleListener getStreamTitleListener() {
+        return streamTitleListener;
+    }
+
+    /**
+     * @param listener receives the titles of live streams, null for none
+     */
+    public void setStreamTitleListener(HttpDataSource.StreamTitleListener listener) {
+        streamTitleListener = listener;
+    }
+}
@@ -8,6 +8,8 @@
 
 package com.audionowdigital.android.openplayer;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by radhoo on /14.
  */
@@ -31,12 +33,24 @@ public interface DecodeFeed {
     /**
      * Triggered from the native {@link Decoder} that is requesting to read the next bit of encoded data
      *
+     * A null buffer reads nothing: the call only blocks while paused, for decoders that read the source themselves
+     *
      * @param buffer        the buffer to write to
      * @param amountToWrite the amount of encoded data to write
-     * @return the amount actually written
+     * @return the amount actually written, 0 to end the decoding; with a null buffer, -1 to end it
      */
     public int onReadEncodedData(byte[] buffer, int amountToWrite);
 
+    /**
+     * Triggered from the native {@link Decoder} to read the next bit of encoded data straight into native memory
+     *
+     * @param buffer        a direct buffer over the decoder's own input buffer
+     * @param offset        the absolute position in buffer where to write
+     * @param amountToWrite the amount of encoded data to write
+     * @return the amount actually written
+     */
+    public int onReadEncodedData(ByteBuffer buffer, int offset, int amountToWrite);
+
     /**
      * Triggered from the native {@link Decoder} that is requesting to write the next bit of raw PCM data
      *
@@ -46,6 +60,58 @@ public interface DecodeFeed {
      */
     public void onWritePCMData(short[] pcmData, int amountToRead, int currentSeconds);
 
+    /**
+     * Triggered from the native {@link Decoder} instead of {@link #onWritePCMData(short[], int, int)} when {@link #isFloatOutput()} is true
+     *
+     * @param pcmData      the raw pcm data, nominally from -1 to 1
+     * @param amountToRead the amount available to read in the buffer
+     * @param currentSeconds if progress is known, we will push it here, else -1
+     */
+    public void onWritePCMFloatData(float[] pcmData, int amountToRead, int currentSeconds);
+
+    /**
+     * Called by the native {@link Decoder} once the header is read, to get a direct buffer to decode the PCM into
+     *
+     * @return a native order direct buffer, of floats with {@link #isFloatOutput()}, or null to receive the PCM through {@link #onWritePCMData(short[], int, int)}
+     */
+    public ByteBuffer getPCMBuffer();
+
+    /**
+     * Called by the native {@link Decoder} after {@link #getPCMBuffer()}, the decoded PCM is handed over in batches of this size
+     *
+     * @return the number of samples to gather in the buffer before each {@link #onWritePCMBuffer(int, int)}, 0 for every frame
+     */
+    public int getPCMBatchSize();
+
+    /**
+     * Called by the native {@link Decoder} before it reads the header, surround streams with more channels are mixed down to stereo
+     *
+     * @return the most channels the feed takes, in WAV order: FL FR FC LFE BL BR
+     */
+    public int getMaxChannels();
+
+    /**
+     * Called by the native {@link Decoder} before it reads the header, only decoders that convert float samples to 16 bit use it
+     *
+     * @return true to add triangular noise of one step to the conversion, to spread its error as a faint hiss
+     */
+    public boolean isDithered();
+
+    /**
+     * Called by the native {@link Decoder} before it reads the header, the answer holds until the decoding ends
+     *
+     * @return true to get float samples, in the {@link #getPCMBuffer()} buffer or through {@link #onWritePCMFloatData(float[], int, int)}
+     */
+    public boolean isFloatOutput();
+
+    /**
+     * Triggered from the native {@link Decoder} once it decoded the next bit of raw PCM data into the {@link #getPCMBuffer()} buffer
+     *
+     * @param amountToRead the number of samples available at the start of the buffer
+     * @param currentSeconds if progress is known, we will push it here, else -1
+     */
+    public void onWritePCMBuffer(int amountToRead, int currentSeconds);
+
     /**
      * To be called when decoding has completed
      */
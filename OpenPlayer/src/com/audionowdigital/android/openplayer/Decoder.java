@@ -0,0 +1,34 @@
+/*
+ * Decoder.java - A decoder instance, reading encoded data from a DecodeFeed and writing PCM back to it
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+/**
+ * Each instance keeps its own state, so several of them can decode at once on different threads.
+ * One instance decodes one track at a time.
+ */
+
+public interface Decoder {
+    /**
+     * Decodes the feed's data source from its header to the end, or until the feed is stopped
+     *
+     * @param decodeFeed the feed to read from and write to
+     * @return one of the {@link DecodeFeed} result codes
+     */
+    public int readDecodeWriteLoop(DecodeFeed decodeFeed);
+
+    /**
+     * Asks a running loop to return, from any thread
+     */
+    public void stop();
+
+    /**
+     * Frees the decoder, must not be decoding. The instance can not be used afterwards
+     */
+    public void release();
+}
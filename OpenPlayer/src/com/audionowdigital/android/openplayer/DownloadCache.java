@@ -0,0 +1,317 @@
+/*
+ * DownloadCache.java - Keeps the downloaded parts of remote tracks on disk, so they are not downloaded again
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Each track gets a sparse data file, written at the offsets the bytes come from, and a list of the byte
+ * ranges it holds. A track is keyed by {@link DataSource#getCacheKey()}, so a changed file on the server
+ * starts over. The least recently played tracks are dropped once the cached bytes go over the size limit.
+ */
+
+public class DownloadCache {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "DownloadCache";
+
+    private static final int MAGIC = 0x4f504443; // "OPDC"
+
+    /**
+     * Default limit for the bytes kept on disk
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+
+    // guarded by this, tracks in use by a data source
+    private final HashMap<String, Entry> open = new HashMap<String, Entry>();
+
+    /**
+     * The downloaded ranges of one track, shared by all readers of it
+     */
+    public static class Entry {
+        private final DownloadCache cache;
+        private final String name;
+        private final File dataFile, rangesFile;
+        private RandomAccessFile file;
+        private int users = 0;
+
+        // guarded by this, sorted, neither overlapping nor touching
+        private long[] starts = new long[16], ends = new long[16];
+        private int count = 0;
+        private boolean dirty = false;
+
+        private Entry(DownloadCache cache, String name) {
+            this.cache = cache;
+            this.name = name;
+            dataFile = new File(cache.dir, name + ".data");
+            rangesFile = new File(cache.dir, name + ".ranges");
+        }
+
+        /**
+         * @return the end of the cached range holding pos, pos itself if it is not cached
+         */
+        public synchronized long cachedUntil(long pos) {
+            int i = find(pos);
+            return (i >= 0) ? ends[i] : pos;
+        }
+
+        /**
+         * @return the start of the first cached range after pos, or limit if there is none before it
+         */
+        public synchronized long nextCached(long pos, long limit) {
+            for (int i = 0; i < count; i++) if (starts[i] > pos) return Math.min(starts[i], limit);
+            return limit;
+        }
+
+        /**
+         * @return the number of bytes held
+         */
+        public synchronized long size() {
+            long total = 0;
+            for (int i = 0; i < count; i++) total += ends[i] - starts[i];
+            return total;
+        }
+
+        /**
+         * Reads cached bytes, only call for a range below {@link #cachedUntil(long)}
+         */
+        public synchronized int read(long pos, byte[] buffer, int offset, int length) throws IOException {
+            file.seek(pos);
+            return file.read(buffer, offset, length);
+        }
+
+        /**
+         * Stores downloaded bytes, the range counts as cached once they are written
+         */
+        public synchronized void write(long pos, byte[] buffer, int offset, int length) throws IOException {
+            if (length <= 0) return;
+            file.seek(pos);
+            file.write(buffer, offset, length);
+            add(pos, pos + length);
+        }
+
+        /**
+         * @return the index of the range holding pos, -1 if none
+         */
+        private int find(long pos) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] <= pos) lo = mid + 1;
+                else hi = mid;
+            }
+            return (lo < count && starts[lo] <= pos) ? lo : -1;
+        }
+
+        private void add(long start, long end) {
+            // first range ending at or after start, the new one merges with it and any it reaches
+            int i = 0;
+            while (i < count && ends[i] < start) i++;
+            int j = i;
+            while (j < count && starts[j] <= end) {
+                start = Math.min(start, starts[j]);
+                end = Math.max(end, ends[j]);
+                j++;
+            }
+            int removed = j - i;
+            if (removed == 0 && count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            int shift = 1 - removed;
+            System.arraycopy(starts, j, starts, j + shift, count - j);
+            System.arraycopy(ends, j, ends, j + shift, count - j);
+            starts[i] = start;
+            ends[i] = end;
+            count += shift;
+            dirty = true;
+        }
+
+        private synchronized void load() throws IOException {
+            file = new RandomAccessFile(dataFile, "rw");
+            if (!rangesFile.exists()) return;
+            DataInputStream in = new DataInputStream(new FileInputStream(rangesFile));
+            try {
+                if (in.readInt() != MAGIC) return;
+                int n = in.readInt();
+                in.readLong(); // the total, read back when trimming
+                for (int k = 0; k < n; k++) {
+                    long start = in.readLong(), end = in.readLong();
+                    // the ranges file is written after the data, it never claims more than the file holds
+                    if (start < end && end <= file.length()) add(start, end);
+                }
+                dirty = false;
+            } catch (IOException e) {
+                Log.e(TAG, "dropping damaged ranges of:" + name);
+                count = 0;
+            } finally {
+                in.close();
+            }
+        }
+
+        private synchronized void store() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.d(TAG, "data file already closed");
+            }
+            if (!dirty) return;
+            File tmp = new File(cache.dir, name + ".tmp");
+            try {
+                RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+                try {
+                    out.setLength(0);
+                    out.writeInt(MAGIC);
+                    out.writeInt(count);
+                    out.writeLong(size());
+                    for (int i = 0; i < count; i++) {
+                        out.writeLong(starts[i]);
+                        out.writeLong(ends[i]);
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(rangesFile)) tmp.delete();
+                dirty = false;
+            } catch (IOException e) {
+                Log.e(TAG, "could not store the ranges of:" + name);
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * @param cacheDir where to keep the downloads, usually Context.getCacheDir()
+     * @param maxBytes how many downloaded bytes to keep at most
+     */
+    public DownloadCache(File cacheDir, long maxBytes) {
+        dir = new File(cacheDir, "openplayer-data");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the cached ranges of a track, to be given back with {@link #release(Entry)}
+     * @return the entry, or null if the cache can not be used
+     */
+    public synchronized Entry open(String key) {
+        String name = nameFor(key);
+        if (name == null || (!dir.isDirectory() && !dir.mkdirs())) return null;
+        Entry entry = open.get(name);
+        if (entry == null) {
+            trim();
+            entry = new Entry(this, name);
+            try {
+                entry.load();
+            } catch (IOException e) {
+                Log.e(TAG, "could not open:" + entry.dataFile);
+                return null;
+            }
+            open.put(name, entry);
+            Log.d(TAG, "opened:" + key + " cached bytes:" + entry.size());
+        }
+        entry.users++;
+        return entry;
+    }
+
+    public synchronized void release(Entry entry) {
+        if (--entry.users > 0) return;
+        open.remove(entry.name);
+        entry.store();
+        // marks it as recently used
+        entry.rangesFile.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Drops the least recently used tracks that are not open, until the cached bytes fit the limit
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        List<File> ranges = new ArrayList<File>();
+        long total = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".data") && !open.containsKey(name.substring(0, name.length() - ".data".length()))
+                    && !new File(dir, name.substring(0, name.length() - ".data".length()) + ".ranges").exists()) {
+                // left without its ranges, nothing in it can be trusted
+                f.delete();
+                continue;
+            }
+            if (!name.endsWith(".ranges")) continue;
+            ranges.add(f);
+            total += storedSize(f);
+        }
+        if (total <= maxBytes) return;
+        File[] sorted = ranges.toArray(new File[ranges.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d > 0 ? 1 : d < 0 ? -1 : 0;
+            }
+        });
+        for (File f : sorted) {
+            if (total <= maxBytes) break;
+            String name = f.getName().substring(0, f.getName().length() - ".ranges".length());
+            if (open.containsKey(name)) continue;
+            total -= storedSize(f);
+            f.delete();
+            new File(dir, name + ".data").delete();
+            Log.d(TAG, "dropped:" + name);
+        }
+    }
+
+    private static long storedSize(File rangesFile) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(rangesFile));
+            if (in.readInt() != MAGIC) return 0;
+            in.readInt();
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            if (in != null) try {
+                in.close();
+            } catch (IOException e) {
+                Log.d(TAG, "ranges file already closed");
+            }
+        }
+    }
+
+    private static String nameFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
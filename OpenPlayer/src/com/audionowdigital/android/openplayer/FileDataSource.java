@@ -0,0 +1,136 @@
+/*
+ * FileDataSource.java - Reads a local file with positional reads
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A seek only moves readoffset, and nothing of the file is held in memory.
+ */
+
+public class FileDataSource extends AbstractDataSource {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "FileDataSource";
+
+    /**
+     * Opens paths naming an existing file, with or without a file:// prefix
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public DataSource open(String path, DataSourceRegistry registry) {
+            String file = path.startsWith("file://") ? path.substring("file://".length()) : path;
+            return new File(file).isFile() ? new FileDataSource(path, file) : null;
+        }
+    };
+
+    private volatile FileChannel fileChannel;
+
+    /**
+     * @param path the file path
+     */
+    public FileDataSource(String path) {
+        this(path, path);
+    }
+
+    private FileDataSource(String path, String file) {
+        super(path);
+        File f = new File(file);
+        if (f.exists() && f.length() > 0) {
+            try {
+                fileChannel = new FileInputStream(f).getChannel();
+                length = f.length();
+                version = String.valueOf(f.lastModified());
+                readoffset = 0;
+                Log.d(TAG, "Local Source length:" + length);
+            } catch (FileNotFoundException e) { e.printStackTrace(); }
+        }
+    }
+
+    @Override
+    public void release() {
+        Log.d(TAG, "release called.");
+        FileChannel channel = fileChannel;
+        if (channel == null) return;
+        fileChannel = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "source already released");
+        }
+    }
+
+    @Override
+    public boolean isSourceValid() {
+        return fileChannel != null;
+    }
+
+    @Override
+    public synchronized int read(byte buffer[], int byteOffset, int byteCount) {
+        return read(ByteBuffer.wrap(buffer, byteOffset, byteCount), byteOffset, byteCount);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer, int byteOffset, int byteCount) {
+        FileChannel channel = fileChannel;
+        if (channel == null) return DATA_SRC_INVALID;
+        try {
+            // straight from the page cache into the decoder's memory
+            buffer.clear();
+            buffer.position(byteOffset);
+            buffer.limit(byteOffset + byteCount);
+            int bytes = channel.read(buffer, readoffset);
+            if (bytes == -1) return DATA_SRC_FINISHED;
+            readoffset += bytes;
+            return bytes;
+        } catch (IOException e) {
+            Log.d(TAG, "read exception:" + e.getMessage());
+            e.printStackTrace();
+        }
+        return DATA_SRC_INVALID;
+    }
+
+    @Override
+    public synchronized boolean seekTo(long offset) {
+        // the next positional read starts there
+        if (fileChannel == null || offset < 0 || offset > length) return false;
+        readoffset = offset;
+        return true;
+    }
+
+    @Override
+    public SeekIndex.PageReader openPageReader() {
+        final FileChannel channel = fileChannel;
+        if (channel == null) return null;
+        // positional reads do not disturb the decoder's, they can share the channel
+        return new SeekIndex.PageReader() {
+            @Override
+            public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+                ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+                while (dst.hasRemaining()) {
+                    int read = channel.read(dst, position + dst.position() - offset);
+                    if (read == -1) break;
+                }
+                return dst.position() - offset;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * HttpDataSource.java - Reads a track or a live stream over HTTP, ahead of the decoder
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A track of known length is read in bounded Range requests, from where it is read or sought to, skipping
+ * what the download cache holds (see {@link CachedRemoteStream}); a request read or drained to its end hands
+ * the keep-alive connection back to HttpURLConnection's pool for the next one on the same server.
+ * A live stream is a single open request, connected again when it drops (see {@link LiveRemoteStream}),
+ * with its ICY metadata taken out and the stream titles passed on as the decoder reaches them.
+ */
+
+public class HttpDataSource extends AbstractDataSource {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "HttpDataSource";
+
+    /**
+     * Opens http and https urls
+     */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public DataSource open(String path, DataSourceRegistry registry) {
+            return isRemote(path) ? new HttpDataSource(path, registry) : null;
+        }
+    };
+
+    /**
+     * @return true for http and https urls
+     */
+    static boolean isRemote(String path) {
+        return path.regionMatches(true, 0, "http://", 0, 7) || path.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    /**
+     * A remote track for a decoder that downloads it itself (MXDecoder, through MediaExtractor): it is not
+     * connected, read ahead or indexed, only the path is passed on. The length is not known here, 0, so the
+     * length given with the track is kept
+     */
+    static class PathOnly extends AbstractDataSource {
+        PathOnly(String url) {
+            super(url);
+            length = 0;
+            readoffset = 0;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public boolean isSourceValid() {
+            return true;
+        }
+
+        @Override
+        public int read(byte[] buffer, int byteOffset, int byteCount) {
+            return DATA_SRC_INVALID;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int byteOffset, int byteCount) {
+            return DATA_SRC_INVALID;
+        }
+
+        @Override
+        public boolean seekTo(long offset) {
+            return false;
+        }
+    }
+
+    /**
+     * Receives the title of a live stream each time it changes, on the decoder thread
+     */
+    public interface StreamTitleListener {
+        public void onStreamTitle(String title);
+    }
+
+    private static class StreamTitle {
+        final long offset;
+        final String title;
+
+        StreamTitle(long offset, String title) {
+            this.offset = offset;
+            this.title = title;
+        }
+    }
+
+    private final int prefetchCapacity;
+    private final int connectTimeoutMs, readTimeoutMs, reconnectMs;
+    private final StreamTitleListener titleListener;
+
+    // guarded by itself, titles still ahead of the decoder in the read-ahead buffer
+    private final LinkedList<StreamTitle> titles = new LinkedList<StreamTitle>();
+
+    /**
+     * Downloaded ranges of the track kept on disk, null if there is no download cache
+     */
+    private final DownloadCache downloadCache;
+    private DownloadCache.Entry cacheEntry;
+
+    private InputStream inputStream;
+
+    /**
+     * Reads the stream ahead of the decoder, null once released
+     */
+    private volatile DataPrefetcher prefetcher;
+    private DataPrefetcher.Listener prefetchListener;
+
+    /**
+     * @param url the url of the track or live stream
+     * @param registry the read-ahead size, download cache and timeouts to use
+     */
+    public HttpDataSource(String url, DataSourceRegistry registry) {
+        super(url);
+        prefetchCapacity = registry.getPrefetchCapacity();
+        downloadCache = registry.getDownloadCache();
+        connectTimeoutMs = registry.getConnectTimeoutMs();
+        readTimeoutMs = registry.getReadTimeoutMs();
+        reconnectMs = registry.getReconnectMs();
+        titleListener = registry.getStreamTitleListener();
+        Log.d(TAG, "getRemote:" + url);
+
+        try {
+            inputStream = open();
+        } catch (IOException e) {
+            Log.e(TAG, "could not open:" + url + " " + e.getMessage());
+            return;
+        }
+        Log.d(TAG, "Remote Source length:" + length);
+        readoffset = 0;
+        startPrefetch();
+    }
+
+    /**
+     * Sends the first request, which tells the length and the version of the content
+     */
+    private InputStream open() throws IOException {
+        // the first window of the track
+        HttpURLConnection cn = connect(0, CachedRemoteStream.WINDOW);
+        int code = cn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            length = totalLength(cn.getHeaderField("Content-Range"));
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            length = contentLength(cn);
+        } else {
+            // some servers refuse ranges of live streams
+            length = -1;
+        }
+        if (length <= 0) {
+            // no length, a live stream: asked for again, with its metadata
+            cn.disconnect();
+            cn = connect(-1, -1);
+            code = cn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                cn.disconnect();
+                throw new IOException("http response:" + code);
+            }
+            length = contentLength(cn);
+        }
+        version = cn.getHeaderField("ETag");
+        if (version == null) version = cn.getHeaderField("Last-Modified");
+
+        // live streams have no length and are not cached
+        if (length <= 0) return new LiveRemoteStream(this, cn, reconnectMs);
+        String key = getCacheKey();
+        if (downloadCache != null && key != null) cacheEntry = downloadCache.open(key);
+        if (cacheEntry != null && cacheEntry.cachedUntil(0) > 0) {
+            // played before, the downloads start where the cache has gaps
+            cn.disconnect();
+            return new CachedRemoteStream(this, cacheEntry, 0, length, null, 0, null);
+        }
+        // a server ignoring the range sends it all
+        long end = (code == HttpURLConnection.HTTP_PARTIAL) ? Math.min(CachedRemoteStream.WINDOW, length) : length;
+        return new CachedRemoteStream(this, cacheEntry, 0, length, cn.getInputStream(), end, null);
+    }
+
+    /**
+     * Prepares a request, with the timeouts of this source
+     * @param start the first byte to ask for, -1 to ask for the whole of a live stream, with its ICY metadata
+     * @param end   the end of the range (exclusive), -1 to ask for everything from start
+     */
+    HttpURLConnection connect(long start, long end) throws IOException {
+        HttpURLConnection cn = (HttpURLConnection) new URL(dataPath).openConnection();
+        cn.setConnectTimeout(connectTimeoutMs);
+        cn.setReadTimeout(readTimeoutMs);
+        if (start >= 0) cn.setRequestProperty("Range", "bytes=" + start + "-" + (end > start ? String.valueOf(end - 1) : ""));
+        else cn.setRequestProperty("Icy-MetaData", "1");
+        return cn;
+    }
+
+    /**
+     * Called by the live stream with each new title, passed on once the decoder reads that far
+     * @param offset the number of stream bytes before the title change
+     */
+    void onStreamTitle(String title, long offset) {
+        if (titleListener == null) return;
+        synchronized (titles) {
+            titles.add(new StreamTitle(offset, title));
+        }
+    }
+
+    /**
+     * @return the Content-Length header of a response, -1 if none; getContentLength() is an int, -1 above 2 GB
+     */
+    private static long contentLength(HttpURLConnection cn) {
+        String value = cn.getHeaderField("Content-Length");
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param contentRange a Content-Range header, "bytes 0-65535/1234567"
+     * @return the total length it gives, -1 if none
+     */
+    private static long totalLength(String contentRange) {
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*", the length is not known
+            return -1;
+        }
+    }
+
+    /**
+     * Wraps the stream in a new prefetcher, dropping the previous one
+     */
+    private void startPrefetch() {
+        if (prefetcher != null) prefetcher.close();
+        prefetcher = new DataPrefetcher(inputStream, prefetchCapacity);
+        prefetcher.setListener(prefetchListener);
+        prefetcher.start();
+    }
+
+    @Override
+    public void release() {
+        Log.d(TAG, "release called.");
+        // the prefetcher closes the stream once its last read returns
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
+        inputStream = null;
+        if (cacheEntry != null) {
+            downloadCache.release(cacheEntry);
+            cacheEntry = null;
+        }
+    }
+
+    @Override
+    public boolean isSourceValid() {
+        return prefetcher != null;
+    }
+
+    @Override
+    public void setPrefetchListener(DataPrefetcher.Listener listener) {
+        prefetchListener = listener;
+        DataPrefetcher p = prefetcher;
+        if (p != null) p.setListener(listener);
+    }
+
+    @Override
+    public int getBufferFill() {
+        DataPrefetcher p = prefetcher;
+        return p == null ? -1 : p.getFillPercent();
+    }
+
+    @Override
+    public boolean isBuffering() {
+        DataPrefetcher p = prefetcher;
+        return p != null && p.isBuffering();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public synchronized int read(byte buffer[], int byteOffset, int byteCount) {
+        DataPrefetcher p = prefetcher;
+        if (p == null) return DATA_SRC_INVALID;
+        try {
+            // only copies from the read-ahead buffer
+            return counted(p.read(buffer, byteOffset, byteCount));
+        } catch (IOException e) {
+            Log.d(TAG, "InputStream exception:" + e.getMessage());
+        }
+        return DATA_SRC_INVALID;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer, int byteOffset, int byteCount) {
+        DataPrefetcher p = prefetcher;
+        if (p == null) return DATA_SRC_INVALID;
+        try {
+            return counted(p.read(buffer, byteOffset, byteCount));
+        } catch (IOException e) {
+            Log.d(TAG, "InputStream exception:" + e.getMessage());
+        }
+        return DATA_SRC_INVALID;
+    }
+
+    private int counted(int bytes) {
+        if (bytes == -1) return DATA_SRC_FINISHED;
+        readoffset += bytes;
+        if (titleListener != null) {
+            StreamTitle reached = null;
+            synchronized (titles) {
+                while (!titles.isEmpty() && titles.peek().offset <= readoffset) reached = titles.poll();
+            }
+            if (reached != null) titleListener.onStreamTitle(reached.title);
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized boolean seekTo(long offset) {
+        // a live stream has nowhere to go
+        if (prefetcher == null || length <= 0 || offset < 0 || offset > length) return false;
+        // whatever was read ahead belongs to the old position; the new stream only connects where
+        // there is no cached data, on the connection the old one drains once its prefetcher closes it
+        CachedRemoteStream previous = (inputStream instanceof CachedRemoteStream) ? (CachedRemoteStream) inputStream : null;
+        inputStream = new CachedRemoteStream(this, cacheEntry, offset, length, null, 0, previous);
+        readoffset = offset;
+        Log.d(TAG, "Skip reconnect to:" + offset);
+        startPrefetch();
+        return true;
+    }
+
+    @Override
+    public SeekIndex.PageReader openPageReader() {
+        if (prefetcher == null || length <= 0) return null;
+        final DownloadCache.Entry cache = cacheEntry;
+        final long sourceLength = length;
+        return new SeekIndex.PageReader() {
+            @Override
+            public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+                length = (int) Math.max(0, Math.min(length, sourceLength - position));
+                if (length == 0) return 0;
+                if (cache != null && cache.cachedUntil(position) >= position + length)
+                    return cache.read(position, buffer, offset, length);
+
+                HttpURLConnection cn = connect(position, position + length);
+                // a server ignoring the range sends the whole file, that is no use here
+                if (cn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    cn.disconnect();
+                    throw new IOException("range request not supported:" + cn.getResponseCode());
+                }
+                InputStream is = cn.getInputStream();
+                int total = 0;
+                try {
+                    while (total < length) {
+                        int read = is.read(buffer, offset + total, length - total);
+                        if (read == -1) break;
+                        total += read;
+                    }
+                } finally {
+                    // read to its end and closed, the connection goes back to the pool
+                    is.close();
+                }
+                if (cache != null) cache.write(position, buffer, offset, total);
+                return total;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
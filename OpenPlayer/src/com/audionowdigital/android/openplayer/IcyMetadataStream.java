@@ -0,0 +1,126 @@
+/*
+ * IcyMetadataStream.java - Takes the inline ICY metadata out of a SHOUTcast/Icecast stream
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Asked for with an "Icy-MetaData: 1" request header, the server puts a metadata block after every
+ * icy-metaint bytes of audio: one length byte (in units of 16 bytes) and the text, such as
+ * "StreamTitle='Artist - Song';StreamUrl='';". Only the audio bytes are returned, so the Ogg
+ * sync layer never sees the metadata.
+ */
+
+class IcyMetadataStream extends FilterInputStream {
+
+    /**
+     * Receives the stream title each time it changes, on the reading thread
+     */
+    interface Listener {
+        public void onStreamTitle(String title);
+    }
+
+    private static final String TITLE_START = "StreamTitle='";
+
+    private final int metaInterval;
+    private final Listener listener;
+
+    // audio bytes left before the next metadata block
+    private int untilMetadata;
+    private final byte[] metadata = new byte[255 * 16];
+    private String title;
+
+    /**
+     * @param in           the response stream
+     * @param metaInterval the icy-metaint response header
+     */
+    IcyMetadataStream(InputStream in, int metaInterval, Listener listener) {
+        super(in);
+        this.metaInterval = metaInterval;
+        this.listener = listener;
+        untilMetadata = metaInterval;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) return 0;
+        if (untilMetadata == 0) {
+            if (!readMetadata()) return -1;
+        }
+        int n = in.read(buffer, offset, Math.min(count, untilMetadata));
+        if (n > 0) untilMetadata -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] discard = new byte[(int) Math.min(n, 4096)];
+        int read = read(discard, 0, discard.length);
+        return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(in.available(), untilMetadata);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return false if the stream ended right before the block
+     */
+    private boolean readMetadata() throws IOException {
+        int blocks = in.read();
+        if (blocks < 0) return false;
+        int length = blocks * 16;
+        int fill = 0;
+        while (fill < length) {
+            int n = in.read(metadata, fill, length - fill);
+            if (n < 0) throw new EOFException("stream ended inside a metadata block");
+            fill += n;
+        }
+        untilMetadata = metaInterval;
+        // an empty block: nothing changed
+        if (length > 0) parse(length);
+        return true;
+    }
+
+    private void parse(int length) {
+        // zero padded to the block size
+        while (length > 0 && metadata[length - 1] == 0) length--;
+        String text;
+        try {
+            text = new String(metadata, 0, length, "UTF-8");
+        } catch (IOException e) {
+            return;
+        }
+        int start = text.indexOf(TITLE_START);
+        if (start < 0) return;
+        start += TITLE_START.length();
+        int end = text.indexOf("';", start);
+        if (end < 0) end = text.lastIndexOf('\'');
+        if (end < start) return;
+        String value = text.substring(start, end);
+        if (value.equals(title)) return;
+        title = value;
+        if (listener != null) listener.onStreamTitle(value);
+    }
+}
@@ -12,10 +12,16 @@ import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.media.audiofx.Visualizer;
+import android.os.Build;
 import android.util.Log;
 
 import com.audionowdigital.android.openplayer.Player.DecoderType;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
 /**
  * Created by radhoo on /14.
  */
@@ -34,9 +40,10 @@ public class ImplDecodeFeed implements DecodeFeed {
 	 */
 	protected PlayerEvents events;
     /**
-     * The audio track to write the raw pcm bytes to
+     * The audio track to write the raw pcm bytes to, float samples when floatTrack is set
      */
     protected AudioTrack audioTrack;
+    private boolean floatTrack;
 
     /**
      * The visualizer used to get waveform/fft for audio
@@ -44,20 +51,181 @@ public class ImplDecodeFeed implements DecodeFeed {
     private Visualizer visualizer;
 
     /**
-     * The input stream to decode from
+     * The input stream to decode from, replaced by the decoder thread when it moves on to a queued track
+     */
+    protected volatile DataSource data;
+    protected volatile long streamSecondsLength;
+
+    /**
+     * Tracks to play once the current one ends, fed to the same decode loop as one chained stream
+     */
+    private final TrackQueue queue;
+
+    /**
+     * Page granule positions of the current source, gathered as the decoder reads it, used to seek to exact times
+     */
+    private volatile SeekIndex seekIndex;
+    private volatile OggPageScanner pageScanner;
+
+    /**
+     * Keeps the seek index of played tracks on disk, null if not set. The key the current index is stored under
+     */
+    private volatile SeekIndexCache indexCache;
+    private String indexKey;
+
+    /**
+     * Seek target in milliseconds, applied by the decoder thread before its next read, else -1
      */
-    protected DataSource data;
-    protected long streamSecondsLength;
+    private long pendingSeekMs = -1;
 
     /**
-     * The amount of written pcm data to the audio track
+     * Guards the position below: seeks and track changes move it, the thread writing to the AudioTrack advances it
+     */
+    private final Object positionLock = new Object();
+
+    /**
+     * Whether writtenMiliSeconds counts from a known time, false after a seek by byte offset
+     */
+    private boolean exactPosition = true;
+
+    /**
+     * The amount of written pcm data to the audio track, in samples since progressBaseMs
      */
     protected long writtenPCMData = 0;
 
     /**
-     * Track seconds or for how many seconds have we been playing
+     * The position writtenPCMData counts from: the track start or the last seek
      */
-    protected long writtenMiliSeconds = 0;
+    protected long progressBaseMs = 0;
+
+    /**
+     * Track seconds or for how many seconds have we been playing, read without the lock
+     */
+    protected volatile long writtenMiliSeconds = 0;
+
+    /**
+     * Where the output reaches a new position, tagged on the PCM ring at the first sample of it
+     */
+    private static final class PositionMark {
+        final long ms;
+        final boolean exact, report;
+
+        PositionMark(long ms, boolean exact, boolean report) {
+            this.ms = ms;
+            this.exact = exact;
+            this.report = report;
+        }
+    }
+
+    /**
+     * How far ahead of the audio output the decoder may run, in milliseconds. 0 writes to the AudioTrack from the decoder thread
+     */
+    public static final int DEFAULT_BUFFER_MS = 500;
+    protected int bufferMs = DEFAULT_BUFFER_MS;
+    private static final int MIN_BUFFER_SAMPLES = 16 * 1024;
+
+    /**
+     * Drains the decoded PCM into the AudioTrack, null when writing directly
+     */
+    private PCMOutputThread outputThread;
+
+    /**
+     * Opens the data sources, with the read-ahead size, download cache and timeouts set on it
+     */
+    protected final DataSourceRegistry sources = new DataSourceRegistry();
+
+    /**
+     * Forwards the read-ahead fill level of remote sources to the client
+     */
+    private final DataPrefetcher.Listener prefetchListener = new DataPrefetcher.Listener() {
+        @Override
+        public void onBufferFill(int percent, boolean buffering) {
+            // the decoder emptied the read-ahead buffer: buffering until it is refilled to its high watermark,
+            // not at the first bytes back, the decoded audio keeps playing
+            if (buffering) playerState.transition(PlayerStates.PLAYING, PlayerStates.BUFFERING);
+            else playerState.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING);
+            events.sendEvent(PlayerEvents.BUFFER_UPDATE, percent);
+        }
+    };
+
+    /**
+     * Called once resumed from a pause: a buffering change reported while paused left the state alone, the
+     * source tells whether it is still refilling
+     */
+    void resumeBuffering() {
+        DataSource source = data;
+        if (source == null || !source.isBuffering()) return;
+        if (!playerState.transition(PlayerStates.PLAYING, PlayerStates.BUFFERING)) return;
+        // refilled meanwhile: its report may have come before the state changed
+        if (!source.isBuffering()) playerState.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING);
+    }
+
+    /**
+     * Sends the title changes of live streams to the client, with the rest of the track info of the stream
+     */
+    private final HttpDataSource.StreamTitleListener streamTitleListener = new HttpDataSource.StreamTitleListener() {
+        @Override
+        public void onStreamTitle(String title) {
+            DecodeStreamInfo info = streamInfo;
+            if (info == null) {
+                events.sendEvent(PlayerEvents.TRACK_INFO, null, title, null, null, null, null);
+                return;
+            }
+            events.sendEvent(PlayerEvents.TRACK_INFO, info.getVendor(), title, info.getArtist(), info.getAlbum(),
+                    info.getDate(), info.getTrack());
+        }
+    };
+
+    /**
+     * Let the native decoders write PCM into a direct buffer instead of a short[]
+     */
+    protected boolean directPCM = true;
+
+    /**
+     * Dither the 16 bit conversion of the float decoders
+     */
+    protected boolean dither = false;
+
+    /**
+     * Pass the float decoders' samples to a float AudioTrack, without the conversion to 16 bit. Only since Lollipop,
+     * floatPCM is what the running decode loop and the current AudioTrack use
+     */
+    protected boolean floatOutput = false;
+    private volatile boolean floatPCM = false;
+
+    /**
+     * How much PCM the native decoders gather in the direct buffer before handing it over, in milliseconds
+     */
+    public static final int DEFAULT_BATCH_MS = 100;
+    protected int batchMs = DEFAULT_BATCH_MS;
+    private int pcmBatchSamples = 0;
+
+    /**
+     * Direct buffer the native decoders write the PCM to, with short and float views over it, and a fallback array for pre-Lollipop AudioTracks.
+     * Sized to the batch plus room for the largest decoded frame: a 120ms Opus packet, at least the 8192 samples the other decoders write at once
+     */
+    private static final int PCM_BUFFER_SAMPLES = 8192;
+    private static final int MAX_FRAME_MS = 120;
+    private ByteBuffer pcmBuffer;
+    private ShortBuffer pcmShorts;
+    private FloatBuffer pcmFloats;
+    private short[] pcmArray;
+
+    /**
+     * Counts the PCM bytes copied on their way from the decoder to the AudioTrack
+     */
+    private final CopyCounter copyCounter = new CopyCounter("PCM");
+
+    /**
+     * Position reported by the decoder with the last PCM block (MX decoder), else -1. Decoder thread only
+     */
+    private int decoderSeconds = -1;
+
+    /**
+     * A source was set and its decoder thread started, but it has not read the header yet. Set on the
+     * caller's thread before the decoder thread starts, so a stop in between is not lost. Guarded by this
+     */
+    private boolean startPending = false;
 
     /**
      * Stream info as reported in the header 
@@ -87,14 +255,249 @@ public class ImplDecodeFeed implements DecodeFeed {
     	this.playerState = playerState;
         this.events = events;
         this.type = type;
-        //this.type = type;
+        // MediaExtractor downloads remote tracks itself
+        queue = new TrackQueue(type == DecoderType.MX);
         lastError = ERR_SUCCESS;
+        sources.setStreamTitleListener(streamTitleListener);
 	}
 
     public int getLastError() {
         return lastError;
     }
 
+    /**
+     * Sets the decoder run-ahead, applied when the next track starts
+     * @param ms the size of the PCM buffer in milliseconds, 0 to disable it
+     */
+    public void setBufferMs(int ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("Buffer size must not be negative");
+        }
+        bufferMs = ms;
+    }
+
+    /**
+     * Selects how the native decoders pass PCM, applied when the next track starts
+     * @param direct true to decode into a direct buffer, false to copy through a short[]
+     */
+    public void setDirectPCMOutput(boolean direct) {
+        directPCM = direct;
+    }
+
+    /**
+     * Sets how much PCM the native decoders gather before each hand over, applied when the next track starts.
+     * Only used with direct PCM output
+     * @param ms the batch length in milliseconds, 0 to hand over every decoded frame
+     */
+    public void setBatchMs(int ms) {
+        if (ms < 0) {
+            throw new IllegalArgumentException("Batch size must not be negative");
+        }
+        batchMs = ms;
+    }
+
+    /**
+     * Turns dithering on or off for the float decoders, applied when the next track starts
+     */
+    public void setDither(boolean dither) {
+        this.dither = dither;
+    }
+
+    /**
+     * Turns float output on or off, applied when the next track starts. Without Lollipop the output stays 16 bit
+     */
+    public void setFloatOutput(boolean floatOutput) {
+        this.floatOutput = floatOutput;
+    }
+
+    /**
+     * @return the PCM bytes copied per second between the decoder and the AudioTrack, over the last second
+     */
+    public long getPCMCopyRate() {
+        return copyCounter.getBytesPerSecond();
+    }
+
+    /**
+     * Sets the read-ahead buffer size for remote sources, applied to the next data source
+     * @param bytes the buffer capacity in bytes
+     */
+    public void setPrefetchSize(int bytes) {
+        sources.setPrefetchCapacity(bytes);
+    }
+
+    /**
+     * Keeps the downloaded parts of remote sources on disk, applied to the next data source
+     * @param cache the cache, null to not keep them
+     */
+    public void setDownloadCache(DownloadCache cache) {
+        sources.setDownloadCache(cache);
+    }
+
+    /**
+     * @return the registry the data sources are opened with, to add app-supplied sources or change the timeouts
+     */
+    public DataSourceRegistry getDataSources() {
+        return sources;
+    }
+
+    /**
+     * @return the length in seconds of the track playing, or -1 if not available
+     */
+    public long getStreamSecondsLength() {
+        return streamSecondsLength;
+    }
+
+    /**
+     * Queues a track to play right after the current one, without a gap when it has the same format
+     * @param path the file path or the url
+     * @param streamSecondsLength the total size in seconds of this stream, 0 to find it from the end of the file, or -1 if not available (live streams)
+     */
+    public void enqueue(String path, long streamSecondsLength) {
+        if (path == null) {
+            throw new IllegalArgumentException("Path to decode must not be null.");
+        }
+        queue.add(path, streamSecondsLength);
+        // a track is already decoding, get this one ready while it plays
+        if (!playerState.isStopped()) queue.preopen(sources);
+    }
+
+    /**
+     * Drops all queued tracks
+     */
+    public void clearQueue() {
+        queue.clear();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Makes the next queued track the data source, for a decode loop about to start
+     * @return false if the queue is empty
+     */
+    public boolean setNextData() {
+        TrackQueue.Track next = queue.poll();
+        if (next == null) return false;
+        lastError = ERR_SUCCESS;
+        streamSecondsLength = next.streamSecondsLength;
+        data = queue.open(next, sources);
+        data.setPrefetchListener(prefetchListener);
+        indexSource();
+        synchronized (this) {
+            startPending = true;
+        }
+        if (!data.isSourceValid())
+            lastError = ERR_DATASOURCE;
+        return true;
+    }
+
+    /**
+     * Called from the decoder thread once the current source is finished: moves on to the next queued track.
+     * The native decoder keeps reading and sees the next file as a new chained stream
+     * @return false if there is nothing to continue with
+     */
+    private boolean advanceQueue() {
+        // a stopped player is not to be continued, the queue is left for the next start
+        if (playerState.isStopped()) return false;
+        TrackQueue.Track next;
+        while ((next = queue.poll()) != null) {
+            DataSource source = queue.open(next, sources);
+            if (!source.isSourceValid()) {
+                Log.e(TAG, "queued track could not be opened, skipping:" + next.path);
+                source.release();
+                continue;
+            }
+            Log.d(TAG, "continuing with queued track:" + next.path);
+            DataSource finished = data;
+            source.setPrefetchListener(prefetchListener);
+            // the new source only reports changes of its fill: it may be full already, or be local and never report
+            int fill = source.getBufferFill();
+            if (fill != 0) playerState.transition(PlayerStates.BUFFERING, PlayerStates.PLAYING);
+            if (fill > 0) events.sendEvent(PlayerEvents.BUFFER_UPDATE, fill);
+            data = source;
+            streamSecondsLength = next.streamSecondsLength;
+            indexSource();
+            finished.release();
+            // and the one after it
+            queue.preopen(sources);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts the seek index for a source read from its beginning, from the cache when it was played before.
+     * Without a stored length, the last pages are looked up in the background
+     */
+    private void indexSource() {
+        // the index of the source we leave
+        saveIndex();
+        // a source without a length is live, whatever length was given with it
+        if (data.isSourceValid() && data.getSourceLength() < 0) streamSecondsLength = -1;
+
+        SeekIndexCache cache = indexCache;
+        String key = (cache != null) ? data.getCacheKey() : null;
+        SeekIndex index = (key != null) ? cache.load(key) : null;
+        if (index == null) index = new SeekIndex();
+        synchronized (this) {
+            pendingSeekMs = -1;
+            indexKey = key;
+        }
+        seekIndex = index;
+        pageScanner = new OggPageScanner(index);
+
+        if (!applyIndexDuration(index)) findEndInBackground(data, index);
+    }
+
+    /**
+     * Uses the exact length from the index over the one given with the source, live streams are left alone
+     * @return false if the index does not know the length yet
+     */
+    private boolean applyIndexDuration(SeekIndex index) {
+        long ms = index.getDurationMs();
+        if (ms < 0) return false;
+        if (seekIndex == index && streamSecondsLength >= 0) {
+            Log.d(TAG, "index duration ms:" + ms + " given seconds:" + streamSecondsLength);
+            streamSecondsLength = (ms + 500) / 1000;
+        }
+        return true;
+    }
+
+    private void findEndInBackground(final DataSource source, final SeekIndex index) {
+        if (streamSecondsLength < 0) return;
+        final SeekIndex.PageReader reader = source.openPageReader();
+        if (reader == null) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (index.findEnd(reader, source.getSourceLength())) applyIndexDuration(index);
+                reader.close();
+            }
+        }, "SeekIndex").start();
+    }
+
+    /**
+     * Stores the current seek index, if there is a cache and it learned something new
+     */
+    private void saveIndex() {
+        SeekIndexCache cache = indexCache;
+        SeekIndex index = seekIndex;
+        String key;
+        synchronized (this) {
+            key = indexKey;
+        }
+        if (cache != null && key != null && index != null) cache.save(key, index);
+    }
+
+    /**
+     * Keeps seek indexes and track lengths on disk, takes effect with the next data source
+     * @param cache the cache, null to not keep them
+     */
+    public void setIndexCache(SeekIndexCache cache) {
+        indexCache = cache;
+    }
+
     /**
      * Polls the current stream playing position in seconds
      * @return the second where the current play position is in the stream
@@ -106,7 +509,7 @@ public class ImplDecodeFeed implements DecodeFeed {
     /**
      * init the player data source using a string containing either a file absolute location or an url
      * @param path the file path or the url
-     * @param streamSecondsLength the total size in seconds of this stream or -1 if not available (live streams)
+     * @param streamSecondsLength the total size in seconds of this stream, 0 to find it from the end of the file, or -1 if not available (live streams)
      */
     public void setData(String path, long streamSecondsLength) {
         lastError = ERR_SUCCESS;
@@ -123,7 +526,12 @@ public class ImplDecodeFeed implements DecodeFeed {
             this.inputStream = new BufferedInputStream(streamToDecode);
         } else {*/
         Log.d(TAG, "Creating a new data source obj");
-        data = new DataSource(path);
+        data = (type == DecoderType.MX) ? sources.openPathOnly(path) : sources.open(path);
+        data.setPrefetchListener(prefetchListener);
+        indexSource();
+        synchronized (this) {
+            startPending = true;
+        }
 
         if (!data.isSourceValid())
             lastError = ERR_DATASOURCE;
@@ -135,26 +543,23 @@ public class ImplDecodeFeed implements DecodeFeed {
     }
     
     /**
-     * A pause mechanism that would block current thread when pause flag is set (READY_TO_PLAY)
+     * A pause mechanism that would block current thread when pause flag is set (READY_TO_PLAY).
+     * Called for every read and write, so unless paused it is a single volatile read
      */
-    public synchronized void waitPlay(){
-        while(playerState.get() == PlayerStates.READY_TO_PLAY) {
-            if (streamSecondsLength == -1){
-                writtenMiliSeconds = 0;
-            }
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    public void waitPlay(){
+        if (!playerState.isReadyToPlay()) return;
+        if (streamSecondsLength == -1){
+            moveProgress(0, true, true);
         }
+        playerState.awaitNotPaused();
     }
     
     /**
-     * Call notify to control the PAUSE (waiting) state, when the state is changed
+     * Wakes the threads paused in {@link #waitPlay()} to check the state again, state changes already do
      */
-    public synchronized void syncNotify() {
-    	notify();
+    public void syncNotify() {
+    	// both the decoder and the output thread may be waiting
+    	playerState.wakeWaiters();
     }
     
     /**
@@ -165,37 +570,44 @@ public class ImplDecodeFeed implements DecodeFeed {
      * @return the amount actually written
      */
     @Override public int onReadEncodedData(byte[] buffer, int amountToWrite) {
-        if ((data == null) || !data.isSourceValid()) {
-    		Log.d(TAG, "onReadEncodedData called, but source is invalid");
-           	return 0;
-    	}
-    	//Log.d(TAG, "onReadOpusData call: " + amountToWrite);
-        //If the player is not playing or reading the header, return 0 to end the native decode method
-        if (playerState.get() == PlayerStates.STOPPED) {
-        	Log.d(TAG, "onReadEncodedData called, but we are stopped");
-            return 0;
-        }
+        if (!prepareRead()) return buffer == null ? -1 : 0;
 
-        waitPlay();
-        
         if (buffer == null) return 0;
         
         //Otherwise read from the file
         try {
             int read = data.read(buffer, 0, amountToWrite);
+            // -2 is the end of the source, carry on with the next queued one
+            while (read == -2 && advanceQueue()) read = data.read(buffer, 0, amountToWrite);
+            if (read > 0) pageScanner.feed(buffer, 0, read);
+            return checkRead(read);
+        } catch (Exception e) {
+            //There was a problem reading from the file
+            Log.e(TAG, "Failed to read encoded data from file, abort. Total:" + streamSecondsLength + " written:" + writtenMiliSeconds, e);
+            lastError = ERR_DATASOURCE;
+            return 0;
+        }
+    }
 
+    /**
+     * Triggered from the native that is requesting to read the next bit of encoded data directly into its input buffer
+     *
+     * @param buffer        a direct buffer over the native input buffer
+     * @param offset        where to start writing in the buffer
+     * @param amountToWrite the amount of encoded data to write
+     * @return the amount actually written
+     */
+    @Override public int onReadEncodedData(ByteBuffer buffer, int offset, int amountToWrite) {
+        if (!prepareRead()) return 0;
 
-            if (read == -1) {
-                Log.d(TAG, "Data read exception");
-                lastError = ERR_DATASOURCE;
-            }
-
-            if (read == -2) {
-                // end of stream reached, but no error
-                Log.d(TAG, "Data read end of stream");
-            }
+        if (buffer == null) return 0;
 
-            return (read <= 0)? 0 : read;
+        try {
+            int read = data.read(buffer, offset, amountToWrite);
+            // -2 is the end of the source, carry on with the next queued one
+            while (read == -2 && advanceQueue()) read = data.read(buffer, offset, amountToWrite);
+            if (read > 0) pageScanner.feed(buffer, offset, read);
+            return checkRead(read);
         } catch (Exception e) {
             //There was a problem reading from the file
             Log.e(TAG, "Failed to read encoded data from file, abort. Total:" + streamSecondsLength + " written:" + writtenMiliSeconds, e);
@@ -204,8 +616,48 @@ public class ImplDecodeFeed implements DecodeFeed {
         }
     }
 
+    /**
+     * Common checks before a read, blocks while paused
+     * @return false if the native decode loop should end
+     */
+    private boolean prepareRead() {
+        if ((data == null) || !data.isSourceValid()) {
+    		Log.d(TAG, "onReadEncodedData called, but source is invalid");
+           	return false;
+    	}
+    	//Log.d(TAG, "onReadOpusData call: " + amountToWrite);
+        //If the player is not playing or reading the header, return 0 to end the native decode method
+        if (playerState.get() == PlayerStates.STOPPED) {
+        	Log.d(TAG, "onReadEncodedData called, but we are stopped");
+            return false;
+        }
+
+        waitPlay();
+        applySeek();
+        return true;
+    }
+
+    /**
+     * Maps the data source read result to the amount returned to the native decoder
+     */
+    private int checkRead(int read) {
+        if (read == -1) {
+            Log.d(TAG, "Data read exception");
+            lastError = ERR_DATASOURCE;
+        }
+
+        if (read == -2) {
+            // end of stream reached, but no error
+            Log.d(TAG, "Data read end of stream");
+        }
+
+        return (read <= 0)? 0 : read;
+    }
+
     /**
      * Called to change the current read position for the InputStream.
+     * The decoder thread moves the source on its next read, see {@link #applySeek()}, and the
+     * position follows once the output gets to the audio from there
      * @throws java.lang.IllegalStateException for live streams.
      * @param percent - percentage where to seek
      */
@@ -218,22 +670,52 @@ public class ImplDecodeFeed implements DecodeFeed {
         if (data == null)
             return;
 
-        long seekPosition = percent * data.getSourceLength() / 100;
-        if (data.isSourceValid()) {
-            try {
-                if (audioTrack != null) audioTrack.flush();
-                //inputStream.reset();
-                //data.seekTo()
-                data.skip(seekPosition);
-                writtenMiliSeconds = percent * streamSecondsLength * 10; // that is /100 * 1000 - save in millis for now.
-
-                Log.d(TAG,"SKIP_POS  percent:" + percent + " new_offset:" + seekPosition + " orig_source_len:" +  data.getSourceLength()+
-                        "new_sec:"+ writtenMiliSeconds + " Min:"+ (writtenMiliSeconds / 60000) + ":"+((writtenMiliSeconds/1000)%60) );
-
-            } catch (Exception e) {
-                lastError = ERR_DATASOURCE;
-            	e.printStackTrace();
+        long ms = percent * streamSecondsLength * 10; // that is /100 * 1000 - save in millis for now.
+        // the decoder may pick this up right away
+        synchronized (this) {
+            pendingSeekMs = ms;
+        }
+    }
+
+    /**
+     * Moves the source to the pending seek target, on the decoder thread between two reads.
+     * The seek index gives the page where the target time starts, looking it up in the source if
+     * it was not read that far yet. Without it, the position is estimated from the byte offset.
+     */
+    private void applySeek() {
+        long ms;
+        synchronized (this) {
+            ms = pendingSeekMs;
+            pendingSeekMs = -1;
+        }
+        if (ms < 0) return;
+
+        DataSource source = data;
+        SeekIndex.PageReader reader = source.openPageReader();
+        SeekIndex.SeekPoint point = seekIndex.find(ms, reader, source.getSourceLength());
+        if (reader != null) reader.close();
+
+        try {
+            boolean exact = point != null && source.seekTo(point.offset);
+            if (exact) {
+                pageScanner.reset(point.offset, true);
+                ms = point.ms;
+            } else {
+                long seekPosition = streamSecondsLength > 0 ? ms * source.getSourceLength() / (streamSecondsLength * 1000) : 0;
+                source.skip(seekPosition);
+                pageScanner.reset(source.getReadOffset(), false);
             }
+            // the old position still in the ring is dropped, the new one starts with the next write
+            PCMOutputThread output = outputThread;
+            if (output != null) output.getRing().clear();
+            moveOutputTo(ms, exact, true);
+
+            Log.d(TAG,"SKIP_POS  target:" + ms + " new_offset:" + source.getReadOffset() + " indexed:" + (point != null) +
+                    " orig_source_len:" +  source.getSourceLength()+
+                    " new_sec:"+ ms + " Min:"+ (ms / 60000) + ":"+((ms/1000)%60) );
+        } catch (Exception e) {
+            lastError = ERR_DATASOURCE;
+            e.printStackTrace();
         }
     }
 
@@ -249,42 +731,270 @@ public class ImplDecodeFeed implements DecodeFeed {
     public void onWritePCMData(short[] pcmData, int amountToRead, int currentSeconds) {
     	//Log.e(TAG, "currentSeconds:"+currentSeconds);
     	waitPlay();
-			
+
+        markDecoderTime(currentSeconds);
+        // native decoders copied the samples into the java array to get here
+        if (currentSeconds == -1 && amountToRead > 0) copyCounter.add(amountToRead * 2);
+        PCMOutputThread output = outputThread;
+        if (output != null) {
+            // hand over to the output thread, this only blocks when we are a full buffer ahead
+            if (pcmData != null && amountToRead > 0) {
+                output.getRing().write(pcmData, 0, amountToRead);
+                copyCounter.add(amountToRead * 2);
+            }
+            return;
+        }
+        writeAudioTrack(pcmData, 0, amountToRead);
+    }
+
+    /**
+     * Triggered from the native instead of {@link #onWritePCMData(short[], int, int)} in float output
+     */
+    @Override
+    public void onWritePCMFloatData(float[] pcmData, int amountToRead, int currentSeconds) {
+        waitPlay();
+
+        markDecoderTime(currentSeconds);
+        if (amountToRead > 0) copyCounter.add(amountToRead * 4);
+        PCMOutputThread output = outputThread;
+        if (output != null) {
+            if (pcmData != null && amountToRead > 0) {
+                output.getRing().write(pcmData, 0, amountToRead);
+                copyCounter.add(amountToRead * 4);
+            }
+            return;
+        }
+        writeAudioTrack(pcmData, 0, amountToRead);
+    }
+
+    /**
+     * Called by the native decoders to get the direct buffer they decode into
+     * @return the buffer, or null to have the PCM passed as short[] to {@link #onWritePCMData(short[], int, int)}
+     */
+    @Override
+    public ByteBuffer getPCMBuffer() {
+        if (!directPCM) {
+            pcmBatchSamples = 0;
+            return null;
+        }
+        pcmBatchSamples = (streamInfo != null) ? convertMsToSamples(batchMs) : 0;
+        int capacity = (pcmBatchSamples + Math.max(PCM_BUFFER_SAMPLES, (streamInfo != null) ? convertMsToSamples(MAX_FRAME_MS) : 0)) * getSampleBytes();
+        if (pcmBuffer == null || pcmBuffer.capacity() < capacity) {
+            pcmBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            pcmShorts = pcmBuffer.asShortBuffer();
+            pcmFloats = pcmBuffer.asFloatBuffer();
+        }
+        return pcmBuffer;
+    }
+
+    /**
+     * Called by the native decoders right after {@link #getPCMBuffer()}
+     * @return the number of samples to gather in the direct buffer before calling {@link #onWritePCMBuffer(int, int)}
+     */
+    @Override
+    public int getPCMBatchSize() {
+        return pcmBatchSamples;
+    }
+
+    /**
+     * Surround tracks go to the AudioTrack as they are since Lollipop, which mixes them down for stereo outputs itself
+     * @return up to 5.1 since Lollipop, else stereo
+     */
+    @Override
+    public int getMaxChannels() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? 6 : 2;
+    }
+
+    @Override
+    public boolean isDithered() {
+        return dither;
+    }
+
+    /**
+     * Float AudioTracks only came with Lollipop. Asked once per decode loop, the mode holds until it ends
+     */
+    @Override
+    public boolean isFloatOutput() {
+        floatPCM = floatOutput && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        return floatPCM;
+    }
+
+    /**
+     * @return the size of the samples the natives write, 4 bytes in float output
+     */
+    private int getSampleBytes() {
+        return floatPCM ? 4 : 2;
+    }
+
+    /**
+     * Triggered from the native once it decoded the next bit of raw PCM data into the buffer from {@link #getPCMBuffer()}
+     *
+     * @param amountToRead the number of samples available at the start of the buffer
+     * @param currentSeconds if progress is known, we will push it here, else -1
+     */
+    @Override
+    public void onWritePCMBuffer(int amountToRead, int currentSeconds) {
+        waitPlay();
+
+        markDecoderTime(currentSeconds);
+        if (amountToRead <= 0) return;
+        PCMOutputThread output = outputThread;
+        if (output != null) {
+            // the only copy left: from native memory into the ring
+            if (output.getRing().isFloat()) {
+                pcmFloats.clear();
+                output.getRing().write(pcmFloats, amountToRead);
+            } else {
+                pcmShorts.clear();
+                output.getRing().write(pcmShorts, amountToRead);
+            }
+            copyCounter.add(amountToRead * getSampleBytes());
+            return;
+        }
+        writeAudioTrack(pcmBuffer, amountToRead);
+    }
+
+    /**
+     * Writes PCM straight from a direct buffer, older platforms have no ByteBuffer write and go through a short[].
+     * Float output is never on there
+     */
+    private void writeAudioTrack(ByteBuffer buffer, int amount) {
+        AudioTrack track = audioTrack;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            if (pcmArray == null || pcmArray.length < amount) pcmArray = new short[amount];
+            pcmShorts.clear();
+            pcmShorts.get(pcmArray, 0, amount);
+            copyCounter.add(amount * 2);
+            writeAudioTrack(pcmArray, 0, amount);
+            return;
+        }
+        if (amount > 0 && track != null && !playerState.isStopped()) {
+            int bytes = amount * getSampleBytes();
+            buffer.clear();
+            buffer.limit(bytes);
+            track.write(buffer, bytes, AudioTrack.WRITE_BLOCKING);
+            updateProgress(amount);
+        } else {
+            Log.e("DataSource", "audio track error");
+        }
+    }
+
+    /**
+     * Writes PCM to the AudioTrack and accounts for the progress, called from the output thread or directly from the decoder.
+     * A pause that came in after {@link #waitPlay()} still lets this write through, only a stop drops it
+     *
+     * @param pcmData the raw pcm data
+     * @param offset  where the data starts in pcmData
+     * @param amount  the number of samples to write
+     */
+    void writeAudioTrack(short[] pcmData, int offset, int amount) {
+        AudioTrack track = audioTrack;
         //If we received data and are playing, write to the audio track
-        if (pcmData != null && amountToRead > 0 && audioTrack != null && playerState.isPlaying()) {
-            audioTrack.write(pcmData, 0, amountToRead);
+        if (pcmData != null && amount > 0 && track != null && !playerState.isStopped()) {
+            track.write(pcmData, offset, amount);
             //Log.d("DataSource", "audio track write");
-            if (currentSeconds == -1) {
-	            // count data
-	            writtenPCMData += amountToRead;
-	            writtenMiliSeconds += convertBytesToMs(amountToRead);
-
-
-	            /*
-	             * The idea here is we are loosing some seconds when the packages can't be decoded (on seek, when jumping in the middle of a package), so the overall time count is behind the real position
-	             * So when we know the time size of a stream, we can simply keep count of the bytes read form the source, and compute the time position proportionally
-	             */
-	            if (streamSecondsLength > 0 && data.getSourceLength() > 0) {       
-	            	writtenMiliSeconds = (data.getReadOffset() * streamSecondsLength * 1000) / data.getSourceLength();
-	            }
-	        } else {
-	            writtenMiliSeconds = currentSeconds * 1000;
-            }
-            // streamSecondsLength contains given stream length in seconds
-            // data.getSourceLength() contains detected stream length in bytes
+            updateProgress(amount);
+        } else {
+            Log.e("DataSource", "audio track error");
+        }
+    }
 
-            // send a notification of progress
-            events.sendEvent(PlayerEvents.PLAY_UPDATE, (int) (writtenMiliSeconds / 1000));
-            
-            // at this point we know all stream parameters, including the sampleRate, use it to compute current time.
-            //Log.e(TAG, "sample rate: " + streamInfo.getSampleRate() + " " + streamInfo.getChannels() + " " + streamInfo.getVendor() +  " time:" + writtenMiliSeconds + " bytes:" + writtenPCMData);
-        
+    /**
+     * Same as {@link #writeAudioTrack(short[], int, int)} for a float AudioTrack
+     */
+    void writeAudioTrack(float[] pcmData, int offset, int amount) {
+        AudioTrack track = audioTrack;
+        if (pcmData != null && amount > 0 && track != null && !playerState.isStopped()) {
+            track.write(pcmData, offset, amount, AudioTrack.WRITE_BLOCKING);
+            updateProgress(amount);
         } else {
             Log.e("DataSource", "audio track error");
         }
     }
 
+    /**
+     * Moves the progress to the given position, the samples written afterwards count from there
+     * @param exact false if the position is only estimated from the source offset
+     * @param report true to report it even when it lands in the step reported last, for a seek or a new track
+     */
+    private void moveProgress(long ms, boolean exact, boolean report) {
+        synchronized (positionLock) {
+            progressBaseMs = ms;
+            writtenPCMData = 0;
+            writtenMiliSeconds = ms;
+            exactPosition = exact;
+        }
+        if (report) events.resetProgress();
+    }
+
+    /**
+     * Moves the progress where the PCM written next reaches the AudioTrack: at once when the decoder writes to it,
+     * else through a mark on the ring the output thread takes
+     */
+    private void moveOutputTo(long ms, boolean exact, boolean report) {
+        PCMOutputThread output = outputThread;
+        if (output == null) moveProgress(ms, exact, report);
+        else output.getRing().mark(new PositionMark(ms, exact, report));
+    }
+
+    /**
+     * Called from the output thread once it reaches a sample marked by {@link #moveOutputTo(long, boolean, boolean)}
+     */
+    void reachedMark(Object mark) {
+        PositionMark position = (PositionMark) mark;
+        moveProgress(position.ms, position.exact, position.report);
+    }
+
+    /**
+     * Takes the time the decoder passed with its PCM (MX decoder) as the position of that PCM, when it changed
+     */
+    private void markDecoderTime(int currentSeconds) {
+        if (currentSeconds == -1 || currentSeconds == decoderSeconds) return;
+        decoderSeconds = currentSeconds;
+        moveOutputTo(currentSeconds * 1000L, true, false);
+    }
+
+    /**
+     * Accounts for the samples just written to the AudioTrack and notifies the client
+     */
+    private void updateProgress(int amount) {
+        long ms;
+        synchronized (positionLock) {
+            // count data
+            // from the sample count, adding up the ms of each write would drop a fraction every time
+            writtenPCMData += amount;
+            ms = progressBaseMs + convertBytesToMs(writtenPCMData);
+
+            /*
+             * The idea here is we are loosing some seconds when the packages can't be decoded (on seek, when jumping in the middle of a package), so the overall time count is behind the real position
+             * So when we know the time size of a stream, we can simply keep count of the bytes read form the source, and compute the time position proportionally.
+             * Only needed after a seek the index could not place, otherwise we count from an exact page time
+             */
+            if (!exactPosition && streamSecondsLength > 0 && data.getSourceLength() > 0) {
+                ms = (data.getReadOffset() * streamSecondsLength * 1000) / data.getSourceLength();
+                // the source offset is ahead of the output by whatever still waits in the buffer
+                PCMOutputThread output = outputThread;
+                if (output != null) ms -= convertSamplesToMs(output.getRing().available());
+                if (ms < 0) ms = 0;
+            }
+            writtenMiliSeconds = ms;
+        }
+        // streamSecondsLength contains given stream length in seconds
+        // data.getSourceLength() contains detected stream length in bytes
+
+        // send a notification of progress, only when it moved to another step
+        events.sendProgress(ms);
+        
+        // at this point we know all stream parameters, including the sampleRate, use it to compute current time.
+        //Log.e(TAG, "sample rate: " + streamInfo.getSampleRate() + " " + streamInfo.getChannels() + " " + streamInfo.getVendor() +  " time:" + writtenMiliSeconds + " bytes:" + writtenPCMData);
+    }
+
     public void stopAudioTrack() {
+        //Stop the output thread first, it is the one writing to the track
+        if (outputThread != null) {
+            outputThread.shutdown();
+            outputThread = null;
+        }
         //Stop the audio track
         if (audioTrack != null) {
             Log.d(TAG, "Audiotrack flush");
@@ -306,24 +1016,38 @@ public class ImplDecodeFeed implements DecodeFeed {
      * Called when decoding has completed and we consumed all input data
      */
     @Override
-    public synchronized void onStop() {
-        if (!playerState.isStopped()) {
+    public void onStop() {
+        // let the buffered tail play out, outside the monitor so stopping from another thread is not held up
+        PCMOutputThread output = outputThread;
+        if (output != null && playerState.isPlaying()) {
+            output.getRing().awaitEmpty();
+        }
+        stop();
+    }
+
+    /**
+     * Stops right away, dropping anything still buffered
+     */
+    public synchronized void stop() {
+        // a source not started yet is dropped too, its decoder thread then ends at the first read
+        if (!playerState.isStopped() || startPending) {
         	//Closes the file input stream
             
+            saveIndex();
             if (data.isSourceValid()) {
             	Log.d(TAG, "onStop called with valid data source total:" + streamSecondsLength + " written:" + writtenMiliSeconds);
             	data.release();
             } else
         	Log.e(TAG, "onStop invalid data source");
 
-            writtenPCMData = 0;
-            writtenMiliSeconds = 0;
+            moveProgress(0, true, true);
 
             Log.d(TAG, "decoding complete");
             
             stopAudioTrack();
         }
         //Set our state to stopped
+        startPending = false;
         playerState.set(PlayerStates.STOPPED);
     }
 
@@ -346,16 +1070,16 @@ public class ImplDecodeFeed implements DecodeFeed {
     	DecodeStreamInfo decodeStreamInfo = new DecodeStreamInfo(sampleRate, channels, vendor, title, artist, album, date, track);
         Log.e(TAG, "onStart state:" + playerState.get());
         
-        Log.e(TAG, "len tests:" + data.getSourceLength() + " " + sampleRate + " " + channels + " dura:" + ((data.getSourceLength() * 8) / (sampleRate * channels)) );
+        Log.e(TAG, "len tests:" + data.getSourceLength() + " " + sampleRate + " " + channels + " dura:" + streamSecondsLength + " indexed:" + (seekIndex.getDurationMs() >= 0));
 
-    	if (playerState.get() != PlayerStates.READING_HEADER &&
-        		playerState.get() != PlayerStates.PLAYING) {
+    	if (!playerState.isReadingHeader() && !playerState.isPlaying()) {
     		Log.e(TAG, "Must read header first!");
             //throw new IllegalStateException("Must read header first!");
             return;
         }
-        if (decodeStreamInfo.getChannels() != 1 && decodeStreamInfo.getChannels() != 2) {
-            throw new IllegalArgumentException("Channels can only be one or two");
+        // surround layouts are checked against the AudioTrack channel masks when the track is made
+        if (decodeStreamInfo.getChannels() < 1) {
+            throw new IllegalArgumentException("Invalid channels, must be above 0");
         }
         if (decodeStreamInfo.getSampleRate() <= 0) {
             throw new IllegalArgumentException("Invalid sample rate, must be above 0");
@@ -363,22 +1087,61 @@ public class ImplDecodeFeed implements DecodeFeed {
         Log.d(TAG, "onStart call ok (Vendor:" + decodeStreamInfo.getVendor() + ") Track parameters: Title:"+ decodeStreamInfo.getTitle() + " Artist:"+decodeStreamInfo.getArtist() +
         		" Album:" + decodeStreamInfo.getAlbum() + " Date:" + decodeStreamInfo.getDate() + " Track:" + decodeStreamInfo.getTrack());
 
+        DecodeStreamInfo previous = streamInfo;
         streamInfo = decodeStreamInfo;
-        
-        // we are already playing but track changed
-        if (playerState.get() != PlayerStates.STOPPED) {
-            Log.d(TAG, "change track");
-            stopAudioTrack();
+
+        if (audioTrack != null && previous != null && floatTrack == floatPCM &&
+                previous.getSampleRate() == sampleRate && previous.getChannels() == channels) {
+            // chained or queued track in the same format: its samples just follow the previous ones, no gap
+            Log.d(TAG, "change track, keeping the audio track");
+        } else {
+            // we are already playing but track changed
+            if (playerState.get() != PlayerStates.STOPPED) {
+                Log.d(TAG, "change track");
+                // the previous track's tail must play out in its own format
+                if (outputThread != null) outputThread.getRing().awaitEmpty();
+                stopAudioTrack();
+            }
+            if (!startAudioTrack(sampleRate, channels)) return;
         }
-        
+        // counted from the first sample of this track, when the output gets to it: the previous one may still be playing
+        moveOutputTo(0, true, true);
+       
+        //We're ready to starting to read actual content. The state goes first, the client may call play() on the event
+        if (playerState.transition(PlayerStates.READING_HEADER, PlayerStates.READY_TO_PLAY)) {
+	        events.sendEvent(PlayerEvents.READY_TO_PLAY, audioTrack.getAudioSessionId());
+        }
+        events.sendEvent(PlayerEvents.TRACK_INFO, decodeStreamInfo.getVendor(),
+    			decodeStreamInfo.getTitle(),
+    			decodeStreamInfo.getArtist(),
+    			decodeStreamInfo.getAlbum(),
+    			decodeStreamInfo.getDate(),
+    			decodeStreamInfo.getTrack());
+
+        // open the next queued track while this one plays
+        queue.preopen(sources);
+    }
+
+    /**
+     * Creates the audio track, the visualizer and the output thread for a new stream format
+     * @return false if the audio track could not be created
+     */
+    private boolean startAudioTrack(long sampleRate, long channels) {
         //Create the audio track
-        int channelConfiguration = decodeStreamInfo.getChannels() == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
-        int minSize = AudioTrack.getMinBufferSize((int) decodeStreamInfo.getSampleRate(), channelConfiguration, AudioFormat.ENCODING_PCM_16BIT);
+        int channelConfiguration = getChannelMask(channels);
+        if (channelConfiguration == AudioFormat.CHANNEL_INVALID) {
+            Log.e(TAG, "No channel mask for " + channels + " channels");
+            lastError = ERR_AUDIO;
+            return false;
+        }
+        int encoding = floatPCM ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+        int minSize = AudioTrack.getMinBufferSize((int) sampleRate, channelConfiguration, encoding);
         if (minSize < 8 * 1024) minSize = 8 * 1024;
 
         try {
-            audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, (int) decodeStreamInfo.getSampleRate(), channelConfiguration,
-                    AudioFormat.ENCODING_PCM_16BIT, minSize, AudioTrack.MODE_STREAM);
+            audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, (int) sampleRate, channelConfiguration,
+                    encoding, minSize, AudioTrack.MODE_STREAM);
+            floatTrack = floatPCM;
             audioTrack.play();
             visualizer = new Visualizer(audioTrack.getAudioSessionId());
             visualizer.setCaptureSize(Visualizer.getCaptureSizeRange()[1]);
@@ -401,23 +1164,19 @@ public class ImplDecodeFeed implements DecodeFeed {
             visualizer.setDataCaptureListener(captureListener,
                     Visualizer.getMaxCaptureRate() / 2, false, true);
             visualizer.setEnabled(true);
+
+            if (bufferMs > 0) {
+                // at least a couple of native write blocks, whatever the configured time
+                int capacity = Math.max(convertMsToSamples(bufferMs, sampleRate, channels), MIN_BUFFER_SAMPLES);
+                outputThread = new PCMOutputThread(this, new PCMRingBuffer(capacity, floatPCM));
+                outputThread.start();
+            }
         } catch (Exception ex) {
             Log.e(TAG, "AudioTrack exception:" + ex.getMessage());
             lastError = ERR_AUDIO;
-            return;
-        }
-       
-        if (playerState.get() == PlayerStates.READING_HEADER) {
-	        events.sendEvent(PlayerEvents.READY_TO_PLAY, audioTrack.getAudioSessionId());
-	        //We're ready to starting to read actual content
-	        playerState.set(PlayerStates.READY_TO_PLAY);
+            return false;
         }
-        events.sendEvent(PlayerEvents.TRACK_INFO, decodeStreamInfo.getVendor(),
-    			decodeStreamInfo.getTitle(),
-    			decodeStreamInfo.getArtist(),
-    			decodeStreamInfo.getAlbum(),
-    			decodeStreamInfo.getDate(),
-    			decodeStreamInfo.getTrack());
+        return true;
     }
 
     /**
@@ -426,13 +1185,35 @@ public class ImplDecodeFeed implements DecodeFeed {
     @Override
     public void onStartReadingHeader() {
     	Log.e(TAG, "onStartReadingHeader called, state="+playerState.get());
-        if (playerState.isStopped()) {
-        	events.sendEvent(PlayerEvents.READING_HEADER);
-            playerState.set(PlayerStates.READING_HEADER);
+        // 16 bit unless the decoder asks for float output right after
+        floatPCM = false;
+        decoderSeconds = -1;
+        // a new track reports its first progress whatever the last one was
+        events.resetProgress();
+        // not if stopped since the decoder thread was started
+        boolean started;
+        synchronized (this) {
+            started = startPending && playerState.transition(PlayerStates.STOPPED, PlayerStates.READING_HEADER);
+            startPending = false;
+        }
+        if (started) events.sendEvent(PlayerEvents.READING_HEADER);
+    }
+
+    /**
+     * @return the AudioTrack channel mask for channels in WAV order, up to 5.1
+     */
+    static int getChannelMask(long channels) {
+        switch ((int) channels) {
+            case 1: return AudioFormat.CHANNEL_OUT_MONO;
+            case 2: return AudioFormat.CHANNEL_OUT_STEREO;
+            case 3: return AudioFormat.CHANNEL_OUT_STEREO | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+            case 4: return AudioFormat.CHANNEL_OUT_QUAD;
+            case 5: return AudioFormat.CHANNEL_OUT_QUAD | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+            case 6: return AudioFormat.CHANNEL_OUT_5POINT1;
+            default: return AudioFormat.CHANNEL_INVALID;
         }
     }
 
-    
 	/**
 	 * returns the number of bytes used by a buffer of given mili seconds, sample rate and channels
 	 * we multiply by 2 to compensate for the 'short' size
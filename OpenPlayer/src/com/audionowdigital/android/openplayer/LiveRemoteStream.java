@@ -0,0 +1,157 @@
+/*
+ * LiveRemoteStream.java - Reads a live stream, connecting again when the connection drops
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+
+/**
+ * A dropped or ended connection is retried with a growing delay, while the read-ahead and PCM buffers
+ * keep the audio going. The server sends a new listener the stream headers again, so the decoder sees
+ * the new connection as a chained stream. Gives up once no connection worked for the reconnect time.
+ */
+
+class LiveRemoteStream extends InputStream implements IcyMetadataStream.Listener {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "LiveRemoteStream";
+
+    /**
+     * Delay before the first retry, doubled for each failed one up to the max
+     */
+    private static final int RETRY_DELAY_MS = 250, MAX_RETRY_DELAY_MS = 8000;
+
+    private final HttpDataSource source;
+    private final int reconnectMs;
+
+    private InputStream connection;
+
+    // audio bytes returned so far, over all connections
+    private long delivered = 0;
+
+    // a server taking connections but sending nothing is not retried any faster
+    private long lastDataAt;
+    private int retryDelay = RETRY_DELAY_MS;
+
+    /**
+     * @param source      the stream, which makes the requests and gets the stream titles
+     * @param connection  the first connection, its response already checked
+     * @param reconnectMs how long to keep trying to connect again, 0 to not try
+     */
+    LiveRemoteStream(HttpDataSource source, HttpURLConnection connection, int reconnectMs) throws IOException {
+        this.source = source;
+        this.reconnectMs = reconnectMs;
+        this.connection = open(connection);
+        lastDataAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the audio of the response, without the ICY metadata if it has some
+     */
+    private InputStream open(HttpURLConnection cn) throws IOException {
+        int metaInterval = cn.getHeaderFieldInt("icy-metaint", 0);
+        String name = cn.getHeaderField("icy-name");
+        if (name != null || metaInterval > 0) Log.d(TAG, "icy stream:" + name + " metaint:" + metaInterval);
+        InputStream in = cn.getInputStream();
+        return metaInterval > 0 ? new IcyMetadataStream(in, metaInterval, this) : in;
+    }
+
+    @Override
+    public void onStreamTitle(String title) {
+        Log.d(TAG, "stream title:" + title);
+        source.onStreamTitle(title, delivered);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        while (true) {
+            // given up on
+            if (connection == null) throw new IOException("live stream lost");
+            int n;
+            try {
+                n = connection.read(buffer, offset, count);
+            } catch (InterruptedIOException e) {
+                // closed while waiting, not a dropped connection
+                if (Thread.currentThread().isInterrupted()) throw e;
+                n = -1;
+                Log.w(TAG, "read timed out");
+            } catch (IOException e) {
+                n = -1;
+                Log.w(TAG, "connection dropped:" + e.getMessage());
+            }
+            if (n >= 0) {
+                if (n > 0) {
+                    delivered += n;
+                    lastDataAt = System.currentTimeMillis();
+                    retryDelay = RETRY_DELAY_MS;
+                }
+                return n;
+            }
+            // a live stream has no end, this is a dropped connection
+            if (!reconnect()) throw new IOException("live stream lost");
+        }
+    }
+
+    /**
+     * @return false if no data came for the reconnect time
+     */
+    private boolean reconnect() throws IOException {
+        closeConnection();
+        long giveUp = lastDataAt + reconnectMs;
+        while (System.currentTimeMillis() < giveUp) {
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("closed while reconnecting");
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+            try {
+                HttpURLConnection cn = source.connect(-1, -1);
+                int code = cn.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    connection = open(cn);
+                    Log.d(TAG, "reconnected after bytes:" + delivered);
+                    return true;
+                }
+                cn.disconnect();
+                Log.w(TAG, "reconnect refused:" + code);
+            } catch (IOException e) {
+                Log.w(TAG, "reconnect failed:" + e.getMessage());
+            }
+        }
+        Log.e(TAG, "giving up on the stream");
+        return false;
+    }
+
+    private void closeConnection() {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.d(TAG, "connection already closed");
+        }
+        connection = null;
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * MemoryDataSource.java - Plays encoded data the app already holds in memory
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The app puts the data in a {@link Factory} under a name of its choosing, registers the factory with
+ * {@link Player#registerDataSource(DataSource.Factory)} and plays the name like any other path.
+ */
+
+public class MemoryDataSource extends AbstractDataSource {
+
+    /**
+     * Opens the names it holds data for
+     */
+    public static class Factory implements DataSource.Factory {
+        private final ConcurrentHashMap<String, byte[]> data = new ConcurrentHashMap<String, byte[]>();
+
+        /**
+         * @param path the name to play the data by
+         * @param encoded the whole encoded track, not copied: it must not change while it can be played
+         */
+        public void put(String path, byte[] encoded) {
+            data.put(path, encoded);
+        }
+
+        public void remove(String path) {
+            data.remove(path);
+        }
+
+        @Override
+        public DataSource open(String path, DataSourceRegistry registry) {
+            byte[] encoded = data.get(path);
+            return encoded != null ? new MemoryDataSource(path, encoded) : null;
+        }
+    }
+
+    private byte[] data;
+
+    public MemoryDataSource(String path, byte[] data) {
+        super(path);
+        this.data = data;
+        length = data.length;
+        readoffset = 0;
+    }
+
+    @Override
+    public synchronized void release() {
+        data = null;
+    }
+
+    @Override
+    public synchronized boolean isSourceValid() {
+        return data != null;
+    }
+
+    /**
+     * @return null, the data is at hand and not worth indexing on disk
+     */
+    @Override
+    public String getCacheKey() {
+        return null;
+    }
+
+    @Override
+    public synchronized int read(byte buffer[], int byteOffset, int byteCount) {
+        if (data == null) return DATA_SRC_INVALID;
+        if (readoffset >= length) return DATA_SRC_FINISHED;
+        int bytes = (int) Math.min(byteCount, length - readoffset);
+        System.arraycopy(data, (int) readoffset, buffer, byteOffset, bytes);
+        readoffset += bytes;
+        return bytes;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer, int byteOffset, int byteCount) {
+        if (data == null) return DATA_SRC_INVALID;
+        if (readoffset >= length) return DATA_SRC_FINISHED;
+        int bytes = (int) Math.min(byteCount, length - readoffset);
+        buffer.position(byteOffset);
+        buffer.put(data, (int) readoffset, bytes);
+        readoffset += bytes;
+        return bytes;
+    }
+
+    @Override
+    public synchronized boolean seekTo(long offset) {
+        if (data == null || offset < 0 || offset > length) return false;
+        readoffset = offset;
+        return true;
+    }
+
+    @Override
+    public SeekIndex.PageReader openPageReader() {
+        final byte[] source = data;
+        if (source == null) return null;
+        return new SeekIndex.PageReader() {
+            @Override
+            public int read(long position, byte[] buffer, int offset, int length) {
+                int bytes = (int) Math.max(0, Math.min(length, source.length - position));
+                if (bytes > 0) System.arraycopy(source, (int) position, buffer, offset, bytes);
+                return bytes;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
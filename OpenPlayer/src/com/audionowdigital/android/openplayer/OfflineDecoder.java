@@ -0,0 +1,263 @@
+/*
+ * OfflineDecoder.java - Decodes tracks to PCM sinks without playing them, several at once on a pool of threads
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import com.audionowdigital.android.openplayer.Player.DecoderType;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Each thread decodes one track at a time with a decoder of its own, the decoders are kept for the
+ * following tracks. Paths are opened through {@link #getDataSources()}, like a {@link Player} does.
+ * Jobs are cancelled through their {@link Future}, which interrupts the decoding.
+ */
+
+public class OfflineDecoder {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "OfflineDecoder";
+
+    /**
+     * The outcome of decoding one track
+     */
+    public static class Result {
+        private final String path;
+        private final int code;
+        private final Exception error;
+        private final long frames, audioMs, decodeNanos;
+
+        Result(String path, int code, Exception error, long frames, long audioMs, long decodeNanos) {
+            this.path = path;
+            this.code = code;
+            this.error = error;
+            this.frames = frames;
+            this.audioMs = audioMs;
+            this.decodeNanos = decodeNanos;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return one of the {@link DecodeFeed} result codes
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return what ended the decoding early: the source, the sink or an interruption, else null
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return code == DecodeFeed.SUCCESS;
+        }
+
+        /**
+         * @return the samples decoded for each channel
+         */
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return the length of the decoded audio
+         */
+        public long getAudioMs() {
+            return audioMs;
+        }
+
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        /**
+         * @return the samples of each channel decoded per second of decoding time
+         */
+        public long getSamplesPerSecond() {
+            return decodeNanos > 0 ? frames * 1000000000L / decodeNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return path + " code:" + code + " frames:" + frames + " audioMs:" + audioMs +
+                    " decodeMs:" + decodeNanos / 1000000 + " samples/s:" + getSamplesPerSecond() +
+                    (error != null ? " error:" + error : "");
+        }
+    }
+
+    private final ExecutorService executor;
+    private final DataSourceRegistry sources = new DataSourceRegistry();
+
+    // decoders not decoding right now, at most one per thread and type
+    private final ConcurrentHashMap<DecoderType, ConcurrentLinkedQueue<Decoder>> idle =
+            new ConcurrentHashMap<DecoderType, ConcurrentLinkedQueue<Decoder>>();
+
+    private volatile boolean dither = false;
+
+    // totals over all jobs, for the throughput of the pool
+    private long totalFrames = 0, firstStart = 0, lastEnd = 0;
+
+    /**
+     * @param threads how many tracks to decode at once, usually the number of cores
+     */
+    public OfflineDecoder(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be above 0");
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG + "-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * @return the sources the paths are opened with, to register more or change their settings
+     */
+    public DataSourceRegistry getDataSources() {
+        return sources;
+    }
+
+    /**
+     * Dithers the conversion of float decoded audio (Vorbis) to 16 bit, for the jobs started afterwards
+     */
+    public void setDither(boolean dither) {
+        this.dither = dither;
+    }
+
+    /**
+     * Queues a track, it is decoded once a thread is free
+     *
+     * @param type the decoder for the track's format
+     * @param path a local path, url, or a path known to a registered factory
+     * @param sink gets the PCM, and is closed at the end
+     * @return the result once decoded
+     */
+    public Future<Result> submit(final DecoderType type, final String path, final PcmSink sink) {
+        return executor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return decode(type, path, sink);
+            }
+        });
+    }
+
+    private Result decode(DecoderType type, String path, PcmSink sink) {
+        ConcurrentLinkedQueue<Decoder> decoders = idle.get(type);
+        if (decoders == null) {
+            idle.putIfAbsent(type, new ConcurrentLinkedQueue<Decoder>());
+            decoders = idle.get(type);
+        }
+        Decoder decoder = decoders.poll();
+        if (decoder == null) decoder = Player.createDecoder(type);
+        if (decoder == null) {
+            closeSink(sink, path);
+            return new Result(path, DecodeFeed.DECODE_ERROR, new IllegalArgumentException("No decoder for type:" + type), 0, 0, 0);
+        }
+        long start = System.nanoTime();
+        DataSource source = (type == DecoderType.MX) ? sources.openPathOnly(path) : sources.open(path);
+        Result result = decodeToSink(decoder, source, sink, dither);
+        decoders.add(decoder);
+        synchronized (this) {
+            if (firstStart == 0 || start < firstStart) firstStart = start;
+            lastEnd = Math.max(lastEnd, start + result.getDecodeNanos());
+            totalFrames += result.getFrames();
+        }
+        Log.d(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * @return the samples of each channel decoded per second by the whole pool, from the first job started to the last one ended
+     */
+    public synchronized long getSamplesPerSecond() {
+        long elapsed = lastEnd - firstStart;
+        return elapsed > 0 ? totalFrames * 1000000000L / elapsed : 0;
+    }
+
+    /**
+     * Finishes the jobs already submitted, then frees the decoders. Takes no more jobs
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        for (ConcurrentLinkedQueue<Decoder> decoders : idle.values()) {
+            Decoder decoder;
+            while ((decoder = decoders.poll()) != null) decoder.release();
+        }
+    }
+
+    /**
+     * Decodes a whole source on the calling thread
+     *
+     * @param decoder not decoding anything else
+     * @param source  released at the end
+     * @param sink    gets the PCM, and is closed at the end
+     */
+    public static Result decodeToSink(Decoder decoder, DataSource source, PcmSink sink) {
+        return decodeToSink(decoder, source, sink, false);
+    }
+
+    /**
+     * Decodes a whole source on the calling thread
+     *
+     * @param decoder not decoding anything else
+     * @param source  released at the end
+     * @param sink    gets the PCM, and is closed at the end
+     * @param dither  true to dither the conversion of float decoded audio to 16 bit
+     */
+    public static Result decodeToSink(Decoder decoder, DataSource source, PcmSink sink, boolean dither) {
+        long start = System.nanoTime();
+        SinkDecodeFeed feed = new SinkDecodeFeed(source, sink, dither);
+        int code;
+        Exception error;
+        if (source.isSourceValid()) {
+            code = decoder.readDecodeWriteLoop(feed);
+            error = feed.getError();
+        } else {
+            code = DecodeFeed.DECODE_ERROR;
+            error = new IOException("Can not open " + source.getPath());
+        }
+        source.release();
+        Exception closeError = closeSink(sink, source.getPath());
+        if (error == null) error = closeError;
+        if (error != null && code == DecodeFeed.SUCCESS) code = DecodeFeed.DECODE_ERROR;
+        return new Result(source.getPath(), code, error, feed.getFrames(), feed.getAudioMs(), System.nanoTime() - start);
+    }
+
+    private static Exception closeSink(PcmSink sink, String path) {
+        try {
+            sink.close();
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Closing the sink failed for " + path, e);
+            return e;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * OggPageScanner.java - Follows the Ogg page structure of the encoded data on its way to the decoder
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Only page headers are parsed, page bodies are skipped over (the first bytes of a BOS page are kept,
+ * they identify the codec). Bytes can be fed in chunks of any size, a header may span several of them.
+ * After a jump to an offset that is not known to be a page start, a page is only reported once the
+ * next one is found right after it, so a stray "OggS" in the audio data is not taken for a page.
+ */
+
+public class OggPageScanner {
+    /**
+     * Page header type flags
+     */
+    public static final int FLAG_CONTINUED = 0x01, FLAG_BOS = 0x02, FLAG_EOS = 0x04;
+
+    /**
+     * Fixed part of the page header, followed by the lacing values
+     */
+    public static final int HEADER_SIZE = 27;
+
+    /**
+     * Largest possible page: full header and 255 segments of 255 bytes
+     */
+    public static final int MAX_PAGE_SIZE = HEADER_SIZE + 255 + 255 * 255;
+
+    /**
+     * How much of a BOS page body is kept for codec detection
+     */
+    public static final int BOS_BYTES = 64;
+
+    private static final byte[] CAPTURE = { 'O', 'g', 'g', 'S' };
+
+    private static final int[] CRC_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int r = i << 24;
+            for (int j = 0; j < 8; j++) r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04c11db7 : r << 1;
+            CRC_TABLE[i] = r;
+        }
+    }
+
+    /**
+     * A parsed page header
+     */
+    public static class Page {
+        public long offset;
+        public int length;
+        public int flags;
+        public long granule;
+        public int serial;
+        /**
+         * The start of the body, only filled for BOS pages
+         */
+        public final byte[] bos = new byte[BOS_BYTES];
+        public int bosLength;
+
+        public long end() {
+            return offset + length;
+        }
+
+        void copyFrom(Page page) {
+            offset = page.offset;
+            length = page.length;
+            flags = page.flags;
+            granule = page.granule;
+            serial = page.serial;
+            bosLength = page.bosLength;
+            System.arraycopy(page.bos, 0, bos, 0, bosLength);
+        }
+    }
+
+    /**
+     * Receives the pages, on the thread feeding the scanner
+     */
+    public interface Listener {
+        public void onPage(Page page);
+    }
+
+    private final Listener listener;
+
+    private final byte[] header = new byte[HEADER_SIZE + 255];
+    private int headerFill = 0, headerNeeded = HEADER_SIZE;
+    private int bodyLeft = 0;
+
+    // absolute offset of the next byte fed
+    private long position = 0;
+    // whether position is known to be at a page boundary, else pages wait for the next one to confirm them
+    private boolean synced = true;
+
+    private final Page current = new Page(), pending = new Page();
+    private boolean hasPending = false;
+
+    public OggPageScanner(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Continues at a new offset in the source
+     * @param offset the absolute offset of the next byte to be fed
+     * @param pageStart true if a page is known to start there
+     */
+    public synchronized void reset(long offset, boolean pageStart) {
+        position = offset;
+        synced = pageStart;
+        headerFill = 0;
+        headerNeeded = HEADER_SIZE;
+        bodyLeft = 0;
+        hasPending = false;
+    }
+
+    public synchronized void feed(byte[] data, int offset, int length) {
+        feed(data, null, offset, length);
+    }
+
+    public synchronized void feed(ByteBuffer data, int offset, int length) {
+        feed(null, data, offset, length);
+    }
+
+    private void feed(byte[] array, ByteBuffer buffer, int offset, int length) {
+        int i = offset, end = offset + length;
+        while (i < end) {
+            if (bodyLeft > 0) {
+                int n = Math.min(bodyLeft, end - i);
+                if ((current.flags & FLAG_BOS) != 0 && current.bosLength < BOS_BYTES) {
+                    int keep = Math.min(n, BOS_BYTES - current.bosLength);
+                    for (int k = 0; k < keep; k++) current.bos[current.bosLength + k] = byteAt(array, buffer, i + k);
+                    current.bosLength += keep;
+                }
+                i += n;
+                position += n;
+                bodyLeft -= n;
+                if (bodyLeft == 0) pageDone();
+                continue;
+            }
+
+            byte b = byteAt(array, buffer, i++);
+            position++;
+            if (headerFill < CAPTURE.length) {
+                if (b != CAPTURE[headerFill]) {
+                    lostSync();
+                    headerFill = 0;
+                    if (b != CAPTURE[0]) continue;
+                }
+                if (headerFill == 0) current.offset = position - 1;
+                header[headerFill++] = b;
+                if (headerFill == CAPTURE.length) captureFound();
+                continue;
+            }
+            header[headerFill++] = b;
+            if (headerFill == HEADER_SIZE) {
+                if (header[4] != 0) {
+                    // not a version 0 page header
+                    lostSync();
+                    headerFill = 0;
+                    continue;
+                }
+                headerNeeded = HEADER_SIZE + (header[26] & 0xff);
+            }
+            if (headerFill >= HEADER_SIZE && headerFill == headerNeeded) headerDone();
+        }
+    }
+
+    private static byte byteAt(byte[] array, ByteBuffer buffer, int index) {
+        return array != null ? array[index] : buffer.get(index);
+    }
+
+    private void lostSync() {
+        synced = false;
+        hasPending = false;
+    }
+
+    /**
+     * A capture pattern right where the pending page ends confirms it
+     */
+    private void captureFound() {
+        if (hasPending && pending.end() == current.offset) {
+            synced = true;
+            hasPending = false;
+            listener.onPage(pending);
+        }
+    }
+
+    private void headerDone() {
+        int segments = header[26] & 0xff;
+        int bodyLength = 0;
+        for (int s = 0; s < segments; s++) bodyLength += header[HEADER_SIZE + s] & 0xff;
+        current.flags = header[5] & 0xff;
+        current.granule = readLong(header, 6);
+        current.serial = readInt(header, 14);
+        current.length = headerNeeded + bodyLength;
+        current.bosLength = 0;
+        headerFill = 0;
+        headerNeeded = HEADER_SIZE;
+        bodyLeft = bodyLength;
+        if (bodyLeft == 0) pageDone();
+    }
+
+    private void pageDone() {
+        if (synced) {
+            listener.onPage(current);
+        } else {
+            pending.copyFrom(current);
+            hasPending = true;
+        }
+    }
+
+    /**
+     * Parses and verifies a whole page
+     * @param data   the buffer holding the page
+     * @param offset where the page starts in data
+     * @param length the bytes available from offset
+     * @param page   receives the header fields, its offset is left to the caller
+     * @return the page length, 0 if more bytes are needed to tell, -1 if this is not a valid page
+     */
+    public static int parsePage(byte[] data, int offset, int length, Page page) {
+        if (length < HEADER_SIZE) return 0;
+        for (int k = 0; k < CAPTURE.length; k++) if (data[offset + k] != CAPTURE[k]) return -1;
+        if (data[offset + 4] != 0) return -1;
+        int segments = data[offset + 26] & 0xff;
+        if (length < HEADER_SIZE + segments) return 0;
+        int pageLength = HEADER_SIZE + segments;
+        for (int s = 0; s < segments; s++) pageLength += data[offset + HEADER_SIZE + s] & 0xff;
+        if (length < pageLength) return 0;
+
+        // the checksum is computed with its own field set to 0
+        int crc = 0;
+        for (int k = 0; k < pageLength; k++) {
+            int b = (k >= 22 && k < 26) ? 0 : data[offset + k] & 0xff;
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+        }
+        if (crc != readInt(data, offset + 22)) return -1;
+
+        page.length = pageLength;
+        page.flags = data[offset + 5] & 0xff;
+        page.granule = readLong(data, offset + 6);
+        page.serial = readInt(data, offset + 14);
+        page.bosLength = 0;
+        if ((page.flags & FLAG_BOS) != 0) {
+            page.bosLength = Math.min(BOS_BYTES, pageLength - HEADER_SIZE - segments);
+            System.arraycopy(data, offset + HEADER_SIZE + segments, page.bos, 0, page.bosLength);
+        }
+        return pageLength;
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    static long readLong(byte[] data, int offset) {
+        return (readInt(data, offset) & 0xffffffffL) | ((long) readInt(data, offset + 4)) << 32;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * PCMOutputThread.java - Drains the PCM ring buffer into the AudioTrack, so the blocking writes never stall the decoder
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Created by radhoo on /14.
+ */
+
+public class PCMOutputThread extends Thread {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "PCMOutputThread";
+
+    /**
+     * Largest single write to the AudioTrack, in samples
+     */
+    private static final int MAX_WRITE_SAMPLES = 4096;
+
+    private final ImplDecodeFeed decodeFeed;
+    private final PCMRingBuffer ring;
+
+    public PCMOutputThread(ImplDecodeFeed decodeFeed, PCMRingBuffer ring) {
+        super("PCMOutput");
+        this.decodeFeed = decodeFeed;
+        this.ring = ring;
+    }
+
+    public PCMRingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * Stop draining; pending samples are dropped
+     */
+    public void shutdown() {
+        ring.close();
+        // the thread may be paused on the feed monitor
+        decodeFeed.syncNotify();
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "output thread started, ring capacity:" + ring.getCapacity());
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        while (!ring.isClosed()) {
+            // pause implementation, same as for the decoder
+            decodeFeed.waitPlay();
+
+            int count = ring.awaitReadable(MAX_WRITE_SAMPLES);
+            if (count == 0) continue;
+            // the position the decoder tagged this sample with: a seek, the next track, or the time it reported
+            Object mark = ring.takeMark();
+            if (mark != null) decodeFeed.reachedMark(mark);
+
+            if (ring.isFloat()) decodeFeed.writeAudioTrack(ring.getFloatData(), ring.getReadIndex(), count);
+            else decodeFeed.writeAudioTrack(ring.getData(), ring.getReadIndex(), count);
+            ring.commitRead(count);
+        }
+        Log.d(TAG, "output thread stopped");
+    }
+}
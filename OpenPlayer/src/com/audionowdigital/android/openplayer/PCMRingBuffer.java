@@ -0,0 +1,274 @@
+/*
+ * PCMRingBuffer.java - Lock-free single producer / single consumer ring of PCM samples, sitting between the decoder and the audio output
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The decoder thread is the only writer, the audio output thread the only reader.
+ * Positions are running sample counters, so full and empty never get confused; only
+ * the owning side moves its counter, the other one just reads it. The writer can tag a position
+ * with a mark, which the reader gets back once it reaches that sample.
+ */
+
+public class PCMRingBuffer {
+    /**
+     * Upper bound for a park, in case an unpark gets lost between the check and the park
+     */
+    private static final long PARK_NANOS = 10 * 1000 * 1000;
+
+    private final short[] data;
+    private final float[] floatData;
+    private final int capacity;
+
+    /**
+     * Running counters: samples ever written by the producer and ever consumed by the reader
+     */
+    private volatile long writePos = 0, readPos = 0;
+
+    /**
+     * Where the last clear was asked for: the reader skips up to there before its next read
+     */
+    private volatile long clearPos = 0;
+
+    /**
+     * Marks not reached by the reader yet, in write order
+     */
+    private final Queue<Mark> marks = new ConcurrentLinkedQueue<Mark>();
+
+    private static final class Mark {
+        final long position;
+        final Object tag;
+
+        Mark(long position, Object tag) {
+            this.position = position;
+            this.tag = tag;
+        }
+    }
+
+    private volatile Thread waitingWriter, waitingReader;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the size of the ring in samples (all channels)
+     */
+    public PCMRingBuffer(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity the size of the ring in samples (all channels)
+     * @param floats   true to hold float samples, written and read through the float methods
+     */
+    public PCMRingBuffer(int capacity, boolean floats) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be above 0");
+        }
+        this.capacity = capacity;
+        this.data = floats ? null : new short[capacity];
+        this.floatData = floats ? new float[capacity] : null;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isFloat() {
+        return floatData != null;
+    }
+
+    /**
+     * @return the number of samples written but not consumed yet
+     */
+    public int available() {
+        return (int) (writePos - readPos);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Producer side: copy the samples into the ring, blocking while it is full
+     * @return the number of samples written, less than count only if the ring got closed
+     */
+    public int write(short[] src, int offset, int count) {
+        return write(src, null, offset, count);
+    }
+
+    /**
+     * Producer side: same as {@link #write(short[], int, int)}, taking the samples from the buffer's current position
+     */
+    public int write(ShortBuffer src, int count) {
+        return write(null, src, 0, count);
+    }
+
+    /**
+     * Producer side: same as {@link #write(short[], int, int)} for a float ring
+     */
+    public int write(float[] src, int offset, int count) {
+        return write(src, null, offset, count);
+    }
+
+    /**
+     * Producer side: same as {@link #write(ShortBuffer, int)} for a float ring
+     */
+    public int write(FloatBuffer src, int count) {
+        return write(null, src, 0, count);
+    }
+
+    private int write(Object src, Buffer srcBuffer, int offset, int count) {
+        int written = 0;
+        while (written < count && !closed) {
+            long w = writePos;
+            int free = capacity - (int) (w - readPos);
+            if (free == 0) {
+                waitingWriter = Thread.currentThread();
+                // check again, the reader may have freed space before we registered
+                if (capacity - (int) (writePos - readPos) == 0 && !closed) LockSupport.parkNanos(this, PARK_NANOS);
+                waitingWriter = null;
+                continue;
+            }
+            int index = (int) (w % capacity);
+            int len = Math.min(Math.min(free, count - written), capacity - index);
+            if (srcBuffer instanceof FloatBuffer) ((FloatBuffer) srcBuffer).get(floatData, index, len);
+            else if (srcBuffer != null) ((ShortBuffer) srcBuffer).get(data, index, len);
+            else System.arraycopy(src, offset + written, floatData != null ? floatData : data, index, len);
+            written += len;
+            // publish the samples only after they are in place
+            writePos = w + len;
+            Thread reader = waitingReader;
+            if (reader != null) LockSupport.unpark(reader);
+        }
+        return written;
+    }
+
+    /**
+     * Producer side: block until the reader consumed everything, or the ring got closed
+     */
+    public void awaitEmpty() {
+        while (available() > 0 && !closed) {
+            waitingWriter = Thread.currentThread();
+            if (available() > 0 && !closed) LockSupport.parkNanos(this, PARK_NANOS);
+            waitingWriter = null;
+        }
+    }
+
+    /**
+     * Consumer side: block until there is something to read
+     * @param max the maximum number of samples the caller wants
+     * @return the number of samples readable in one piece starting at {@link #getReadIndex()}, 0 if closed
+     */
+    public int awaitReadable(int max) {
+        while (!closed) {
+            long skip = clearPos;
+            if (skip > readPos) {
+                readPos = skip;
+                Thread writer = waitingWriter;
+                if (writer != null) LockSupport.unpark(writer);
+            }
+            long r = readPos;
+            int count = (int) (writePos - r);
+            if (count > 0) {
+                // a read stops short of the next mark, so it is taken right before its sample
+                for (Mark mark : marks) {
+                    if (mark.position > r) {
+                        count = (int) Math.min(count, mark.position - r);
+                        break;
+                    }
+                }
+                int index = (int) (r % capacity);
+                return Math.min(Math.min(count, max), capacity - index);
+            }
+            waitingReader = Thread.currentThread();
+            if (writePos == readPos && !closed && clearPos <= readPos) LockSupport.parkNanos(this, PARK_NANOS);
+            waitingReader = null;
+        }
+        return 0;
+    }
+
+    /**
+     * Consumer side: the backing array, to be read in place from {@link #getReadIndex()}
+     */
+    public short[] getData() {
+        return data;
+    }
+
+    /**
+     * Consumer side: the backing array of a float ring, to be read in place from {@link #getReadIndex()}
+     */
+    public float[] getFloatData() {
+        return floatData;
+    }
+
+    public int getReadIndex() {
+        return (int) (readPos % capacity);
+    }
+
+    /**
+     * Consumer side: release samples returned by {@link #awaitReadable(int)}
+     */
+    public void commitRead(int count) {
+        readPos = readPos + count;
+        Thread writer = waitingWriter;
+        if (writer != null) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Consumer side: the tag of the mark at the read position, to be called before reading on from it.
+     * Marks a clear skipped over are dropped
+     * @return the tag of the last mark there, null if there is none
+     */
+    public Object takeMark() {
+        Object tag = null;
+        Mark mark;
+        while ((mark = marks.peek()) != null && mark.position <= readPos) {
+            if (mark.position == readPos) tag = mark.tag;
+            marks.poll();
+        }
+        return tag;
+    }
+
+    /**
+     * Producer side: tags the next sample written, the reader gets the tag from {@link #takeMark()}
+     * once it reaches it. A clear drops the marks before it
+     */
+    public void mark(Object tag) {
+        marks.add(new Mark(writePos, tag));
+    }
+
+    /**
+     * Producer side: the reader drops all samples written so far before its next read (used for seeking).
+     * What is written afterwards is kept, however late the reader gets to it
+     */
+    public void clear() {
+        clearPos = writePos;
+        wake();
+    }
+
+    /**
+     * Can be called from any thread: releases both sides, no more reads or writes will go through
+     */
+    public void close() {
+        closed = true;
+        wake();
+    }
+
+    private void wake() {
+        Thread t = waitingWriter;
+        if (t != null) LockSupport.unpark(t);
+        t = waitingReader;
+        if (t != null) LockSupport.unpark(t);
+    }
+}
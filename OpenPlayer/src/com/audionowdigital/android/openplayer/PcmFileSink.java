@@ -0,0 +1,116 @@
+/*
+ * PcmFileSink.java - Writes decoded PCM to a WAV or raw file
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The samples are written as 16 bit little endian. A WAV file gets its header with the sizes once it is
+ * closed, and can only hold one format: a chained stream in another format fails it. A raw file takes
+ * the chained streams as they come.
+ */
+
+public class PcmFileSink implements PcmSink {
+    private static final int WAV_HEADER_LENGTH = 44;
+
+    private final File file;
+    private final boolean wav;
+
+    private RandomAccessFile out;
+    private FileChannel channel;
+    private long sampleRate, channels;
+    private long dataBytes = 0;
+
+    // little endian copy of the samples, only on big endian hosts
+    private ByteBuffer swapped;
+
+    /**
+     * @param file the file to write, replaced if it exists
+     * @param wav  true to write a WAV file, false for raw samples only
+     */
+    public PcmFileSink(File file, boolean wav) {
+        this.file = file;
+        this.wav = wav;
+    }
+
+    @Override
+    public void onFormat(long sampleRate, long channels) throws IOException {
+        if (out == null) {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            channel = out.getChannel();
+            // the header is written again with the sizes on close
+            if (wav) channel.write(ByteBuffer.allocate(WAV_HEADER_LENGTH));
+        } else if (wav && (sampleRate != this.sampleRate || channels != this.channels)) {
+            throw new IOException("WAV file can not change format to rate:" + sampleRate + " channels:" + channels);
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        if (channel == null) throw new IOException("Samples written before the format");
+        dataBytes += pcm.remaining();
+        if (pcm.order() != ByteOrder.LITTLE_ENDIAN) {
+            if (swapped == null || swapped.capacity() < pcm.remaining()) {
+                swapped = ByteBuffer.allocate(pcm.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            swapped.clear();
+            swapped.asShortBuffer().put(pcm.asShortBuffer());
+            swapped.limit(pcm.remaining() & ~1);
+            pcm = swapped;
+        }
+        while (pcm.hasRemaining()) channel.write(pcm);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out == null) return;
+        try {
+            if (wav) channel.write(wavHeader(), 0);
+        } finally {
+            out.close();
+            out = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * @return the number of sample bytes written so far
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    private ByteBuffer wavHeader() {
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        int blockAlign = (int) channels * 2;
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt((int) (WAV_HEADER_LENGTH - 8 + dataBytes));
+        header.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        header.putInt(16);
+        // PCM
+        header.putShort((short) 1);
+        header.putShort((short) channels);
+        header.putInt((int) sampleRate);
+        header.putInt((int) sampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) 16);
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt((int) dataBytes);
+        header.flip();
+        return header;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * PcmSink.java - Receives the PCM of a track decoded without playing it
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Used by {@link OfflineDecoder}, all calls come from the decoding thread. An exception ends the decoding
+ * with an error.
+ */
+
+public interface PcmSink {
+    /**
+     * Called before the first samples of each stream, a chained stream can come in another format
+     *
+     * @param sampleRate the samples per second of each channel
+     * @param channels   the number of interleaved channels, surround in WAV order: FL FR FC LFE BL BR
+     */
+    public void onFormat(long sampleRate, long channels) throws IOException;
+
+    /**
+     * @param pcm native order 16 bit interleaved samples from its position to its limit, only valid during the call
+     */
+    public void write(ByteBuffer pcm) throws IOException;
+
+    /**
+     * Called once the decoding ended, after an error too
+     */
+    public void close() throws IOException;
+}
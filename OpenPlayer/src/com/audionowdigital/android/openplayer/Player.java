@@ -17,6 +17,9 @@ import net.pocketmagic.android.openmxplayer.MXDecoder;
 import org.xiph.opus.decoderjni.OpusDecoder;
 import org.xiph.vorbis.decoderjni.VorbisDecoder;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
 /**
  * Created by radhoo on /14.
  */
@@ -52,7 +55,16 @@ public class Player implements Runnable {
      */
     private PlayerEvents events = null;
 
-    private long streamSecondsLength = -1;
+    /**
+     * This player's own decoder, kept across tracks so a track change does not redo the JNI setup.
+     * Other players have theirs, so they can decode at the same time
+     */
+    private volatile Decoder decoder;
+
+    /**
+     * Held by the decoding thread, a new track waits here for the previous decode loop to return
+     */
+    private final Object decoderLock = new Object();
 
     public Player(Handler handler, DecoderType type) {
     	 if (handler == null) {
@@ -60,6 +72,21 @@ public class Player implements Runnable {
          }
     	 this.type = type;
     	 events = new PlayerEvents(handler);
+    	 init();
+    }
+
+    /**
+     * Creates a player that calls a listener instead of sending messages to a Handler
+     * @param listener receives the player events
+     * @param executor the listener is called on it, for example one posting to the main thread
+     */
+    public Player(PlayerEvents.Listener listener, Executor executor, DecoderType type) {
+    	 this.type = type;
+    	 events = new PlayerEvents(listener, executor);
+    	 init();
+    }
+
+    private void init() {
     	 this.decodeFeed = new ImplDecodeFeed(playerState, events, type);
     	 
     	 
@@ -69,16 +96,33 @@ public class Player implements Runnable {
     	 case DecoderType.OPUS: 
     	 }*/
     	 Log.e(TAG, "preparing to init:"+type);
-    	 switch (type) {
-    		 case OPUS: OpusDecoder.initJni(1); break;
-    		 case VORBIS: VorbisDecoder.initJni(1); break;
-    		 case MX: MXDecoder.init(1); break;
-		default:
-			break;
-    	 }
+    	 decoder = createDecoder(type);
     	  
     }
 
+    /**
+     * @return a new decoder of the given type, null for UNKNOWN
+     */
+    static Decoder createDecoder(DecoderType type) {
+        switch (type) {
+            case OPUS: return new OpusDecoder(1);
+            case VORBIS: return new VorbisDecoder(1);
+            case MX: return new MXDecoder();
+            default: return null;
+        }
+    }
+
+    /**
+     * Stops the player and frees the native decoder session, the player can not be used afterwards
+     */
+    public void release() {
+        stop();
+        synchronized (decoderLock) {
+            if (decoder != null) decoder.release();
+            decoder = null;
+        }
+    }
+
     public void stopAudioTrack(){
         decodeFeed.stopAudioTrack();
         Log.d("Player_Status", "stop audio track");
@@ -93,13 +137,55 @@ public class Player implements Runnable {
             throw new IllegalStateException("Must be stopped to change source!");
         }
     	Log.d(TAG, "setDataSource: given length:" + streamSecondsLength);
-    	// set an input stream as data source
-    	this.streamSecondsLength = streamSecondsLength;
-    	decodeFeed.setData(path, streamSecondsLength);
+    	// set an input stream as data source, once a decode loop just stopped has ended: its last
+    	// onStop would drop the new source
+    	synchronized (decoderLock) {
+    		decodeFeed.setData(path, streamSecondsLength);
+    	}
     	// start the thread, will go directly to "run" method
     	new Thread(this).start();
     }
 
+    /**
+     * Queues a track to play once the current one ends. The next track is opened while the current one plays,
+     * and follows it without a gap and on the same AudioTrack when it has the same sample rate and channels.
+     * A TRACK_INFO event is sent when the decoder moves on to it
+     * @param path the file path or the url
+     * @param streamSecondsLength the total size in seconds of this stream, 0 to find it from the end of the file, or -1 if not available (live streams)
+     */
+    public void enqueue(String path, long streamSecondsLength) {
+        decodeFeed.enqueue(path, streamSecondsLength);
+    }
+
+    /**
+     * Skips to the next queued track right away, or starts it if the player is stopped
+     * @return false if the queue is empty
+     */
+    public synchronized boolean next() {
+        if (decodeFeed.getQueueSize() == 0) return false;
+        stop();
+        // the stopped loop ends at its next read, its onStop must not drop the next source
+        synchronized (decoderLock) {
+            if (!decodeFeed.setNextData()) return false;
+        }
+        new Thread(this).start();
+        return true;
+    }
+
+    /**
+     * Drops all queued tracks, the current one keeps playing
+     */
+    public void clearQueue() {
+        decodeFeed.clearQueue();
+    }
+
+    /**
+     * @return the number of tracks queued after the current one
+     */
+    public int getQueueSize() {
+        return decodeFeed.getQueueSize();
+    }
+
     /**
      * Return the data source from the decode feed
      */
@@ -107,54 +193,172 @@ public class Player implements Runnable {
         return decodeFeed.getDataSource();
     }
 
+    /**
+     * Sets how far ahead of the audio output the decoder may run, takes effect with the next track
+     * @param ms the PCM buffer size in milliseconds, 0 writes to the AudioTrack straight from the decoder thread
+     */
+    public void setBufferMs(int ms) {
+        decodeFeed.setBufferMs(ms);
+    }
+
+    /**
+     * Selects how the native decoders hand over PCM, takes effect with the next track
+     * @param direct true (default) to decode into a direct buffer, false to copy through a short[]
+     */
+    public void setDirectPCMOutput(boolean direct) {
+        decodeFeed.setDirectPCMOutput(direct);
+    }
+
+    /**
+     * Sets how much PCM the native decoders gather before handing it to the player, takes effect with the next track.
+     * Larger batches mean fewer native to Java transitions; only used with direct PCM output
+     * @param ms the batch length in milliseconds, 0 to hand over every decoded frame
+     */
+    public void setBatchMs(int ms) {
+        decodeFeed.setBatchMs(ms);
+    }
+
+    /**
+     * Dithers the conversion of float decoded audio (Vorbis) to 16 bit, takes effect with the next track.
+     * It trades the conversion's distortion on quiet passages for a faint steady hiss
+     * @param dither true to dither, false (default) to round only
+     */
+    public void setDither(boolean dither) {
+        decodeFeed.setDither(dither);
+    }
+
+    /**
+     * Sets how often PLAY_UPDATE is sent: once each time the position moves into another step of this size
+     * @param ms the step in milliseconds, {@link PlayerEvents#DEFAULT_PROGRESS_GRANULARITY_MS} by default
+     */
+    public void setProgressGranularity(int ms) {
+        events.setProgressGranularity(ms);
+    }
+
+    /**
+     * Plays the Vorbis and Opus output as float samples since Android 5.0, takes effect with the next track.
+     * It skips the conversion to 16 bit and keeps the samples above full scale for the platform's mixer
+     * @param floatOutput true for a float AudioTrack, false (default) for 16 bit
+     */
+    public void setFloatOutput(boolean floatOutput) {
+        decodeFeed.setFloatOutput(floatOutput);
+    }
+
+    /**
+     * @return the PCM bytes copied per second between the decoder and the AudioTrack, measured over the last second
+     */
+    public long getPCMCopyRate() {
+        return decodeFeed.getPCMCopyRate();
+    }
+
+    /**
+     * Sets how many bytes of a remote source are read ahead of the decoder, takes effect with the next data source
+     * @param bytes the read-ahead buffer capacity
+     */
+    public void setPrefetchSize(int bytes) {
+        decodeFeed.setPrefetchSize(bytes);
+    }
+
+    /**
+     * Keeps the seek index and the exact length of played tracks in the given directory, so playing
+     * them again gets the length and seeks without reading the file through
+     * @param cacheDir usually Context.getCacheDir(), null to not keep them. Takes effect with the next data source
+     */
+    public void setIndexCacheDir(File cacheDir) {
+        decodeFeed.setIndexCache(cacheDir != null ? new SeekIndexCache(cacheDir) : null);
+    }
+
+    /**
+     * Keeps what is downloaded of remote tracks on disk. Seeking back, or playing a track again, reads the
+     * downloaded parts from there and only requests the parts still missing (the server needs Range support)
+     * @param cacheDir usually Context.getCacheDir(), null to not keep downloads. Takes effect with the next data source
+     * @param maxBytes how many downloaded bytes to keep at most, the least recently played tracks go first
+     */
+    public void setDownloadCacheDir(File cacheDir, long maxBytes) {
+        decodeFeed.setDownloadCache(cacheDir != null ? new DownloadCache(cacheDir, maxBytes) : null);
+    }
+
+    /**
+     * Adds a source of encoded data the player does not know about, asked for each path before the built-in
+     * file and HTTP sources, see {@link MemoryDataSource.Factory} for data held in memory
+     * @param factory opens the paths it handles, returns null for the others
+     */
+    public void registerDataSource(DataSource.Factory factory) {
+        decodeFeed.getDataSources().register(factory);
+    }
+
+    public void unregisterDataSource(DataSource.Factory factory) {
+        decodeFeed.getDataSources().unregister(factory);
+    }
+
+    /**
+     * Sets how long remote sources wait for the server, takes effect with the next data source
+     * @param connectMs for a connection, 0 to wait forever
+     * @param readMs for data once connected, before the read fails; 0 to wait forever
+     */
+    public void setHttpTimeouts(int connectMs, int readMs) {
+        decodeFeed.getDataSources().setTimeouts(connectMs, readMs);
+    }
+
+    /**
+     * Sets how long a live stream that dropped is tried again before playback fails, the buffered audio
+     * keeps playing meanwhile. Takes effect with the next data source
+     * @param ms the time without data to give up after, 0 to fail right away
+     */
+    public void setLiveReconnectTime(int ms) {
+        decodeFeed.getDataSources().setReconnectMs(ms);
+    }
+
+    /**
+     * @return the length in seconds of the track playing: the exact length once it is known from the end of
+     * the file or the index cache, else as given to {@link #setDataSource(String, long)} or {@link #enqueue(String, long)}
+     */
     public long getDuration() {
-    	return streamSecondsLength;
+    	return decodeFeed.getStreamSecondsLength();
     }
 
     public void play() {
-        if (playerState.get() == PlayerStates.READING_HEADER){
-            stop();
+        // the transition also unparks the paused threads
+        if (playerState.transition(PlayerStates.READY_TO_PLAY, PlayerStates.PLAYING)) {
+            decodeFeed.resumeBuffering();
             return;
         }
-        if (playerState.get() == PlayerStates.STOPPED){
+        int state = playerState.get();
+        if (state == PlayerStates.READING_HEADER){
+            stop();
             return;
         }
-    	if (playerState.get() != PlayerStates.READY_TO_PLAY) {
-            throw new IllegalStateException("Must be ready first!");    		
+        if (state == PlayerStates.STOPPED){
+            return;
         }
-    	playerState.set(PlayerStates.PLAYING);
-    	// make sure the thread gets unlocked
-    	decodeFeed.syncNotify();
+        throw new IllegalStateException("Must be ready first!");
     }
     
     public void pause() {
-        if (playerState.get() == PlayerStates.READING_HEADER){
-            stop();
+        while (true) {
+            int state = playerState.get();
+            if (state == PlayerStates.PLAYING || state == PlayerStates.BUFFERING) {
+                // the decoder and the output thread park at their next read or write
+                if (playerState.transition(state, PlayerStates.READY_TO_PLAY)) return;
+                // buffering started or ended meanwhile
+                continue;
+            }
+            if (state == PlayerStates.READING_HEADER || state == PlayerStates.READY_TO_PLAY){
+                stop();
+            }
             return;
         }
-        if (playerState.get() == PlayerStates.READY_TO_PLAY){
-            stop();
-            return;
-        }
-        if (playerState.get() == PlayerStates.STOPPED){
-            return;
-        }
-    	if (playerState.get() != PlayerStates.PLAYING) {
-            throw new IllegalStateException("Must be playing first!");
-        }
-    	playerState.set(PlayerStates.READY_TO_PLAY);
-    	// make sure the thread gets locked
-    	decodeFeed.syncNotify();
     }
     
     /**
      * Stops the player and notifies the decode feed
      */
     public synchronized void stop() {
-    	if (type == DecoderType.MX)
-    		MXDecoder.stop();
+    	Decoder current = decoder;
+    	if (current != null)
+    		current.stop();
     	
-    	decodeFeed.onStop();
+    	decodeFeed.stop();
         // make sure the thread gets unlocked
     	decodeFeed.syncNotify();
     }
@@ -167,19 +371,15 @@ public class Player implements Runnable {
         android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
         
         int result = 0;
-        switch (type) {
-        	case OPUS:
-        		Log.e(TAG, "call opus readwrite loop");
-        		result = OpusDecoder.readDecodeWriteLoop(decodeFeed);
-        	break;
-        	case VORBIS:
-        		Log.e(TAG, "call vorbis readwrite loop");
-        		result = VorbisDecoder.readDecodeWriteLoop(decodeFeed);
-        	break;
-        	case MX:
-        		Log.e(TAG, "call mx readwrite loop");
-        		result = MXDecoder.readDecodeWriteLoop(decodeFeed);
-        	break;
+        // the decoder decodes one track at a time
+        synchronized (decoderLock) {
+            if (decoder == null) {
+                Log.e(TAG, "No decoder for type:" + type);
+                events.sendEvent(PlayerEvents.PLAYING_FAILED);
+                return;
+            }
+            Log.e(TAG, "call " + type + " readwrite loop");
+            result = decoder.readDecodeWriteLoop(decodeFeed);
         }
 
         // Radu: why did I add the following code in the first place? Can't remember:
@@ -215,20 +415,29 @@ public class Player implements Runnable {
     }
 
     /**
-     * Checks whether the player is currently playing
+     * Checks whether the player is currently playing, including while it buffers
      *
      * @return <code>true</code> if playing, <code>false</code> otherwise
      */
-    public synchronized boolean isPlaying() {
+    public boolean isPlaying() {
         return playerState.isPlaying();
     }
 
+    /**
+     * Checks whether the player is playing but waiting for a remote source, the audio decoded so far keeps playing
+     *
+     * @return <code>true</code> if buffering, <code>false</code> otherwise
+     */
+    public boolean isBuffering() {
+        return playerState.isBuffering();
+    }
+
     /**
      * Checks whether the player is ready to play, this is the state used also for Pause
      *
      * @return <code>true</code> if ready, <code>false</code> otherwise
      */
-    public synchronized boolean isReadyToPlay() {
+    public boolean isReadyToPlay() {
         return playerState.isReadyToPlay();
     }
     
@@ -237,7 +446,7 @@ public class Player implements Runnable {
      *
      * @return <code>true</code> if playing, <code>false</code> otherwise
      */
-    public synchronized boolean isStopped() {
+    public boolean isStopped() {
         return playerState.isStopped();
     }
 
@@ -246,7 +455,7 @@ public class Player implements Runnable {
      *
      * @return <code>true</code> if reading the header, <code>false</code> otherwise
      */
-    public synchronized boolean isReadingHeader() {
+    public boolean isReadingHeader() {
         return playerState.isReadingHeader();
     }
 
@@ -256,8 +465,8 @@ public class Player implements Runnable {
      * @param percentage - position where to seek
      */
     public synchronized void setPosition(int percentage) {
-    	if (type == DecoderType.MX)
-    		MXDecoder.setPositionSec((int) (percentage * getDuration() / 100));
+    	if (decoder instanceof MXDecoder)
+    		((MXDecoder) decoder).setPositionSec((int) (percentage * getDuration() / 100));
     	else
     		decodeFeed.setPosition(percentage);
     }
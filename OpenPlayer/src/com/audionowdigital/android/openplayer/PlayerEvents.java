@@ -12,6 +12,9 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Created by radhoo on /14.
  */
@@ -38,20 +41,75 @@ public class PlayerEvents {
     public static final int READY_TO_PLAY = 1004;
     
     /**
-     * Progress indicator, sent out periodically when playing
+     * Progress indicator, sent out periodically when playing: arg1 holds the seconds, arg2 the milliseconds
      */
     public static final int PLAY_UPDATE = 1005;
     
     /**
-     * Progress indicator, sent out periodically when playing
+     * Track information, in the message data
      */
     public static final int TRACK_INFO = 1006;
 
     /**
-     * Handler for sending status updates
+     * Read-ahead buffer fill level of a remote source, arg1 holds the percent (0 to 100)
+     */
+    public static final int BUFFER_UPDATE = 1007;
+
+    /**
+     * Receives the player events as typed calls, instead of messages to a Handler
+     */
+    public interface Listener {
+        public void onReadingHeader();
+        public void onTrackInfo(String vendor, String title, String artist, String album, String date, String track);
+        public void onReadyToPlay(int audioSessionId);
+        /**
+         * @param miliSeconds the playback position, reported once per progress granularity it moves by
+         */
+        public void onPlayUpdate(long miliSeconds);
+        public void onBufferUpdate(int percent);
+        public void onPlayingFailed();
+        public void onPlayingFinished();
+    }
+
+    /**
+     * A {@link Listener} that does nothing, to override only the calls needed
+     */
+    public static class ListenerAdapter implements Listener {
+        public void onReadingHeader() {}
+        public void onTrackInfo(String vendor, String title, String artist, String album, String date, String track) {}
+        public void onReadyToPlay(int audioSessionId) {}
+        public void onPlayUpdate(long miliSeconds) {}
+        public void onBufferUpdate(int percent) {}
+        public void onPlayingFailed() {}
+        public void onPlayingFinished() {}
+    }
+
+    /**
+     * Default progress granularity, one PLAY_UPDATE per second of playback
+     */
+    public static final int DEFAULT_PROGRESS_GRANULARITY_MS = 1000;
+
+    /**
+     * Handler for sending status updates, null when there is a listener
      */
     private final Handler handler;
-    
+
+    private final Listener listener;
+    private final Executor executor;
+
+    /**
+     * Reused for every call of the listener, null with a handler
+     */
+    private final EventDispatch readingHeader, playingFailed, playingFinished;
+    private final LatestValueDispatch playUpdate, bufferUpdate;
+
+    private volatile int progressGranularity = DEFAULT_PROGRESS_GRANULARITY_MS;
+
+    /**
+     * The progress step last reported, -1 for none. Only the thread writing the audio reports progress
+     */
+    private volatile long reportedStep = -1;
+
     /**
      * Constructs a new instance of the PlayerEvents
      *
@@ -62,22 +120,97 @@ public class PlayerEvents {
             throw new IllegalArgumentException("Handler must not be null.");
         }
         this.handler = handler;
+        this.listener = null;
+        this.executor = null;
+        readingHeader = playingFailed = playingFinished = null;
+        playUpdate = bufferUpdate = null;
     }
-    
+
+    /**
+     * Constructs a new instance of the PlayerEvents calling a listener
+     *
+     * @param listener   listener to call with the player status updates
+     * @param executor   executor the listener is called on, such as one posting to the main thread
+     */
+    public PlayerEvents(Listener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new IllegalArgumentException("Listener and executor must not be null.");
+        }
+        this.handler = null;
+        this.listener = listener;
+        this.executor = executor;
+        readingHeader = new EventDispatch(READING_HEADER);
+        playingFailed = new EventDispatch(PLAYING_FAILED);
+        playingFinished = new EventDispatch(PLAYING_FINISHED);
+        playUpdate = new LatestValueDispatch(PLAY_UPDATE);
+        bufferUpdate = new LatestValueDispatch(BUFFER_UPDATE);
+    }
+
+    /**
+     * @param ms report the progress each time the position moves into another step of this many milliseconds
+     */
+    public void setProgressGranularity(int ms) {
+        if (ms <= 0) {
+            throw new IllegalArgumentException("Progress granularity must be above 0.");
+        }
+        progressGranularity = ms;
+    }
+
+    /**
+     * Sends PLAY_UPDATE when the position is in another step than the one last reported, so it is sent
+     * once per step instead of for each buffer written, and right away after a seek in either direction
+     *
+     * @param miliSeconds the playback position
+     */
+    public void sendProgress(long miliSeconds) {
+        long step = miliSeconds / progressGranularity;
+        if (step == reportedStep) return;
+        reportedStep = step;
+        if (handler != null) {
+            // arg1 keeps the seconds it always had, arg2 has the milliseconds
+            Message.obtain(handler, PLAY_UPDATE, (int) (miliSeconds / 1000), (int) miliSeconds).sendToTarget();
+        } else {
+            playUpdate.send(miliSeconds);
+        }
+    }
+
+    /**
+     * Makes the next progress be reported whatever its position, for a new track or after a seek
+     */
+    public void resetProgress() {
+        reportedStep = -1;
+    }
+
     public void sendEvent(int event) {
-    	handler.sendEmptyMessage(event);
+        if (handler != null) {
+            handler.sendEmptyMessage(event);
+        } else {
+            dispatch(event, 0);
+        }
     }
-    
+
     public void sendEvent(int event, int param) {
-    	Message msg = new Message();
-    	msg.arg1 = param;
-    	msg.what = event;
-    	handler.sendMessage(msg);
-    } 
-    
-    
-    public void sendEvent(int event, String vendor, String title, String artist, String album, String date, String track) {
-    	Message msg = new Message();
+        if (handler != null) {
+            Message.obtain(handler, event, param, 0).sendToTarget();
+        } else {
+            dispatch(event, param);
+        }
+    }
+
+
+    public void sendEvent(final int event, final String vendor, final String title, final String artist, final String album,
+                          final String date, final String track) {
+        if (handler == null) {
+            // once per track, or per title of a live stream
+            if (event == TRACK_INFO) executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onTrackInfo(vendor, title, artist, album, date, track);
+                }
+            });
+            return;
+        }
+    	Message msg = Message.obtain(handler, event);
     	Bundle data = new Bundle();
     	data.putString("vendor", vendor);
     	data.putString("title", title);
@@ -86,10 +219,73 @@ public class PlayerEvents {
     	data.putString("date", date);
     	data.putString("track", track);
     	msg.setData(data);
-    	
-    	msg.what = event;
-    	
-    	handler.sendMessage(msg);
+
+    	msg.sendToTarget();
+    }
+
+    private void dispatch(int event, final int param) {
+        switch (event) {
+            case READING_HEADER: executor.execute(readingHeader); break;
+            case PLAYING_FAILED: executor.execute(playingFailed); break;
+            case PLAYING_FINISHED: executor.execute(playingFinished); break;
+            case PLAY_UPDATE: playUpdate.send(param); break;
+            case BUFFER_UPDATE: bufferUpdate.send(param); break;
+            case READY_TO_PLAY:
+                // once per track
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onReadyToPlay(param);
+                    }
+                });
+                break;
+        }
+    }
+
+    /**
+     * Calls the listener for an event without a value
+     */
+    private class EventDispatch implements Runnable {
+        private final int event;
+
+        EventDispatch(int event) {
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            switch (event) {
+                case READING_HEADER: listener.onReadingHeader(); break;
+                case PLAYING_FAILED: listener.onPlayingFailed(); break;
+                case PLAYING_FINISHED: listener.onPlayingFinished(); break;
+            }
+        }
+    }
+
+    /**
+     * Calls the listener with the latest value of a frequent event. A value sent while the previous one
+     * still waits on the executor replaces it, so a busy listener gets the current position, not a backlog
+     */
+    private class LatestValueDispatch implements Runnable {
+        private final int event;
+        private final AtomicBoolean pending = new AtomicBoolean(false);
+        private volatile long value;
+
+        LatestValueDispatch(int event) {
+            this.event = event;
+        }
+
+        void send(long value) {
+            this.value = value;
+            if (pending.compareAndSet(false, true)) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            // cleared first, a value sent from now on is posted again
+            pending.set(false);
+            if (event == PLAY_UPDATE) listener.onPlayUpdate(value);
+            else listener.onBufferUpdate((int) value);
+        }
     }
-    
 }
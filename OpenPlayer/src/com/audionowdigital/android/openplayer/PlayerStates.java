@@ -10,57 +10,171 @@ package com.audionowdigital.android.openplayer;
 
 import android.util.Log;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 /**
- * Created by radhoo on /14.
+ * The state is one atomic value, changed only along the transitions below, so checking it is a
+ * single volatile read. Threads that wait for the pause to end are parked, and unparked by every
+ * state change.
  */
 
 public class PlayerStates {
 	 /**
-     * Playing state which can either be stopped, playing, or reading the header before playing
+     * Playing state which can either be stopped, playing, or reading the header before playing.
+     * Buffering is playing while the source ran out of data: the audio buffered so far keeps playing
      */
     public static final int
     	READY_TO_PLAY = 0,
-        PLAYING = 1, 
-        STOPPED = 2, 
-        READING_HEADER = 3; 
-        //BUFFERING = 4;
-    
-    public int playerState = STOPPED;
-    
+        PLAYING = 1,
+        STOPPED = 2,
+        READING_HEADER = 3,
+        BUFFERING = 4;
+
+    /**
+     * The states each state may change to, as bit masks indexed by state. Stopping is always allowed
+     */
+    private static final int[] TRANSITIONS = new int[5];
+    static {
+        TRANSITIONS[STOPPED] = bit(STOPPED) | bit(READING_HEADER);
+        TRANSITIONS[READING_HEADER] = bit(STOPPED) | bit(READY_TO_PLAY);
+        TRANSITIONS[READY_TO_PLAY] = bit(STOPPED) | bit(PLAYING);
+        TRANSITIONS[PLAYING] = bit(STOPPED) | bit(READY_TO_PLAY) | bit(BUFFERING);
+        TRANSITIONS[BUFFERING] = bit(STOPPED) | bit(READY_TO_PLAY) | bit(PLAYING);
+    }
+
+    private static int bit(int state) {
+        return 1 << state;
+    }
+
+    private final AtomicInteger playerState = new AtomicInteger(STOPPED);
+
+    /**
+     * Threads parked in {@link #awaitNotPaused()}
+     */
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * @return true if the state machine allows going from one state to the other
+     */
+    public static boolean isAllowed(int from, int to) {
+        return from >= 0 && from < TRANSITIONS.length && to >= 0 && to < TRANSITIONS.length &&
+                (TRANSITIONS[from] & bit(to)) != 0;
+    }
+
     public int get() {
-    	return playerState;
+    	return playerState.get();
     }
-    
-    public void set(int state) { 
-    	Log.e("PlayerStates", "new state:"+state);
-    	playerState = state;
+
+    /**
+     * Changes to the given state from whatever the current one is
+     * @throws java.lang.IllegalStateException if the current state can not change to it
+     */
+    public void set(int state) {
+        if (!moveTo(state)) {
+            throw new IllegalStateException("No transition from " + get() + " to " + state);
+        }
     }
-    
+
     /**
-     * Checks whether the player is currently playing
+     * Changes to the given state, if the current state allows it
+     * @return false if the current state can not change to it
+     */
+    public boolean moveTo(int state) {
+        while (true) {
+            int current = playerState.get();
+            if (!isAllowed(current, state)) return false;
+            if (playerState.compareAndSet(current, state)) {
+                changed(current, state);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Changes the state only if it still is the expected one
+     * @return false if the state was another one
+     * @throws java.lang.IllegalArgumentException for a transition the state machine does not have
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to)) {
+            throw new IllegalArgumentException("No transition from " + from + " to " + to);
+        }
+        if (!playerState.compareAndSet(from, to)) return false;
+        changed(from, to);
+        return true;
+    }
+
+    private void changed(int from, int to) {
+        Log.e("PlayerStates", "new state:" + to + " from:" + from);
+        wakeWaiters();
+    }
+
+    /**
+     * Blocks the calling thread while the player is paused (ready to play), returns right away otherwise
+     */
+    public void awaitNotPaused() {
+        if (playerState.get() != READY_TO_PLAY) return;
+        Thread current = Thread.currentThread();
+        boolean interrupted = false;
+        // registered before checking again, so a change in between unparks us or is seen
+        waiters.add(current);
+        try {
+            while (playerState.get() == READY_TO_PLAY) {
+                LockSupport.park(this);
+                // keep waiting, the interrupt is passed on once we are done
+                if (Thread.interrupted()) interrupted = true;
+            }
+        } finally {
+            waiters.remove(current);
+        }
+        if (interrupted) current.interrupt();
+    }
+
+    /**
+     * Unparks the waiting threads to check the state again, every state change does it
+     */
+    public void wakeWaiters() {
+        for (Thread t : waiters) LockSupport.unpark(t);
+    }
+
+    /**
+     * Checks whether the player is currently playing, or buffering while playing
      *
      * @return <code>true</code> if playing, <code>false</code> otherwise
      */
-    public synchronized boolean isPlaying() {
-        return playerState == PlayerStates.PLAYING;
+    public boolean isPlaying() {
+        int state = playerState.get();
+        return state == PlayerStates.PLAYING || state == PlayerStates.BUFFERING;
     }
-    
+
+    /**
+     * Checks whether the player is playing but waiting for data from the source
+     *
+     * @return <code>true</code> if buffering, <code>false</code> otherwise
+     */
+    public boolean isBuffering() {
+        return playerState.get() == PlayerStates.BUFFERING;
+    }
+
     /**
      * Checks whether the player is ready to play, this is the state used also for Pause
      *
      * @return <code>true</code> if ready, <code>false</code> otherwise
      */
-    public synchronized boolean isReadyToPlay() {
-        return playerState == PlayerStates.READY_TO_PLAY;
+    public boolean isReadyToPlay() {
+        return playerState.get() == PlayerStates.READY_TO_PLAY;
     }
-    
+
     /**
      * Checks whether the player is currently stopped (not playing)
      *
      * @return <code>true</code> if playing, <code>false</code> otherwise
      */
-    public synchronized boolean isStopped() {
-        return playerState == PlayerStates.STOPPED;
+    public boolean isStopped() {
+        return playerState.get() == PlayerStates.STOPPED;
     }
 
     /**
@@ -68,8 +182,8 @@ public class PlayerStates {
      *
      * @return <code>true</code> if reading the header, <code>false</code> otherwise
      */
-    public synchronized boolean isReadingHeader() {
-        return playerState == PlayerStates.READING_HEADER;
+    public boolean isReadingHeader() {
+        return playerState.get() == PlayerStates.READING_HEADER;
     }
 
 
@@ -0,0 +1,477 @@
+/*
+ * SeekIndex.java - Maps time to byte offsets in an Ogg Opus or Vorbis source, using the page granule positions
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Each entry is a page of the first logical stream: where it starts, where it ends and the granule
+ * position of its last sample. Playback at granule g can start at the end of the last page with a
+ * granule up to g. Pages are added as the decoder reads them, and looked up by bisection through a
+ * {@link PageReader} when a seek goes past what was read so far.
+ */
+
+public class SeekIndex implements OggPageScanner.Listener {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "SeekIndex";
+
+    /**
+     * Opus granule positions always count 48 kHz samples
+     */
+    private static final int OPUS_GRANULE_RATE = 48000;
+
+    /**
+     * Bytes read per bisection step, holds a few typical pages
+     */
+    private static final int PROBE_LENGTH = 16 * 1024;
+
+    /**
+     * A stored index keeps about one page per this many milliseconds, a seek reads the pages in between
+     */
+    private static final int STORED_SPACING_MS = 1000;
+
+    /**
+     * Positional reads of the source, independent of the stream being decoded
+     */
+    public interface PageReader {
+        /**
+         * @return the number of bytes read, less than length only at the end of the source
+         */
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+        public void close();
+    }
+
+    /**
+     * Where to continue reading for a seek, and the time found there
+     */
+    public static class SeekPoint {
+        public final long offset;
+        public final long granule;
+        public final long ms;
+
+        SeekPoint(long offset, long granule, long ms) {
+            this.offset = offset;
+            this.granule = granule;
+            this.ms = ms;
+        }
+    }
+
+    // guarded by this
+    private int serial;
+    private boolean hasStream = false, chained = false, complete = false;
+    private long granuleRate = 0, preSkip = 0;
+
+    // guarded by this, sorted by offset
+    private long[] starts = new long[256], ends = new long[256], granules = new long[256];
+    private int count = 0;
+
+    // guarded by this, pages or the end were found since the index was created, loaded or stored
+    private boolean dirty = false;
+
+    @Override
+    public synchronized void onPage(OggPageScanner.Page page) {
+        if (!hasStream) {
+            if ((page.flags & OggPageScanner.FLAG_BOS) == 0 || !readCodec(page)) return;
+            serial = page.serial;
+            hasStream = true;
+        } else if (page.serial != serial) {
+            // a chained stream restarts its granule positions, only the first one is indexed
+            if ((page.flags & OggPageScanner.FLAG_BOS) != 0 && granuleRate > 0) chained = true;
+            return;
+        }
+        if (chained) return;
+        if ((page.flags & OggPageScanner.FLAG_EOS) != 0 && !complete) {
+            complete = true;
+            dirty = true;
+        }
+        // no packet ends on this page
+        if (page.granule == -1) return;
+        insert(page.offset, page.end(), page.granule);
+    }
+
+    /**
+     * Picks up the granule rate and pre-skip from the identification header
+     */
+    private boolean readCodec(OggPageScanner.Page page) {
+        byte[] b = page.bos;
+        if (page.bosLength >= 19 && b[0] == 'O' && b[1] == 'p' && b[2] == 'u' && b[3] == 's' &&
+                b[4] == 'H' && b[5] == 'e' && b[6] == 'a' && b[7] == 'd') {
+            granuleRate = OPUS_GRANULE_RATE;
+            preSkip = (b[10] & 0xff) | (b[11] & 0xff) << 8;
+            return true;
+        }
+        if (page.bosLength >= 16 && b[0] == 1 && b[1] == 'v' && b[2] == 'o' && b[3] == 'r' &&
+                b[4] == 'b' && b[5] == 'i' && b[6] == 's') {
+            granuleRate = OggPageScanner.readInt(b, 12) & 0xffffffffL;
+            preSkip = 0;
+            return granuleRate > 0;
+        }
+        return false;
+    }
+
+    private void insert(long start, long end, long granule) {
+        int i = search(start);
+        if (i < count && starts[i] == start) return;
+        if (count == starts.length) {
+            starts = grow(starts);
+            ends = grow(ends);
+            granules = grow(granules);
+        }
+        System.arraycopy(starts, i, starts, i + 1, count - i);
+        System.arraycopy(ends, i, ends, i + 1, count - i);
+        System.arraycopy(granules, i, granules, i + 1, count - i);
+        starts[i] = start;
+        ends[i] = end;
+        granules[i] = granule;
+        count++;
+        dirty = true;
+    }
+
+    private static long[] grow(long[] a) {
+        long[] b = new long[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /**
+     * @return the index of the first entry starting at or after offset
+     */
+    private int search(long offset) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the last entry with a granule up to the given one, -1 if none
+     */
+    private int floor(long granule) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (granules[mid] <= granule) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * @return true once the codec of the stream is known
+     */
+    public synchronized boolean isReady() {
+        return granuleRate > 0;
+    }
+
+    /**
+     * @return the stream length in milliseconds if the index got to its last page, else -1
+     */
+    public synchronized long getDurationMs() {
+        if (!complete || chained || count == 0) return -1;
+        return granuleToMs(granules[count - 1]);
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private long granuleToMs(long granule) {
+        return Math.max(0, granule - preSkip) * 1000 / granuleRate;
+    }
+
+    /**
+     * Finds where to continue decoding to get to the given time, reading pages through the reader as needed
+     * @param ms           the target time
+     * @param reader       positional access to the source, null to only use the pages seen so far
+     * @param sourceLength the source length in bytes, -1 if unknown
+     * @return the seek point, or null if the index can not tell
+     */
+    public SeekPoint find(long ms, PageReader reader, long sourceLength) {
+        long target, lo, loGranule, hi;
+        // read outside the lock, the decoder adds its pages meanwhile
+        if (reader != null && !isReady()) readFirstPage(reader);
+        synchronized (this) {
+            if (!isReady() || chained) return null;
+            target = ms * granuleRate / 1000 + preSkip;
+            int f = floor(target);
+            // the header pages have granule 0, so only a stream we never saw the start of has no floor
+            if (f < 0) return null;
+            lo = ends[f];
+            loGranule = granules[f];
+            if (f + 1 < count) {
+                hi = starts[f + 1];
+                // the next page holds the target: exact
+                if (hi == lo) return new SeekPoint(lo, loGranule, granuleToMs(loGranule));
+            } else if (complete) {
+                // past the last page
+                return new SeekPoint(lo, loGranule, granuleToMs(loGranule));
+            } else {
+                hi = sourceLength;
+            }
+        }
+        if (reader == null || hi <= lo) {
+            // as close as we know, playback starts a bit before the target
+            return new SeekPoint(lo, loGranule, granuleToMs(loGranule));
+        }
+
+        try {
+            return bisect(reader, target, lo, loGranule, hi);
+        } catch (IOException e) {
+            Log.e(TAG, "bisection read failed:" + e.getMessage());
+            return new SeekPoint(lo, loGranule, granuleToMs(loGranule));
+        }
+    }
+
+    /**
+     * Reads the last pages of the source to get the stream length without decoding it
+     * @return true if the last page is now known
+     */
+    public boolean findEnd(PageReader reader, long sourceLength) {
+        if (sourceLength <= 0) return false;
+        // the reads are done without holding the lock, only what they found is added under it
+        if (!isReady()) readFirstPage(reader);
+        synchronized (this) {
+            if (!isReady() || chained) return false;
+            if (complete) return true;
+        }
+        byte[] buffer = new byte[PROBE_LENGTH + OggPageScanner.MAX_PAGE_SIZE];
+        OggPageScanner.Page page = new OggPageScanner.Page();
+        long lastStart = -1, lastGranule = -1;
+        int lastLength = 0;
+        try {
+            // a small tail first, the whole largest page if that does not hold one of ours
+            for (int want = 2 * PROBE_LENGTH; lastStart < 0; want = buffer.length) {
+                long base = Math.max(0, sourceLength - want);
+                int read = readFully(reader, base, buffer, (int) (sourceLength - base));
+                for (int i = 0; i < read; ) {
+                    int length = buffer[i] == 'O' ? OggPageScanner.parsePage(buffer, i, read - i, page) : -1;
+                    if (length <= 0) {
+                        i++;
+                        continue;
+                    }
+                    if (page.granule != -1 && isOurs(page)) {
+                        lastStart = base + i;
+                        lastLength = length;
+                        lastGranule = page.granule;
+                    }
+                    i += length;
+                }
+                if (want == buffer.length || base == 0) break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "last page read failed:" + e.getMessage());
+            return false;
+        }
+        if (lastStart < 0) return false;
+
+        synchronized (this) {
+            if (chained) return false;
+            insert(lastStart, lastStart + lastLength, lastGranule);
+            // a page of another stream after ours would make this a chained source
+            if (lastStart + lastLength == sourceLength) {
+                complete = true;
+                dirty = true;
+            }
+            return complete;
+        }
+    }
+
+    /**
+     * @return true if the index changed since it was created, loaded or last stored
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Stores the index, thinned out to about one page per second, for {@link #read(ByteBuffer)}
+     * @return the stored form, or null if there is nothing worth keeping
+     */
+    public synchronized ByteBuffer write() {
+        if (!isReady() || chained || count == 0) return null;
+        long spacing = granuleRate * STORED_SPACING_MS / 1000;
+        int[] keep = new int[count];
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            // always keep the first (header) page and the last one
+            if (i == 0 || i == count - 1 || granules[i] - granules[keep[kept - 1]] >= spacing) keep[kept++] = i;
+        }
+        ByteBuffer out = ByteBuffer.allocate(4 + 8 + 8 + 1 + 4 + kept * 24);
+        out.putInt(serial).putLong(granuleRate).putLong(preSkip).put((byte) (complete ? 1 : 0)).putInt(kept);
+        for (int k = 0; k < kept; k++) {
+            int i = keep[k];
+            out.putLong(starts[i]).putLong(ends[i]).putLong(granules[i]);
+        }
+        out.flip();
+        dirty = false;
+        return out;
+    }
+
+    /**
+     * Restores an index stored by {@link #write()}
+     * @return the index, or null if the data is not valid
+     */
+    public static SeekIndex read(ByteBuffer in) {
+        if (in.remaining() < 4 + 8 + 8 + 1 + 4) return null;
+        SeekIndex index = new SeekIndex();
+        index.serial = in.getInt();
+        index.granuleRate = in.getLong();
+        index.preSkip = in.getLong();
+        index.complete = in.get() != 0;
+        int kept = in.getInt();
+        if (index.granuleRate <= 0 || kept <= 0 || in.remaining() < kept * 24L) return null;
+        index.hasStream = true;
+        index.starts = new long[kept];
+        index.ends = new long[kept];
+        index.granules = new long[kept];
+        for (int k = 0; k < kept; k++) {
+            index.starts[k] = in.getLong();
+            index.ends[k] = in.getLong();
+            index.granules[k] = in.getLong();
+        }
+        index.count = kept;
+        return index;
+    }
+
+    /**
+     * Reads the identification header, called without holding the lock: the page is added through {@link #onPage}
+     */
+    private void readFirstPage(PageReader reader) {
+        // the identification header is alone on the first page, and short
+        byte[] buffer = new byte[PROBE_LENGTH];
+        OggPageScanner.Page page = new OggPageScanner.Page();
+        try {
+            int read = readFully(reader, 0, buffer, buffer.length);
+            if (OggPageScanner.parsePage(buffer, 0, read, page) > 0) {
+                page.offset = 0;
+                onPage(page);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "first page read failed:" + e.getMessage());
+        }
+    }
+
+    /**
+     * Narrows [lo, hi) down to the page holding the target: lo is a page end with a granule up to the target,
+     * hi a page start (or the source end) with a granule past it
+     */
+    private SeekPoint bisect(PageReader reader, long target, long lo, long loGranule, long hi) throws IOException {
+        byte[] buffer = new byte[PROBE_LENGTH + OggPageScanner.MAX_PAGE_SIZE];
+        OggPageScanner.Page page = new OggPageScanner.Page();
+        int probes = 0;
+
+        while (hi - lo > PROBE_LENGTH) {
+            long mid = lo + (hi - lo) / 2;
+            probes++;
+            if (!findPage(reader, mid, hi, buffer, page)) {
+                // nothing with a granule between mid and hi
+                hi = mid;
+                continue;
+            }
+            // granules going back belong to a chained stream after ours, as if past the target
+            if (page.granule <= target && page.granule >= loGranule) {
+                addPage(page);
+                lo = page.end();
+                loGranule = page.granule;
+            } else {
+                hi = page.offset;
+            }
+        }
+
+        // walk the pages left in between, lo is a page boundary
+        long base = lo;
+        int want = 2 * PROBE_LENGTH;
+        int read = readFully(reader, base, buffer, want), i = 0;
+        while (base + i < hi) {
+            int length = OggPageScanner.parsePage(buffer, i, read - i, page);
+            if (length == 0 && read == want && (i > 0 || want < buffer.length)) {
+                // the page goes past what was read, read again from its start
+                base += i;
+                i = 0;
+                want = buffer.length;
+                read = readFully(reader, base, buffer, want);
+                continue;
+            }
+            if (length <= 0) break;
+            page.offset = base + i;
+            if (page.granule != -1 && isOurs(page)) {
+                if (page.granule > target || page.granule < loGranule) break;
+                addPage(page);
+                lo = page.end();
+                loGranule = page.granule;
+            }
+            i += length;
+        }
+        Log.d(TAG, "seek to granule " + target + " found offset " + lo + " after " + probes + " probes");
+        synchronized (this) {
+            return new SeekPoint(lo, loGranule, granuleToMs(loGranule));
+        }
+    }
+
+    /**
+     * Finds the first verified page of our stream with a granule, starting at or after from and before limit
+     */
+    private boolean findPage(PageReader reader, long from, long limit, byte[] buffer, OggPageScanner.Page page) throws IOException {
+        long base = from;
+        int want = 2 * PROBE_LENGTH;
+        int read = readFully(reader, base, buffer, want), i = 0;
+        while (base + i < limit) {
+            if (i >= read) {
+                if (read < want) return false;
+                base += i;
+                i = 0;
+                read = readFully(reader, base, buffer, want);
+                continue;
+            }
+            if (buffer[i] != 'O') {
+                i++;
+                continue;
+            }
+            int length = OggPageScanner.parsePage(buffer, i, read - i, page);
+            if (length == 0 && read == want && (i > 0 || want < buffer.length)) {
+                // may be a page going past what was read, read it whole
+                base += i;
+                i = 0;
+                want = buffer.length;
+                read = readFully(reader, base, buffer, want);
+                continue;
+            }
+            if (length <= 0) {
+                i++;
+                continue;
+            }
+            page.offset = base + i;
+            if (page.granule != -1 && isOurs(page)) return true;
+            i += length;
+        }
+        return false;
+    }
+
+    private synchronized boolean isOurs(OggPageScanner.Page page) {
+        return hasStream && page.serial == serial;
+    }
+
+    private synchronized void addPage(OggPageScanner.Page page) {
+        insert(page.offset, page.end(), page.granule);
+    }
+
+    private static int readFully(PageReader reader, long offset, byte[] buffer, int length) throws IOException {
+        // readers only return short at the end of the source, asking again would only cost a request
+        return Math.max(0, reader.read(offset, buffer, 0, length));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * SeekIndexCache.java - Keeps the seek index and the length of played tracks on disk, for the next time they are played
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * One small file per track, named after a hash of its key (see {@link DataSource#getCacheKey()}), which
+ * changes with the file length and modification time or the HTTP ETag, so a changed track is indexed again.
+ * Files are mapped to be read and replaced as a whole when written; the least recently played are dropped
+ * beyond {@link #MAX_ENTRIES}.
+ */
+
+public class SeekIndexCache {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "SeekIndexCache";
+
+    private static final int MAGIC = 0x4f504958; // "OPIX"
+    private static final int VERSION = 1;
+
+    /**
+     * How many tracks are kept
+     */
+    public static final int MAX_ENTRIES = 256;
+
+    private final File dir;
+
+    /**
+     * @param cacheDir where to keep the index files, usually Context.getCacheDir()
+     */
+    public SeekIndexCache(File cacheDir) {
+        dir = new File(cacheDir, "openplayer-index");
+    }
+
+    /**
+     * @return the stored index for the key, or null if there is none
+     */
+    public SeekIndex load(String key) {
+        File file = fileFor(key);
+        if (file == null || !file.exists()) return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.remaining() < 12 || in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            int keyLength = in.getInt();
+            if (keyLength < 0 || keyLength > in.remaining()) return null;
+            byte[] stored = new byte[keyLength];
+            in.get(stored);
+            // two keys with the same hash
+            if (!key.equals(new String(stored, "UTF-8"))) return null;
+            SeekIndex index = SeekIndex.read(in);
+            if (index != null) {
+                Log.d(TAG, "loaded index for:" + key + " pages:" + index.size() + " duration ms:" + index.getDurationMs());
+                // marks it as recently used
+                file.setLastModified(System.currentTimeMillis());
+            }
+            return index;
+        } catch (IOException e) {
+            Log.e(TAG, "load failed:" + e.getMessage());
+        } catch (RuntimeException e) {
+            // a truncated or damaged file
+            Log.e(TAG, "load failed, dropping:" + file);
+            file.delete();
+        } finally {
+            if (raf != null) try {
+                raf.close();
+            } catch (IOException e) {
+                Log.d(TAG, "index file already closed");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the index if it changed since it was loaded
+     */
+    public void save(String key, SeekIndex index) {
+        if (!index.isDirty()) return;
+        File file = fileFor(key);
+        if (file == null || (!dir.isDirectory() && !dir.mkdirs())) return;
+        ByteBuffer body = index.write();
+        if (body == null) return;
+
+        File tmp = new File(dir, file.getName() + ".tmp");
+        RandomAccessFile raf = null;
+        try {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            ByteBuffer head = ByteBuffer.allocate(12 + keyBytes.length);
+            head.putInt(MAGIC).putInt(VERSION).putInt(keyBytes.length).put(keyBytes).flip();
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (head.hasRemaining()) channel.write(head);
+            while (body.hasRemaining()) channel.write(body);
+            raf.close();
+            raf = null;
+            // readers see either the old file or the new one
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            Log.d(TAG, "saved index for:" + key + " duration ms:" + index.getDurationMs());
+        } catch (IOException e) {
+            Log.e(TAG, "save failed:" + e.getMessage());
+            tmp.delete();
+            return;
+        } finally {
+            if (raf != null) try {
+                raf.close();
+            } catch (IOException e) {
+                Log.d(TAG, "index file already closed");
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Drops the least recently played entries beyond the limit
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long d = b.lastModified() - a.lastModified();
+                return d > 0 ? 1 : d < 0 ? -1 : 0;
+            }
+        });
+        for (int i = MAX_ENTRIES; i < files.length; i++) files[i].delete();
+    }
+
+    private File fileFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2 + 4);
+            for (byte b : hash) name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return new File(dir, name.append(".idx").toString());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * SinkDecodeFeed.java - A decode feed reading straight from a data source and writing the PCM to a sink, without playing it
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * No player states, AudioTrack or pacing: the decoder runs as fast as it can. Interrupting the
+ * decoding thread ends the decoding at the next read.
+ */
+
+class SinkDecodeFeed implements DecodeFeed {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "SinkDecodeFeed";
+
+    /**
+     * PCM gathered by the native decoders before each call into the sink, and room for the largest decoded frame:
+     * a 120ms Opus packet, at least the 8192 samples the other decoders write at once
+     */
+    private static final int BATCH_MS = 250;
+    private static final int PCM_BUFFER_SAMPLES = 8192;
+    private static final int MAX_FRAME_MS = 120;
+
+    private final DataSource source;
+    private final PcmSink sink;
+    private final boolean dither;
+
+    private ByteBuffer pcmBuffer;
+    private int batchSamples = 0;
+
+    private long sampleRate = 0, channels = 0;
+    // sample frames written, and their length summed over the streams
+    private long frames = 0, audioUs = 0;
+
+    private volatile Exception error;
+
+    SinkDecodeFeed(DataSource source, PcmSink sink, boolean dither) {
+        this.source = source;
+        this.sink = sink;
+        this.dither = dither;
+    }
+
+    /**
+     * @return what ended the decoding early, or null
+     */
+    Exception getError() {
+        return error;
+    }
+
+    long getFrames() {
+        return frames;
+    }
+
+    long getAudioMs() {
+        return audioUs / 1000;
+    }
+
+    private boolean prepareRead() {
+        if (error != null) return false;
+        if (Thread.currentThread().isInterrupted()) {
+            error = new InterruptedException("Decoding interrupted");
+            return false;
+        }
+        return source.isSourceValid();
+    }
+
+    private int checkRead(int read) {
+        if (read == DataSource.DATA_SRC_INVALID) {
+            error = new IOException("Failed to read " + source.getPath());
+        }
+        return read <= 0 ? 0 : read;
+    }
+
+    @Override
+    public int onReadEncodedData(byte[] buffer, int amountToWrite) {
+        if (!prepareRead()) return buffer == null ? -1 : 0;
+        if (buffer == null) return 0;
+        return checkRead(source.read(buffer, 0, amountToWrite));
+    }
+
+    @Override
+    public int onReadEncodedData(ByteBuffer buffer, int offset, int amountToWrite) {
+        if (!prepareRead() || buffer == null) return 0;
+        return checkRead(source.read(buffer, offset, amountToWrite));
+    }
+
+    @Override
+    public void onWritePCMData(short[] pcmData, int amountToRead, int currentSeconds) {
+        if (pcmData == null || amountToRead <= 0 || error != null) return;
+        // only decoders that can not write to the direct buffer get here
+        ByteBuffer buffer = ByteBuffer.allocate(amountToRead * 2).order(ByteOrder.nativeOrder());
+        buffer.asShortBuffer().put(pcmData, 0, amountToRead);
+        write(buffer, amountToRead);
+    }
+
+    /**
+     * Not called, the sinks take 16 bit samples only
+     */
+    @Override
+    public void onWritePCMFloatData(float[] pcmData, int amountToRead, int currentSeconds) {
+    }
+
+    @Override
+    public ByteBuffer getPCMBuffer() {
+        batchSamples = ImplDecodeFeed.convertMsToSamples(BATCH_MS, sampleRate, channels);
+        int capacity = batchSamples + Math.max(PCM_BUFFER_SAMPLES, ImplDecodeFeed.convertMsToSamples(MAX_FRAME_MS, sampleRate, channels));
+        if (pcmBuffer == null || pcmBuffer.capacity() < capacity * 2) {
+            pcmBuffer = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder());
+        }
+        return pcmBuffer;
+    }
+
+    @Override
+    public int getPCMBatchSize() {
+        return batchSamples;
+    }
+
+    /**
+     * @return the channels of 7.1, the widest layout: surround streams are written as they are
+     */
+    @Override
+    public int getMaxChannels() {
+        return 8;
+    }
+
+    @Override
+    public boolean isDithered() {
+        return dither;
+    }
+
+    @Override
+    public boolean isFloatOutput() {
+        return false;
+    }
+
+    @Override
+    public void onWritePCMBuffer(int amountToRead, int currentSeconds) {
+        if (amountToRead <= 0 || error != null) return;
+        pcmBuffer.clear();
+        pcmBuffer.limit(amountToRead * 2);
+        write(pcmBuffer, amountToRead);
+    }
+
+    private void write(ByteBuffer buffer, int samples) {
+        try {
+            sink.write(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Sink failed for " + source.getPath(), e);
+            error = e;
+            return;
+        }
+        frames += samples / channels;
+        audioUs += samples / channels * 1000000L / sampleRate;
+    }
+
+    @Override
+    public void onStop() {
+    }
+
+    @Override
+    public void onStartReadingHeader() {
+    }
+
+    @Override
+    public void onStart(long sampleRate, long channels, String vendor, String title, String artist, String album, String date, String track) {
+        if (sampleRate <= 0 || channels <= 0) {
+            error = new IOException("Invalid format, rate:" + sampleRate + " channels:" + channels);
+            return;
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        try {
+            sink.onFormat(sampleRate, channels);
+        } catch (IOException e) {
+            Log.e(TAG, "Sink refused the format of " + source.getPath(), e);
+            error = e;
+        }
+    }
+
+    /**
+     * @throws java.lang.IllegalStateException always, the whole source is decoded
+     */
+    @Override
+    public void setPosition(int percent) {
+        throw new IllegalStateException("Can not seek while decoding to a sink");
+    }
+
+    @Override
+    public DataSource getDataSource() {
+        return source;
+    }
+
+    @Override
+    public void setDecodeFeedListener(DecodeFeedListener listener) {
+    }
+}
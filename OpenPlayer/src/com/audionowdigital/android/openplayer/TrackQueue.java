@@ -0,0 +1,150 @@
+/*
+ * TrackQueue.java - Tracks to play after the current one, the next of them opened ahead of time
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.util.Log;
+
+import java.util.LinkedList;
+
+/**
+ * The head of the queue gets its {@link DataSource} opened on a background thread while the
+ * current track still plays, so a remote source is already connected and prefetching when the
+ * decoder runs out of the current one.
+ */
+
+public class TrackQueue {
+    /**
+     * The debug tag
+     */
+    private static final String TAG = "TrackQueue";
+
+    static class Track {
+        final String path;
+        final long streamSecondsLength;
+
+        // guarded by the queue
+        private DataSource source;
+        private boolean opening = false, cancelled = false;
+
+        Track(String path, long streamSecondsLength) {
+            this.path = path;
+            this.streamSecondsLength = streamSecondsLength;
+        }
+    }
+
+    // guarded by this
+    private final LinkedList<Track> tracks = new LinkedList<Track>();
+
+    /**
+     * The decoder reads the paths itself, see {@link DataSourceRegistry#openPathOnly(String)}
+     */
+    private final boolean pathOnly;
+
+    public TrackQueue() {
+        this(false);
+    }
+
+    /**
+     * @param pathOnly true if the decoder reads the paths itself (MX), so remote tracks are not opened ahead
+     */
+    public TrackQueue(boolean pathOnly) {
+        this.pathOnly = pathOnly;
+    }
+
+    /**
+     * @param path the file path or the url
+     * @param streamSecondsLength the total size in seconds of this stream or -1 if not available (live streams)
+     */
+    public synchronized void add(String path, long streamSecondsLength) {
+        tracks.add(new Track(path, streamSecondsLength));
+    }
+
+    public synchronized int size() {
+        return tracks.size();
+    }
+
+    /**
+     * Drops all queued tracks, closing the sources opened ahead
+     */
+    public synchronized void clear() {
+        for (Track track : tracks) {
+            track.cancelled = true;
+            if (track.source != null) {
+                track.source.release();
+                track.source = null;
+            }
+        }
+        tracks.clear();
+    }
+
+    /**
+     * Removes the head of the queue
+     * @return the track, or null if the queue is empty
+     */
+    synchronized Track poll() {
+        return tracks.poll();
+    }
+
+    /**
+     * Opens the source of the head track in the background, unless already done
+     * @param sources opens the source
+     */
+    public void preopen(final DataSourceRegistry sources) {
+        final Track head;
+        synchronized (this) {
+            head = tracks.peek();
+            if (head == null || head.source != null || head.opening) return;
+            head.opening = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "opening ahead:" + head.path);
+                DataSource source = open(head.path, sources);
+                synchronized (TrackQueue.this) {
+                    head.opening = false;
+                    if (head.cancelled) source.release();
+                    else head.source = source;
+                    TrackQueue.this.notifyAll();
+                }
+            }
+        }, "TrackQueue").start();
+    }
+
+    /**
+     * Gets the source of a track taken off the queue, opening it now if that was not done ahead
+     * @param track a track returned by {@link #poll()}
+     * @param sources opens the source
+     * @return the source, check {@link DataSource#isSourceValid()}
+     */
+    DataSource open(Track track, DataSourceRegistry sources) {
+        synchronized (this) {
+            // an open in progress is closer to done than a new one
+            while (track.opening) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // let the open in progress release its source when done
+                    track.cancelled = true;
+                    break;
+                }
+            }
+            if (track.source != null && !track.cancelled) {
+                DataSource source = track.source;
+                track.source = null;
+                return source;
+            }
+        }
+        return open(track.path, sources);
+    }
+
+    private DataSource open(String path, DataSourceRegistry sources) {
+        return pathOnly ? sources.openPathOnly(path) : sources.open(path);
+    }
+}
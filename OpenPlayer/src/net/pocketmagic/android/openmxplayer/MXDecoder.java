@@ -16,16 +16,18 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 import com.audionowdigital.android.openplayer.DecodeFeed;
+import com.audionowdigital.android.openplayer.Decoder;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 /**
  * Created by radhoo on /14.
  */
 
-public class MXDecoder {
+public class MXDecoder implements Decoder {
 	private static final String TAG = "MXDecoder";
 	
 	private static final int
@@ -34,25 +36,30 @@ public class MXDecoder {
 		SUCCESS = 0, 
 		MX_HEADERS =3; // TODO: check this
 
-	private static MediaExtractor extractor;
-	private static MediaCodec codec;
-	private static boolean stop = false;
-		
-	// currently unused
-	public static int init(int param) {
-		return 0;
+	private MediaExtractor extractor;
+	private MediaCodec codec;
+	// a seek asked for from another thread, done by the decoding thread; -1 for none
+	private volatile long seekUs = -1;
+
+	// nothing to do, the loop returns once the feed is stopped, like the native ones
+	@Override
+	public void stop() {
 	}
-	public static void stop() {
-		stop = true;
+
+	// nothing held between tracks
+	@Override
+	public void release() {
 	}
+
 	// the main loop to read data, decode, write
-	public static int readDecodeWriteLoop(DecodeFeed decodeFeed) {
+	@Override
+	public int readDecodeWriteLoop(DecodeFeed decodeFeed) {
 		
 		String mime = null;
 	    int sampleRate = 0, channels = 0, bitrate = 0;
 	    long presentationTimeUs = 0, duration = 0;
 
-	    stop = false;
+	    seekUs = -1;
 	    
 		// start right away
 		decodeFeed.onStartReadingHeader();
@@ -119,34 +126,58 @@ public class MXDecoder {
         codec.start();
         ByteBuffer[] codecInputBuffers  = codec.getInputBuffers();
         ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
+        ShortBuffer[] codecOutputShorts = new ShortBuffer[codecOutputBuffers.length];
         
 		// start playing, we will feed the AudioTrack later
         extractor.selectTrack(0);
         
         // start decoding
         
-        final long kTimeOutUs = 10;
+        // long enough to wait for the codec instead of spinning, short enough to notice a stop request
+        final long kTimeOutUs = 10000;
+        // once all input is queued, the output must follow within this many timeouts
+        final int drainTimeouts = 100;
 
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        // the PCM goes into the feed's direct buffer, null for the short[] path
+        ByteBuffer pcm = decodeFeed.getPCMBuffer();
+        int pcmBatch = decodeFeed.getPCMBatchSize();
+        int pcmFill = 0;
+        // reused for the short[] path, grown to the largest output buffer
+        short[] shorts = new short[0];
+        int seconds = 0;
         
         boolean sawInputEOS = false;
         boolean sawOutputEOS = false;
         int noOutputCounter = 0;
-        int noOutputCounterLimit = 10;
+        boolean stopped = false;
         
         //state.set(PlayerStates.PLAYING);
-        while (!sawOutputEOS && noOutputCounter < noOutputCounterLimit && !stop) {
+        while (!sawOutputEOS && noOutputCounter < drainTimeouts) {
         	
-        	// pause implementation
-        	//waitPlay();
-        	decodeFeed.onReadEncodedData(null,  0); //we read nothing, but we use this to block
+        	// pause implementation: we read nothing, but we use this to block, and to learn we were stopped
+        	if (decodeFeed.onReadEncodedData(null, 0) < 0) {
+        		stopped = true;
+        		break;
+        	}
         	
+        	long seek = seekUs;
+        	if (seek >= 0) {
+        		seekUs = -1;
+        		extractor.seekTo(seek, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        		// drop what the codec holds from before the seek
+        		codec.flush();
+        		sawInputEOS = false;
+        		noOutputCounter = 0;
+        	}
         	
-        	noOutputCounter++;
         	// read a buffer before feeding it to the decoder
+        	boolean queued = false;
             if (!sawInputEOS) {
-            	int inputBufIndex = codec.dequeueInputBuffer(kTimeOutUs);
+            	int inputBufIndex = codec.dequeueInputBuffer(0);
                 if (inputBufIndex >= 0) {
+                	queued = true;
                     ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
                     int sampleSize = extractor.readSampleData(dstBuf, 0);
                     if (sampleSize < 0) {
@@ -155,39 +186,66 @@ public class MXDecoder {
                         sampleSize = 0;
                     } else {
                         presentationTimeUs = extractor.getSampleTime();
-                        final int percent =  (duration == 0)? 0 : (int) (100 * presentationTimeUs / duration);
                     }
    
                 	codec.queueInputBuffer(inputBufIndex, 0, sampleSize, presentationTimeUs, sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
                 	
                     if (!sawInputEOS) extractor.advance();
-                    
-                } else {
-                	Log.e(TAG, "inputBufIndex " +inputBufIndex);
                 }
             } // !sawInputEOS
 
-            // decode to PCM 
-            int res = codec.dequeueOutputBuffer(info, kTimeOutUs);
+            // decode to PCM: wait for it only when the codec takes no more input, else go feed it
+            int res = codec.dequeueOutputBuffer(info, queued ? 0 : kTimeOutUs);
             // push PCM to the AudioTrack player
             if (res >= 0) {
-                if (info.size > 0)  noOutputCounter = 0;
+                noOutputCounter = 0;
                 
                 int outputBufIndex = res;
                 ByteBuffer buf = codecOutputBuffers[outputBufIndex];
-                // check byte[] buffer
-                final byte[] chunk = new byte[info.size];
-                buf.get(chunk);
-                buf.clear();
-                // convert it to short[]
-                short[] shorts = new short[chunk.length/2];
-                // to turn bytes to shorts as either big endian or little endian. 
-                ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shorts);
-                // feed it to audiotrack
-                if (shorts.length > 0) {
-                	// we have PCM data and we also know exact position in the source: only for MX
-                	decodeFeed.onWritePCMData(shorts, shorts.length, (int) (extractor.getSampleTime() / 1000000));
+                buf.limit(info.offset + info.size);
+                buf.position(info.offset);
+                // we have PCM data and we also know exact position in the source: only for MX
+                seconds = (int) (info.presentationTimeUs / 1000000);
+                if (pcm != null) {
+                	// copied from the codec's memory into the feed's, a batch at a time
+                	while (buf.hasRemaining()) {
+                		int room = pcm.capacity() - pcmFill * 2;
+                		if (room == 0) {
+                			decodeFeed.onWritePCMBuffer(pcmFill, seconds);
+                			pcmFill = 0;
+                			continue;
+                		}
+                		int bytes = Math.min(buf.remaining(), room) & ~1;
+                		if (bytes == 0) break;
+                		int limit = buf.limit();
+                		buf.limit(buf.position() + bytes);
+                		pcm.clear();
+                		pcm.position(pcmFill * 2);
+                		pcm.put(buf);
+                		buf.limit(limit);
+                		pcmFill += bytes / 2;
+                		if (pcmFill >= pcmBatch) {
+                			decodeFeed.onWritePCMBuffer(pcmFill, seconds);
+                			pcmFill = 0;
+                		}
+                	}
+                } else if (info.size > 1) {
+                	int count = info.size / 2;
+                	if (shorts.length < count) shorts = new short[count];
+                	// a view of the whole buffer, made once per codec buffer; MediaCodec outputs native order PCM
+                	if (codecOutputShorts[outputBufIndex] == null) {
+                		ByteBuffer whole = buf.duplicate();
+                		whole.clear();
+                		codecOutputShorts[outputBufIndex] = whole.order(ByteOrder.nativeOrder()).asShortBuffer();
+                	}
+                	ShortBuffer view = codecOutputShorts[outputBufIndex];
+                	view.clear();
+                	view.position(info.offset / 2);
+                	view.get(shorts, 0, count);
+                	// feed it to audiotrack
+                	decodeFeed.onWritePCMData(shorts, count, seconds);
                 }
+                buf.clear();
 
                 codec.releaseOutputBuffer(outputBufIndex, false);
 
@@ -197,14 +255,18 @@ public class MXDecoder {
                 }
             } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 codecOutputBuffers = codec.getOutputBuffers();
+                codecOutputShorts = new ShortBuffer[codecOutputBuffers.length];
                 Log.d(TAG, "output buffers have changed.");
             } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 MediaFormat oformat = codec.getOutputFormat();
                 Log.d(TAG, "output format has changed to " + oformat);
-            } else {
-                Log.d(TAG, "dequeueOutputBuffer returned " + res);
+            } else if (sawInputEOS) {
+                // MediaCodec.INFO_TRY_AGAIN_LATER with nothing left to feed it
+                noOutputCounter++;
             }
         }
+        // what is left of the last batch
+        if (pcmFill > 0 && !stopped) decodeFeed.onWritePCMBuffer(pcmFill, seconds);
         
         Log.d(TAG, "stopping...");
 
@@ -220,9 +282,6 @@ public class MXDecoder {
 
         extractor.release();
 
-
-	    stop = true;
-
         // duration 0 for live stream
 
         // for recording daemon's dance: duration:30834100 presentationTimeUs:30798367
@@ -254,8 +313,8 @@ public class MXDecoder {
 	 * Set the track play position to the given value
 	 * @param pos the new position in seconds
 	 */
-	public static void setPositionSec(int pos) {
-		extractor.seekTo(pos * 1000000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);		
+	public void setPositionSec(int pos) {
+		seekUs = pos * 1000000L;
 	}
 
 }
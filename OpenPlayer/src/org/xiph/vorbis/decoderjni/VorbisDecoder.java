@@ -8,13 +8,17 @@
 
 package org.xiph.vorbis.decoderjni;
 
+import android.util.Log;
+
 import com.audionowdigital.android.openplayer.DecodeFeed;
+import com.audionowdigital.android.openplayer.Decoder;
 
 /**
  * Created by radhoo on /14.
  */
 
-public class VorbisDecoder {
+public class VorbisDecoder implements Decoder {
+    private static final String TAG = "VorbisDecoder";
 
     /**
      * Load our vorbis-jni library and other dependent libraries
@@ -24,19 +28,63 @@ public class VorbisDecoder {
         System.loadLibrary("vorbis");
         System.loadLibrary("vorbis-jni");
     }
-    
+
+    /**
+     * The native session of this instance, 0 once released or if it could not be created
+     */
+    private long session;
+
+    /**
+     * Creates the native decoder session, reused by every track decoded through this instance
+     * @param debug set to 1 to enable the native logs of the tracks this instance decodes
+     */
+    public VorbisDecoder(int debug) {
+        session = initJni(debug);
+        if (session == 0) Log.e(TAG, "Could not create the native session");
+    }
+
+    @Override
+    public int readDecodeWriteLoop(DecodeFeed decodeFeed) {
+        if (session == 0) {
+            Log.e(TAG, "No native session");
+            return DecodeFeed.DECODE_ERROR;
+        }
+        return readDecodeWriteLoop(session, decodeFeed);
+    }
+
     /**
-     * Init the JNI layer
+     * Nothing to do, the native loop returns once the feed is stopped
+     */
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        if (session == 0) return;
+        releaseJni(session);
+        session = 0;
+    }
+
+    /**
+     * Init the JNI layer: creates a native decoder session
      * @param debug set to true to enable debug
-     * @return currently not used
+     * @return the session handle, 0 if the session could not be created
      */
-    public static native int initJni(int debug);
-    
+    private static native long initJni(int debug);
+
+    /**
+     * Frees a session created by {@link #initJni(int)}, must not be decoding
+     * @param session the session handle
+     */
+    private static native void releaseJni(long session);
+
     /**
      * Start decoding the data by way of a jni call
      *
+     * @param session the handle from {@link #initJni(int)}, only one loop may run on it at a time
      * @param decodeFeed the custom decode feed
      * @return the result code
      */
-    public static native int readDecodeWriteLoop(DecodeFeed decodeFeed);
+    private static native int readDecodeWriteLoop(long session, DecodeFeed decodeFeed);
 }
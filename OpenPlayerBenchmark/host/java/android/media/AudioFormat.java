@@ -0,0 +1,27 @@
+/*
+ * AudioFormat.java - Stands in for the Android audio format constants when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media;
+
+public final class AudioFormat {
+    public static final int ENCODING_PCM_16BIT = 2;
+    public static final int ENCODING_PCM_FLOAT = 4;
+
+    public static final int CHANNEL_INVALID = 0;
+    public static final int CHANNEL_OUT_FRONT_LEFT = 0x4;
+    public static final int CHANNEL_OUT_FRONT_RIGHT = 0x8;
+    public static final int CHANNEL_OUT_FRONT_CENTER = 0x10;
+    public static final int CHANNEL_OUT_LOW_FREQUENCY = 0x20;
+    public static final int CHANNEL_OUT_BACK_LEFT = 0x40;
+    public static final int CHANNEL_OUT_BACK_RIGHT = 0x80;
+    public static final int CHANNEL_OUT_MONO = CHANNEL_OUT_FRONT_LEFT;
+    public static final int CHANNEL_OUT_STEREO = CHANNEL_OUT_FRONT_LEFT | CHANNEL_OUT_FRONT_RIGHT;
+    public static final int CHANNEL_OUT_QUAD = CHANNEL_OUT_STEREO | CHANNEL_OUT_BACK_LEFT | CHANNEL_OUT_BACK_RIGHT;
+    public static final int CHANNEL_OUT_5POINT1 = CHANNEL_OUT_QUAD | CHANNEL_OUT_FRONT_CENTER | CHANNEL_OUT_LOW_FREQUENCY;
+
+    private AudioFormat() {
+    }
+}
@@ -0,0 +1,11 @@
+/*
+ * AudioManager.java - Stands in for the Android audio stream types when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media;
+
+public class AudioManager {
+    public static final int STREAM_MUSIC = 3;
+}
@@ -0,0 +1,112 @@
+/*
+ * AudioTrack.java - Stands in for the Android audio output when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays nothing, but takes the samples at the pace a real track would: a write blocks while its
+ * buffer is full, and the buffer drains in real time once the track plays. Counts what it was given.
+ */
+
+public class AudioTrack {
+    public static final int MODE_STREAM = 1;
+    public static final int WRITE_BLOCKING = 0;
+
+    private static final AtomicInteger sessions = new AtomicInteger();
+    private static final Map<Integer, AudioTrack> tracks = new ConcurrentHashMap<Integer, AudioTrack>();
+
+    private final int sampleRate, channels, sampleBytes, bufferFrames, sessionId;
+
+    // guarded by this
+    private long startNanos = -1;
+    private volatile long framesWritten = 0;
+
+    public AudioTrack(int streamType, int sampleRateInHz, int channelConfig, int audioFormat, int bufferSizeInBytes, int mode) {
+        sampleRate = sampleRateInHz;
+        channels = Integer.bitCount(channelConfig);
+        sampleBytes = audioFormat == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+        bufferFrames = bufferSizeInBytes / (channels * sampleBytes);
+        sessionId = sessions.incrementAndGet();
+        tracks.put(sessionId, this);
+    }
+
+    public static int getMinBufferSize(int sampleRateInHz, int channelConfig, int audioFormat) {
+        return sampleRateInHz / 10 * Integer.bitCount(channelConfig) * (audioFormat == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+    }
+
+    /**
+     * Host only: the track created with the given session id, as sent with READY_TO_PLAY
+     */
+    public static AudioTrack getTrack(int sessionId) {
+        return tracks.get(sessionId);
+    }
+
+    /**
+     * Host only: the frames (samples of all channels) written so far
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public int getAudioSessionId() {
+        return sessionId;
+    }
+
+    public synchronized void play() {
+        if (startNanos < 0) startNanos = System.nanoTime();
+    }
+
+    public void flush() {
+    }
+
+    public void stop() {
+        tracks.remove(sessionId);
+    }
+
+    public void release() {
+        tracks.remove(sessionId);
+    }
+
+    public int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+        played(sizeInShorts);
+        return sizeInShorts;
+    }
+
+    public int write(float[] audioData, int offsetInFloats, int sizeInFloats, int writeMode) {
+        played(sizeInFloats);
+        return sizeInFloats;
+    }
+
+    public int write(ByteBuffer audioData, int sizeInBytes, int writeMode) {
+        audioData.position(audioData.position() + sizeInBytes);
+        played(sizeInBytes / sampleBytes);
+        return sizeInBytes;
+    }
+
+    /**
+     * Blocks until what does not fit in the buffer would have been played
+     */
+    private void played(int samples) {
+        framesWritten += samples / channels;
+        long start;
+        synchronized (this) {
+            start = startNanos;
+        }
+        if (start < 0) return;
+        long aheadMs = (framesWritten - bufferFrames) * 1000 / sampleRate - (System.nanoTime() - start) / 1000000;
+        if (aheadMs <= 0) return;
+        try {
+            Thread.sleep(aheadMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * MediaCodec.java - Stands in for the Android codecs when the library classes run on the host JVM, there are none
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MediaCodec {
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+    }
+
+    private MediaCodec() {
+    }
+
+    public static MediaCodec createDecoderByType(String type) throws IOException {
+        throw new IOException("No MediaCodec on the host");
+    }
+
+    public void configure(MediaFormat format, Object surface, Object crypto, int flags) {
+    }
+
+    public void start() {
+    }
+
+    public void stop() {
+    }
+
+    public void flush() {
+    }
+
+    public void release() {
+    }
+
+    public ByteBuffer[] getInputBuffers() {
+        return new ByteBuffer[0];
+    }
+
+    public ByteBuffer[] getOutputBuffers() {
+        return new ByteBuffer[0];
+    }
+
+    public MediaFormat getOutputFormat() {
+        return new MediaFormat();
+    }
+
+    public int dequeueInputBuffer(long timeoutUs) {
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+    }
+
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    public void releaseOutputBuffer(int index, boolean render) {
+    }
+}
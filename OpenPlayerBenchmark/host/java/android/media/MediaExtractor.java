@@ -0,0 +1,46 @@
+/*
+ * MediaExtractor.java - Stands in for the Android media extractor when the library classes run on the host JVM,
+ * there is none: setting a source fails, so the MX decoder ends with an invalid header
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MediaExtractor {
+    public static final int SEEK_TO_CLOSEST_SYNC = 2;
+
+    public void setDataSource(String path) throws IOException {
+        throw new IOException("No MediaExtractor on the host");
+    }
+
+    public MediaFormat getTrackFormat(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void selectTrack(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int readSampleData(ByteBuffer byteBuf, int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getSampleTime() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean advance() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void seekTo(long timeUs, int mode) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void release() {
+    }
+}
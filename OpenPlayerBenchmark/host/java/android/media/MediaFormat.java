@@ -0,0 +1,27 @@
+/*
+ * MediaFormat.java - Stands in for the Android media format when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media;
+
+public class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_BIT_RATE = "bitrate";
+
+    public String getString(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int getInteger(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public long getLong(String name) {
+        throw new UnsupportedOperationException();
+    }
+}
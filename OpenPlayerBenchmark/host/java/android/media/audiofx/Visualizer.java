@@ -0,0 +1,41 @@
+/*
+ * Visualizer.java - Stands in for the Android visualizer when the library classes run on the host JVM, it never captures
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.media.audiofx;
+
+public class Visualizer {
+    public interface OnDataCaptureListener {
+        void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate);
+
+        void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate);
+    }
+
+    public Visualizer(int audioSession) {
+    }
+
+    public static int[] getCaptureSizeRange() {
+        return new int[] { 128, 1024 };
+    }
+
+    public static int getMaxCaptureRate() {
+        return 20000;
+    }
+
+    public int setCaptureSize(int size) {
+        return 0;
+    }
+
+    public int setDataCaptureListener(OnDataCaptureListener listener, int rate, boolean waveform, boolean fft) {
+        return 0;
+    }
+
+    public int setEnabled(boolean enabled) {
+        return 0;
+    }
+
+    public void release() {
+    }
+}
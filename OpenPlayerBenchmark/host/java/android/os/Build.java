@@ -0,0 +1,17 @@
+/*
+ * Build.java - Stands in for the Android version when the library classes run on the host JVM, which passes for Lollipop
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.os;
+
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.LOLLIPOP;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Bundle.java - Stands in for the Android bundle when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public final class Bundle {
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    public void putString(String key, String value) {
+        values.put(key, value);
+    }
+
+    public String getString(String key) {
+        return (String) values.get(key);
+    }
+}
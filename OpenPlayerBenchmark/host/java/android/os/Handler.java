@@ -0,0 +1,23 @@
+/*
+ * Handler.java - Stands in for the Android handler when the library classes run on the host JVM. There is no
+ * looper: messages are handled right away, on the sending thread
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.os;
+
+public class Handler {
+    public void handleMessage(Message msg) {
+    }
+
+    public final boolean sendMessage(Message msg) {
+        msg.target = this;
+        handleMessage(msg);
+        return true;
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessage(Message.obtain(this, what));
+    }
+}
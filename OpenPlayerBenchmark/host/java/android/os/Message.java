@@ -0,0 +1,47 @@
+/*
+ * Message.java - Stands in for the Android message when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.os;
+
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+    Handler target;
+    private Bundle data;
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public static Message obtain(Handler h, int what) {
+        Message m = obtain();
+        m.target = h;
+        m.what = what;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2) {
+        Message m = obtain(h, what);
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        return m;
+    }
+
+    public Bundle getData() {
+        if (data == null) data = new Bundle();
+        return data;
+    }
+
+    public void setData(Bundle data) {
+        this.data = data;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
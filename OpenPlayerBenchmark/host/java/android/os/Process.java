@@ -0,0 +1,14 @@
+/*
+ * Process.java - Stands in for the Android thread priorities when the library classes run on the host JVM, they are left as they are
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.os;
+
+public class Process {
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+    public static void setThreadPriority(int priority) {
+    }
+}
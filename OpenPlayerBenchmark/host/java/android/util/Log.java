@@ -0,0 +1,37 @@
+/*
+ * Log.java - Stands in for the Android log when the library classes run on the host JVM
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+package android.util;
+
+public final class Log {
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println(tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(tag, msg + ": " + tr);
+    }
+
+    private static int println(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+}
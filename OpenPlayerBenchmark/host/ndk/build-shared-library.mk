@@ -0,0 +1,2 @@
+# Host stand-in for the ndk-build $(BUILD_SHARED_LIBRARY): adds a rule for lib<module>.so in $(OUT)
+$(eval $(call host-shared-library,$(patsubst lib%,%,$(LOCAL_MODULE))))
@@ -0,0 +1,8 @@
+# Host stand-in for the ndk-build $(CLEAR_VARS)
+LOCAL_MODULE :=
+LOCAL_CFLAGS :=
+LOCAL_ASFLAGS :=
+LOCAL_ARM_MODE :=
+LOCAL_SRC_FILES :=
+LOCAL_SHARED_LIBRARIES :=
+LOCAL_LDLIBS :=
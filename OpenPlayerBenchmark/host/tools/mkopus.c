@@ -0,0 +1,90 @@
+/*
+ * mkopus.c - Encodes a synthetic signal to an Ogg Opus file, test media for the benchmarks
+ *
+ * Part of the OpenPlayer benchmarks
+ *
+ * usage: mkopus <out.opus> <seconds> <channels>
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <ogg/ogg.h>
+#include <opus.h>
+#include "test_signal.h"
+
+#define RATE 48000
+#define FRAME_SIZE 960 /* 20 ms */
+
+static void le32(unsigned char *p, unsigned int v) {
+	p[0] = v; p[1] = v >> 8; p[2] = v >> 16; p[3] = v >> 24;
+}
+
+static void write_pages(ogg_stream_state *os, FILE *out, int flush) {
+	ogg_page og;
+	while (flush ? ogg_stream_flush(os, &og) : ogg_stream_pageout(os, &og)) {
+		fwrite(og.header, 1, og.header_len, out);
+		fwrite(og.body, 1, og.body_len, out);
+	}
+}
+
+int main(int argc, char **argv) {
+	if (argc != 4) {
+		fprintf(stderr, "usage: mkopus <out.opus> <seconds> <channels>\n");
+		return 1;
+	}
+	long total = RATE * atol(argv[2]);
+	int channels = atoi(argv[3]), err, preskip = 0;
+	FILE *out = fopen(argv[1], "wb");
+	OpusEncoder *enc = opus_encoder_create(RATE, channels, OPUS_APPLICATION_AUDIO, &err);
+	if (out == NULL || enc == NULL) {
+		fprintf(stderr, "mkopus: can not create %s\n", argv[1]);
+		return 1;
+	}
+	opus_encoder_ctl(enc, OPUS_SET_BITRATE(64000 * channels));
+	opus_encoder_ctl(enc, OPUS_GET_LOOKAHEAD(&preskip));
+
+	ogg_stream_state os;
+	ogg_packet op;
+	ogg_stream_init(&os, 1);
+
+	unsigned char head[19];
+	memcpy(head, "OpusHead", 8);
+	head[8] = 1; head[9] = channels; head[10] = preskip & 0xff; head[11] = preskip >> 8;
+	le32(head + 12, RATE);
+	head[16] = 0; head[17] = 0; head[18] = 0;
+	memset(&op, 0, sizeof(op));
+	op.packet = head; op.bytes = sizeof(head); op.b_o_s = 1;
+	ogg_stream_packetin(&os, &op);
+	write_pages(&os, out, 1);
+
+	unsigned char tags[34];
+	memcpy(tags, "OpusTags", 8);
+	le32(tags + 8, 4); memcpy(tags + 12, "mkop", 4);
+	le32(tags + 16, 1); le32(tags + 20, 10); memcpy(tags + 24, "title=Test", 10);
+	op.packet = tags; op.bytes = sizeof(tags); op.b_o_s = 0; op.packetno = 1;
+	ogg_stream_packetin(&os, &op);
+	write_pages(&os, out, 1);
+
+	short pcm[FRAME_SIZE * 2];
+	unsigned char packet[4000];
+	long n = 0, end = total + preskip; /* the decoder drops the pre-skip, so the encoder is fed as much silence more */
+	unsigned int noise = 1;
+	while (n < end) {
+		signal_fill(pcm, FRAME_SIZE, channels, n, total, RATE, &noise);
+		op.bytes = opus_encode(enc, pcm, FRAME_SIZE, packet, sizeof(packet));
+		n += FRAME_SIZE;
+		op.packet = packet;
+		op.e_o_s = n >= end;
+		op.granulepos = n < end ? n : end;
+		op.packetno++;
+		ogg_stream_packetin(&os, &op);
+		write_pages(&os, out, 0);
+	}
+	write_pages(&os, out, 1);
+
+	ogg_stream_clear(&os);
+	opus_encoder_destroy(enc);
+	fclose(out);
+	return 0;
+}
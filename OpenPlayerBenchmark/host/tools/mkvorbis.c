@@ -0,0 +1,92 @@
+/*
+ * mkvorbis.c - Encodes a synthetic signal to an Ogg Vorbis file, test media for the benchmarks
+ *
+ * Part of the OpenPlayer benchmarks
+ *
+ * usage: mkvorbis <out.ogg> <seconds> <channels>
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <vorbis/vorbisenc.h>
+#include "test_signal.h"
+
+#define RATE 44100
+#define BLOCK 1024
+
+static void write_pages(ogg_stream_state *os, FILE *out, int flush, int *eos) {
+	ogg_page og;
+	while (flush ? ogg_stream_flush(os, &og) : ogg_stream_pageout(os, &og)) {
+		fwrite(og.header, 1, og.header_len, out);
+		fwrite(og.body, 1, og.body_len, out);
+		if (ogg_page_eos(&og)) *eos = 1;
+	}
+}
+
+int main(int argc, char **argv) {
+	if (argc != 4) {
+		fprintf(stderr, "usage: mkvorbis <out.ogg> <seconds> <channels>\n");
+		return 1;
+	}
+	long total = RATE * atol(argv[2]);
+	int channels = atoi(argv[3]), eos = 0, c, i;
+	FILE *out = fopen(argv[1], "wb");
+	if (out == NULL) {
+		fprintf(stderr, "mkvorbis: can not create %s\n", argv[1]);
+		return 1;
+	}
+
+	vorbis_info vi;
+	vorbis_comment vc;
+	vorbis_dsp_state vd;
+	vorbis_block vb;
+	ogg_stream_state os;
+	ogg_packet op, ident, comments, setup;
+
+	vorbis_info_init(&vi);
+	vorbis_encode_init_vbr(&vi, channels, RATE, 0.4f);
+	vorbis_comment_init(&vc);
+	vorbis_comment_add_tag(&vc, "TITLE", "Test");
+	vorbis_analysis_init(&vd, &vi);
+	vorbis_block_init(&vd, &vb);
+	ogg_stream_init(&os, 1);
+
+	vorbis_analysis_headerout(&vd, &vc, &ident, &comments, &setup);
+	ogg_stream_packetin(&os, &ident);
+	ogg_stream_packetin(&os, &comments);
+	ogg_stream_packetin(&os, &setup);
+	write_pages(&os, out, 1, &eos);
+
+	short *pcm = malloc(BLOCK * channels * sizeof(short));
+	long n = 0;
+	unsigned int noise = 1;
+	while (!eos) {
+		if (n < total) {
+			signal_fill(pcm, BLOCK, channels, n, total, RATE, &noise);
+			float **buffer = vorbis_analysis_buffer(&vd, BLOCK);
+			for (c = 0; c < channels; c++)
+				for (i = 0; i < BLOCK; i++) buffer[c][i] = pcm[i * channels + c] / 32768.f;
+			vorbis_analysis_wrote(&vd, BLOCK);
+			n += BLOCK;
+		} else {
+			vorbis_analysis_wrote(&vd, 0);
+		}
+		while (vorbis_analysis_blockout(&vd, &vb) == 1) {
+			vorbis_analysis(&vb, NULL);
+			vorbis_bitrate_addblock(&vb);
+			while (vorbis_bitrate_flushpacket(&vd, &op)) {
+				ogg_stream_packetin(&os, &op);
+				write_pages(&os, out, 0, &eos);
+			}
+		}
+	}
+
+	ogg_stream_clear(&os);
+	vorbis_block_clear(&vb);
+	vorbis_dsp_clear(&vd);
+	vorbis_comment_clear(&vc);
+	vorbis_info_clear(&vi);
+	free(pcm);
+	fclose(out);
+	return 0;
+}
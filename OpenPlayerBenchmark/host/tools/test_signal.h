@@ -0,0 +1,28 @@
+/*
+ * test_signal.h - The synthetic test signal: a few tones with a changing level, and some noise
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+#include <math.h>
+
+#ifndef M_PI
+#define M_PI 3.14159265358979323846
+#endif
+
+/* fills frames samples from position n on, silence past total */
+static void signal_fill(short *pcm, int frames, int channels, long n, long total, int rate, unsigned int *noise) {
+	static const double tones[] = { 110, 220, 330, 440, 587.33, 880, 1760, 3520 };
+	int i, c, k;
+	for (i = 0; i < frames; i++) {
+		double t = (double) (n + i) / rate;
+		double level = 0.5 + 0.4 * sin(2 * M_PI * 0.25 * t);
+		for (c = 0; c < channels; c++) {
+			double v = 0;
+			for (k = 0; k < 8; k++) v += sin(2 * M_PI * tones[k] * (1 + 0.01 * c) * t) / (k + 2);
+			*noise = *noise * 1103515245 + 12345;
+			v += ((int) (*noise >> 16 & 0x7fff) - 16384) / 65536.0;
+			pcm[i * channels + c] = n + i < total ? (short) (6000 * level * v) : 0;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := openplayer-benchmark
+
+LOCAL_CFLAGS += -I$(LOCAL_PATH)/../../OpenPlayer/jni/libopus/include -I$(LOCAL_PATH)/../../OpenPlayer/jni/libvorbis/include \
+	-I$(LOCAL_PATH)/../../OpenPlayer/jni/libogg/include -fsigned-char
+
+LOCAL_SHARED_LIBRARIES := libogg libopus libvorbis
+
+LOCAL_SRC_FILES := ../../OpenPlayer/jni/decodefeed/DecodeFeed.c ../../OpenPlayer/jni/libvorbis-jni/VorbisConvert.c Benchmark.c
+
+include $(BUILD_SHARED_LIBRARY)
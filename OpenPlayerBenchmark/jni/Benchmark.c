@@ -0,0 +1,252 @@
+/*
+ * Benchmark.c
+ * Natives for the benchmarks: the DecodeFeed callbacks without a codec behind them, and the codecs without the callbacks.
+ *
+ * Part of the OpenPlayer benchmarks
+ */
+
+#include "../../OpenPlayer/jni/decodefeed/DecodeFeed.h"
+#include "../../OpenPlayer/jni/libvorbis-jni/VorbisConvert.h"
+#include <math.h>
+#include <stdint.h>
+#include <opus.h>
+#include <vorbis/codec.h>
+
+#define MAX_FRAME_SIZE 5760 /* 120ms at 48000 */
+
+int debug = 0;
+
+//The packets of the first logical stream of an Ogg file, kept in memory
+typedef struct {
+	unsigned char *data; /* all packets one after the other */
+	long *offsets, *lengths;
+	int count;
+} Packets;
+
+typedef struct {
+	Packets packets;
+	OpusDecoder *st;
+	int channels;
+	ogg_int16_t pcm[MAX_FRAME_SIZE * 2];
+} OpusBench;
+
+typedef struct {
+	Packets packets;
+	vorbis_info vi;
+	vorbis_comment vc;
+	vorbis_dsp_state vd;
+	vorbis_block vb;
+	ogg_int16_t pcm[BUFFER_LENGTH];
+} VorbisBench;
+
+static void packets_add(Packets *p, ogg_packet *op, long *capacity, long *used) {
+	if (*used + op->bytes > *capacity) {
+		*capacity = (*capacity + op->bytes) * 2;
+		p->data = realloc(p->data, *capacity);
+	}
+	if ((p->count & 1023) == 0) {
+		p->offsets = realloc(p->offsets, (p->count + 1024) * sizeof(long));
+		p->lengths = realloc(p->lengths, (p->count + 1024) * sizeof(long));
+	}
+	memcpy(p->data + *used, op->packet, op->bytes);
+	p->offsets[p->count] = *used;
+	p->lengths[p->count] = op->bytes;
+	p->count++;
+	*used += op->bytes;
+}
+
+//Splits the Ogg file into the packets of its first logical stream, headers included
+static int packets_read(JNIEnv *env, jbyteArray file, Packets *p) {
+	ogg_sync_state oy;
+	ogg_stream_state os;
+	ogg_page og;
+	ogg_packet op;
+	long capacity = 0, used = 0;
+	int started = 0;
+	jsize length = (*env)->GetArrayLength(env, file);
+
+	memset(p, 0, sizeof(Packets));
+	ogg_sync_init(&oy);
+	char *buffer = ogg_sync_buffer(&oy, length);
+	(*env)->GetByteArrayRegion(env, file, 0, length, (jbyte *) buffer);
+	ogg_sync_wrote(&oy, length);
+	while (ogg_sync_pageout(&oy, &og) == 1) {
+		if (!started) {
+			ogg_stream_init(&os, ogg_page_serialno(&og));
+			started = 1;
+		} else if (ogg_page_serialno(&og) != os.serialno) {
+			continue;
+		}
+		ogg_stream_pagein(&os, &og);
+		while (ogg_stream_packetout(&os, &op) == 1) packets_add(p, &op, &capacity, &used);
+	}
+	if (started) ogg_stream_clear(&os);
+	ogg_sync_clear(&oy);
+	return p->count;
+}
+
+static void packets_free(Packets *p) {
+	free(p->data);
+	free(p->offsets);
+	free(p->lengths);
+}
+
+static void packet_get(Packets *p, int i, ogg_packet *op) {
+	memset(op, 0, sizeof(ogg_packet));
+	op->packet = p->data + p->offsets[i];
+	op->bytes = p->lengths[i];
+	op->b_o_s = (i == 0);
+	op->packetno = i;
+}
+
+JNIEXPORT jlong JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_openOpus(JNIEnv *env, jclass cls, jbyteArray file) {
+	OpusBench *bench = calloc(1, sizeof(OpusBench));
+	int err;
+	// OpusHead and OpusTags, then the audio
+	if (packets_read(env, file, &bench->packets) < 3 || bench->packets.lengths[0] < 19) {
+		packets_free(&bench->packets);
+		free(bench);
+		return 0;
+	}
+	bench->channels = bench->packets.data[9];
+	bench->st = opus_decoder_create(48000, bench->channels, &err);
+	if (err != OPUS_OK || bench->channels > 2) {
+		packets_free(&bench->packets);
+		free(bench);
+		return 0;
+	}
+	return (jlong)(intptr_t) bench;
+}
+
+JNIEXPORT jlong JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_decodeOpus(JNIEnv *env, jclass cls, jlong handle) {
+	OpusBench *bench = (OpusBench *)(intptr_t) handle;
+	jlong samples = 0;
+	int i;
+	opus_decoder_ctl(bench->st, OPUS_RESET_STATE);
+	for (i = 2; i < bench->packets.count; i++) {
+		int ret = opus_decode(bench->st, bench->packets.data + bench->packets.offsets[i], bench->packets.lengths[i],
+				bench->pcm, MAX_FRAME_SIZE, 0);
+		if (ret < 0) return -1;
+		samples += ret * bench->channels;
+	}
+	return samples;
+}
+
+JNIEXPORT void JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_closeOpus(JNIEnv *env, jclass cls, jlong handle) {
+	OpusBench *bench = (OpusBench *)(intptr_t) handle;
+	if (bench == NULL) return;
+	opus_decoder_destroy(bench->st);
+	packets_free(&bench->packets);
+	free(bench);
+}
+
+JNIEXPORT jlong JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_openVorbis(JNIEnv *env, jclass cls, jbyteArray file) {
+	VorbisBench *bench = calloc(1, sizeof(VorbisBench));
+	ogg_packet op;
+	int i;
+	if (packets_read(env, file, &bench->packets) < 4) {
+		packets_free(&bench->packets);
+		free(bench);
+		return 0;
+	}
+	vorbis_info_init(&bench->vi);
+	vorbis_comment_init(&bench->vc);
+	for (i = 0; i < 3; i++) {
+		packet_get(&bench->packets, i, &op);
+		if (vorbis_synthesis_headerin(&bench->vi, &bench->vc, &op) < 0 || bench->vi.channels > 2) {
+			vorbis_comment_clear(&bench->vc);
+			vorbis_info_clear(&bench->vi);
+			packets_free(&bench->packets);
+			free(bench);
+			return 0;
+		}
+	}
+	vorbis_synthesis_init(&bench->vd, &bench->vi);
+	vorbis_block_init(&bench->vd, &bench->vb);
+	return (jlong)(intptr_t) bench;
+}
+
+JNIEXPORT jlong JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_decodeVorbis(JNIEnv *env, jclass cls, jlong handle, jboolean toInt16, jboolean dither) {
+	VorbisBench *bench = (VorbisBench *)(intptr_t) handle;
+	int channels = bench->vi.channels, room = BUFFER_LENGTH / channels, i;
+	jlong samples = 0;
+	ogg_packet op;
+	ogg_uint32_t noise = 1;
+	vorbis_synthesis_restart(&bench->vd);
+	for (i = 3; i < bench->packets.count; i++) {
+		float **pcm;
+		int frames;
+		packet_get(&bench->packets, i, &op);
+		if (vorbis_synthesis(&bench->vb, &op) == 0) vorbis_synthesis_blockin(&bench->vd, &bench->vb);
+		while ((frames = vorbis_synthesis_pcmout(&bench->vd, &pcm)) > 0) {
+			if (frames > room) frames = room;
+			// the conversion of the vorbis JNI decoder
+			if (toInt16) convert_interleave(pcm, channels, frames, bench->pcm, dither ? &noise : NULL);
+			vorbis_synthesis_read(&bench->vd, frames);
+			samples += frames * channels;
+		}
+	}
+	return samples;
+}
+
+JNIEXPORT void JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_closeVorbis(JNIEnv *env, jclass cls, jlong handle) {
+	VorbisBench *bench = (VorbisBench *)(intptr_t) handle;
+	if (bench == NULL) return;
+	vorbis_block_clear(&bench->vb);
+	vorbis_dsp_clear(&bench->vd);
+	vorbis_comment_clear(&bench->vc);
+	vorbis_info_clear(&bench->vi);
+	packets_free(&bench->packets);
+	free(bench);
+}
+
+//Pulls the whole source through onReadEncodedData into an ogg sync buffer, dropping it after each read
+JNIEXPORT jlong JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_readAll(JNIEnv *env, jclass cls, jobject javaDecodeFeedObj) {
+	DecodeFeedSession feed;
+	ogg_sync_state oy;
+	jlong total = 0;
+	int bytes;
+	if (!initDecodeFeedSession(env, &feed, BUFFER_LENGTH * 2)) return -1;
+	ogg_sync_init(&oy);
+	while ((bytes = onReadEncodedData(env, &javaDecodeFeedObj, &feed.readDataMethodId, &oy, &feed.readBuffer)) > 0) {
+		total += bytes;
+		ogg_sync_reset(&oy);
+	}
+	ogg_sync_clear(&oy);
+	releaseDecodeFeedSession(env, &feed);
+	return total;
+}
+
+//Hands samples of silence over to Java in frames of frameSamples, batched in the direct buffer or copied through the short[] like the decoders do
+JNIEXPORT jlong JNICALL Java_com_audionowdigital_android_openplayer_benchmark_NativeBench_writeAll(JNIEnv *env, jclass cls, jobject javaDecodeFeedObj,
+		jlong samples, jint frameSamples, jboolean direct) {
+	DecodeFeedSession feed;
+	ogg_int16_t convbuffer[BUFFER_LENGTH];
+	ogg_int16_t *pcmout = NULL;
+	int pcmsize = 0, pcmfill = 0, pcmbatch = 0;
+	jlong written = 0;
+	if (frameSamples <= 0 || frameSamples > BUFFER_LENGTH) return -1;
+	if (!initDecodeFeedSession(env, &feed, BUFFER_LENGTH * 2)) return -1;
+	memset(convbuffer, 0, sizeof(convbuffer));
+	if (direct) {
+		pcmout = getPCMBuffer(env, &javaDecodeFeedObj, &feed.getPCMBufferMethodId, sizeof(ogg_int16_t), &pcmsize);
+		pcmbatch = (*env)->CallIntMethod(env, javaDecodeFeedObj, feed.getPCMBatchSizeMethodId);
+		if (pcmsize < frameSamples) pcmout = NULL;
+	}
+	while (written < samples) {
+		if (pcmout != NULL) {
+			memset(pcmout + pcmfill, 0, frameSamples * sizeof(ogg_int16_t));
+			pcmfill += frameSamples;
+			if (pcmfill >= pcmbatch || pcmsize - pcmfill < frameSamples) {
+				onWritePCMBuffer(env, &javaDecodeFeedObj, &feed.writePCMBufferMethodId, pcmfill);
+				pcmfill = 0;
+			}
+		} else {
+			onWritePCMData(env, &javaDecodeFeedObj, &feed.writePCMDataMethodId, convbuffer, frameSamples, &feed.writeBuffer);
+		}
+		written += frameSamples;
+	}
+	if (pcmfill > 0) onWritePCMBuffer(env, &javaDecodeFeedObj, &feed.writePCMBufferMethodId, pcmfill);
+	releaseDecodeFeedSession(env, &feed);
+	return written;
+}
@@ -0,0 +1,82 @@
+/*
+ * DecodeLoopBenchmark.java - The whole native decoding loop, with a feed that does nothing
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import com.audionowdigital.android.openplayer.DecodeFeed;
+import com.audionowdigital.android.openplayer.Decoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xiph.opus.decoderjni.OpusDecoder;
+import org.xiph.vorbis.decoderjni.VorbisDecoder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each invocation decodes a whole 30 second file through readDecodeWriteLoop: the reads, the codec,
+ * the conversion and the PCM callbacks, as the player runs them minus the AudioTrack.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DecodeLoopBenchmark {
+    @Param({ Media.OPUS_STEREO, Media.OPUS_MONO, Media.VORBIS_STEREO })
+    public String file;
+
+    /**
+     * The PCM in the direct buffer, or copied through onWritePCMData
+     */
+    @Param({ "true", "false" })
+    public boolean direct;
+
+    /**
+     * Float samples as the codec makes them, or converted to 16 bit
+     */
+    @Param({ "false", "true" })
+    public boolean floats;
+
+    private Decoder decoder;
+    private NullDecodeFeed feed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        decoder = file.endsWith(".opus") ? new OpusDecoder(0) : new VorbisDecoder(0);
+        feed = new NullDecodeFeed(Media.load(file), direct, floats);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        decoder.release();
+    }
+
+    @Benchmark
+    public long readDecodeWriteLoop() {
+        feed.rewind();
+        if (decoder.readDecodeWriteLoop(feed) != DecodeFeed.SUCCESS) {
+            throw new IllegalStateException("Decoding failed for " + file);
+        }
+        return feed.getSamples();
+    }
+}
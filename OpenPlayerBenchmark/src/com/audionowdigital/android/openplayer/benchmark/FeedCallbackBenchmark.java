@@ -0,0 +1,68 @@
+/*
+ * FeedCallbackBenchmark.java - The DecodeFeed callbacks alone, without a codec
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the loop pays to move data across JNI for one 30 second stereo file: reading the encoded
+ * bytes through onReadEncodedData, and handing 30 seconds of 48kHz stereo PCM back in 20ms frames.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FeedCallbackBenchmark {
+    private static final long PCM_SAMPLES = 48000L * 2 * 30;
+    private static final int FRAME_SAMPLES = 960 * 2;
+
+    /**
+     * The PCM in the direct buffer, or copied through onWritePCMData
+     */
+    @Param({ "true", "false" })
+    public boolean direct;
+
+    private NullDecodeFeed feed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        feed = new NullDecodeFeed(Media.load(Media.OPUS_STEREO), direct);
+        // the format the direct buffer is sized for
+        feed.onStart(48000, 2, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public long onReadEncodedData() {
+        feed.rewind();
+        return NativeBench.readAll(feed);
+    }
+
+    @Benchmark
+    public long onWritePCM() {
+        feed.rewind();
+        return NativeBench.writeAll(feed, PCM_SAMPLES, FRAME_SAMPLES, direct);
+    }
+}
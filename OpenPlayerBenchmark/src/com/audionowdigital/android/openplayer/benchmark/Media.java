@@ -0,0 +1,38 @@
+/*
+ * Media.java - The test files the benchmarks decode
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The files are generated by the host build, in the directory given by the openplayer.media property
+ */
+
+final class Media {
+    static final String OPUS_STEREO = "opus-stereo.opus";
+    static final String OPUS_MONO = "opus-mono.opus";
+    static final String VORBIS_STEREO = "vorbis-stereo.ogg";
+
+    private Media() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        File file = new File(System.getProperty("openplayer.media", "build/media"), name);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * NativeBench.java - Natives measuring the codecs and the DecodeFeed callbacks one at a time
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import com.audionowdigital.android.openplayer.DecodeFeed;
+
+/**
+ * The codec natives decode packets already split from the Ogg file and held in memory, without any
+ * callback into Java. The feed natives call a {@link DecodeFeed} the way the decoders do, without a codec.
+ */
+
+final class NativeBench {
+    static {
+        System.loadLibrary("ogg");
+        System.loadLibrary("opus");
+        System.loadLibrary("vorbis");
+        System.loadLibrary("openplayer-benchmark");
+    }
+
+    private NativeBench() {
+    }
+
+    /**
+     * @param file a whole Ogg Opus file
+     * @return the handle to decode with, 0 if the file could not be read
+     */
+    static native long openOpus(byte[] file);
+
+    /**
+     * Decodes every audio packet once
+     * @return the number of samples decoded, all channels together, -1 on a decoding error
+     */
+    static native long decodeOpus(long handle);
+
+    static native void closeOpus(long handle);
+
+    /**
+     * @param file a whole Ogg Vorbis file
+     * @return the handle to decode with, 0 if the file could not be read
+     */
+    static native long openVorbis(byte[] file);
+
+    /**
+     * Decodes every audio packet once, from the start again
+     * @param toInt16 true to also convert the float synthesis to 16 bit interleaved samples, like the decoder does
+     * @param dither  true to dither that conversion
+     * @return the number of samples decoded, all channels together, -1 on a decoding error
+     */
+    static native long decodeVorbis(long handle, boolean toInt16, boolean dither);
+
+    static native void closeVorbis(long handle);
+
+    /**
+     * Reads the feed through onReadEncodedData until it ends, the data is dropped after each read
+     * @return the number of bytes read, -1 if the feed methods are missing
+     */
+    static native long readAll(DecodeFeed feed);
+
+    /**
+     * Writes silence to the feed in frames of frameSamples
+     * @param direct true to batch the frames in the feed's direct buffer, false to copy each one through onWritePCMData
+     * @return the number of samples written, -1 on a wrong frame size or missing feed methods
+     */
+    static native long writeAll(DecodeFeed feed, long samples, int frameSamples, boolean direct);
+}
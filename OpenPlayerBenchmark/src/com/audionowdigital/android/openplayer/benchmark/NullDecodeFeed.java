@@ -0,0 +1,158 @@
+/*
+ * NullDecodeFeed.java - A decode feed reading from memory and dropping the PCM
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import com.audionowdigital.android.openplayer.DataSource;
+import com.audionowdigital.android.openplayer.DecodeFeed;
+import com.audionowdigital.android.openplayer.DecodeFeedListener;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Leaves only the native side of the loop to measure. The PCM comes either in the direct buffer, in
+ * batches like the player takes it, or copied through onWritePCMData, as 16 bit or float samples.
+ */
+
+class NullDecodeFeed implements DecodeFeed {
+    /**
+     * PCM gathered before each write, and room for the largest decoded frame: a 120ms Opus packet, at least 8192 samples
+     */
+    private static final int BATCH_MS = 100;
+    private static final int PCM_BUFFER_SAMPLES = 8192;
+    private static final int MAX_FRAME_MS = 120;
+
+    private final byte[] data;
+    private final boolean direct, floats;
+
+    private int readOffset = 0;
+    private long sampleRate = 0, channels = 0;
+    private ByteBuffer pcmBuffer;
+    private int batchSamples = 0;
+    private long samples = 0;
+
+    /**
+     * @param data   the encoded file, read from the start again after each {@link #rewind()}
+     * @param direct true to take the PCM in a direct buffer, false for a short[] copy
+     */
+    NullDecodeFeed(byte[] data, boolean direct) {
+        this(data, direct, false);
+    }
+
+    /**
+     * @param floats true to take float samples
+     */
+    NullDecodeFeed(byte[] data, boolean direct, boolean floats) {
+        this.data = data;
+        this.direct = direct;
+        this.floats = floats;
+    }
+
+    void rewind() {
+        readOffset = 0;
+        samples = 0;
+    }
+
+    /**
+     * @return the samples written since the last {@link #rewind()}, all channels together
+     */
+    long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public int onReadEncodedData(byte[] buffer, int amountToWrite) {
+        int read = Math.min(amountToWrite, data.length - readOffset);
+        System.arraycopy(data, readOffset, buffer, 0, read);
+        readOffset += read;
+        return read;
+    }
+
+    @Override
+    public int onReadEncodedData(ByteBuffer buffer, int offset, int amountToWrite) {
+        int read = Math.min(amountToWrite, data.length - readOffset);
+        buffer.position(offset);
+        buffer.put(data, readOffset, read);
+        readOffset += read;
+        return read;
+    }
+
+    @Override
+    public void onWritePCMData(short[] pcmData, int amountToRead, int currentSeconds) {
+        samples += amountToRead;
+    }
+
+    @Override
+    public void onWritePCMFloatData(float[] pcmData, int amountToRead, int currentSeconds) {
+        samples += amountToRead;
+    }
+
+    @Override
+    public ByteBuffer getPCMBuffer() {
+        if (!direct) return null;
+        batchSamples = (int) (sampleRate * channels * BATCH_MS / 1000);
+        int capacity = (batchSamples + Math.max(PCM_BUFFER_SAMPLES, (int) (sampleRate * channels * MAX_FRAME_MS / 1000))) * (floats ? 4 : 2);
+        if (pcmBuffer == null || pcmBuffer.capacity() < capacity) {
+            pcmBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        return pcmBuffer;
+    }
+
+    @Override
+    public int getPCMBatchSize() {
+        return batchSamples;
+    }
+
+    @Override
+    public int getMaxChannels() {
+        return 2;
+    }
+
+    @Override
+    public boolean isDithered() {
+        return false;
+    }
+
+    @Override
+    public boolean isFloatOutput() {
+        return floats;
+    }
+
+    @Override
+    public void onWritePCMBuffer(int amountToRead, int currentSeconds) {
+        samples += amountToRead;
+    }
+
+    @Override
+    public void onStop() {
+    }
+
+    @Override
+    public void onStartReadingHeader() {
+    }
+
+    @Override
+    public void onStart(long sampleRate, long channels, String vendor, String title, String artist, String album, String date, String track) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    @Override
+    public void setPosition(int percent) {
+    }
+
+    @Override
+    public DataSource getDataSource() {
+        return null;
+    }
+
+    @Override
+    public void setDecodeFeedListener(DecodeFeedListener listener) {
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * OpusCodecBenchmark.java - libopus alone, without the Ogg parsing or the callbacks
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the packets of a 30 second file held in memory. Whether libopus is the FIXED_POINT build the
+ * app ships or the float one depends on the native libraries the benchmarks run with, see the
+ * opusBuild property of the build.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OpusCodecBenchmark {
+    @Param({ Media.OPUS_STEREO, Media.OPUS_MONO })
+    public String file;
+
+    private long handle;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        handle = NativeBench.openOpus(Media.load(file));
+        if (handle == 0) throw new IOException("Can not decode " + file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        NativeBench.closeOpus(handle);
+    }
+
+    @Benchmark
+    public long decode() {
+        return NativeBench.decodeOpus(handle);
+    }
+}
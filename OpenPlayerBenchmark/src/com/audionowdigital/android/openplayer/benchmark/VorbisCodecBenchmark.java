@@ -0,0 +1,66 @@
+/*
+ * VorbisCodecBenchmark.java - libvorbis alone, without the Ogg parsing or the callbacks
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the packets of a 30 second file held in memory, with and without the float to 16 bit
+ * conversion: the difference is what the conversion costs, with and without dithering.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class VorbisCodecBenchmark {
+    private long handle;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        handle = NativeBench.openVorbis(Media.load(Media.VORBIS_STEREO));
+        if (handle == 0) throw new IOException("Can not decode " + Media.VORBIS_STEREO);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        NativeBench.closeVorbis(handle);
+    }
+
+    @Benchmark
+    public long synthesis() {
+        return NativeBench.decodeVorbis(handle, false, false);
+    }
+
+    @Benchmark
+    public long synthesisToInt16() {
+        return NativeBench.decodeVorbis(handle, true, false);
+    }
+
+    @Benchmark
+    public long synthesisToInt16Dithered() {
+        return NativeBench.decodeVorbis(handle, true, true);
+    }
+}
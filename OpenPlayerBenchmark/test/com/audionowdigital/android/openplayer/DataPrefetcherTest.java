@@ -0,0 +1,120 @@
+/*
+ * DataPrefetcherTest.java - The read-ahead ring of remote sources, fed from memory on the host
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataPrefetcherTest {
+    private static final int CAPACITY = 1000;
+
+    private final FedStream stream = new FedStream();
+    // "percent" or "percent buffering" for each report
+    private final BlockingQueue<String> reports = new LinkedBlockingQueue<String>();
+    private DataPrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        prefetcher = new DataPrefetcher(stream, CAPACITY);
+        prefetcher.setListener(new DataPrefetcher.Listener() {
+            @Override
+            public void onBufferFill(int percent, boolean buffering) {
+                reports.add(percent + (buffering ? " buffering" : ""));
+            }
+        });
+        prefetcher.start();
+    }
+
+    @After
+    public void tearDown() {
+        prefetcher.close();
+    }
+
+    @Test
+    public void bufferingLastsUntilTheHighWatermark() throws Exception {
+        stream.feed(400);
+        assertEquals("40", nextReport());
+        assertEquals(400, prefetcher.read(new byte[CAPACITY], 0, CAPACITY));
+        assertEquals("0 buffering", nextReport());
+        // the first bytes back do not end it
+        stream.feed(100);
+        assertEquals("10 buffering", nextReport());
+        assertTrue(prefetcher.isBuffering());
+        stream.feed(900);
+        assertEquals("100", nextReport());
+        assertFalse(prefetcher.isBuffering());
+    }
+
+    @Test
+    public void endOfTheStreamEndsBuffering() throws Exception {
+        stream.feed(400);
+        assertEquals("40", nextReport());
+        assertEquals(400, prefetcher.read(new byte[CAPACITY], 0, CAPACITY));
+        assertEquals("0 buffering", nextReport());
+        stream.end();
+        assertEquals("0", nextReport());
+        assertEquals(-1, prefetcher.read(new byte[CAPACITY], 0, CAPACITY));
+    }
+
+    private String nextReport() throws InterruptedException {
+        return reports.poll(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hands out the fed bytes as they come, one feed per read at most, blocking in between
+     */
+    private static class FedStream extends InputStream {
+        private final BlockingQueue<byte[]> feeds = new LinkedBlockingQueue<byte[]>();
+        private byte[] current;
+        private int offset;
+
+        void feed(int length) {
+            feeds.add(new byte[length]);
+        }
+
+        void end() {
+            feeds.add(new byte[0]);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            if (current == null || (current.length > 0 && offset == current.length)) {
+                try {
+                    current = feeds.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                offset = 0;
+            }
+            if (current.length == 0) return -1;
+            int count = Math.min(byteCount, current.length - offset);
+            System.arraycopy(current, offset, buffer, byteOffset, count);
+            offset += count;
+            return count;
+        }
+    }
+}
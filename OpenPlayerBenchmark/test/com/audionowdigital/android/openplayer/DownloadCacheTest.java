@@ -0,0 +1,184 @@
+/*
+ * DownloadCacheTest.java - Remote tracks read through the download cache, against a local HTTP server
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadCacheTest {
+    private static final int TRACK_LENGTH = 512 * 1024;
+
+    private StandInHttpServer server;
+    private File dir;
+    private byte[] track;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInHttpServer();
+        dir = File.createTempFile("openplayer", "cache");
+        dir.delete();
+        dir.mkdirs();
+        track = new byte[TRACK_LENGTH];
+        new Random(1).nextBytes(track);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        delete(dir);
+    }
+
+    @Test
+    public void gapsAreDownloadedAroundCachedRanges() throws IOException {
+        String url = server.put("track.opus", track);
+        DownloadCache cache = new DownloadCache(dir, DownloadCache.DEFAULT_MAX_BYTES);
+        // a middle range marked, to tell the bytes read from disk from the downloaded ones
+        byte[] expected = track.clone();
+        Arrays.fill(expected, 100000, 200000, (byte) 7);
+        DownloadCache.Entry entry = cache.open(url + "|" + TRACK_LENGTH + "|\"1\"");
+        entry.write(100000, expected, 100000, 100000);
+        cache.release(entry);
+
+        assertArrayEquals(expected, readAll(open(url, cache)));
+        // the first window, drained past the cached range without writing over it, then the rest
+        assertEquals(Arrays.asList("bytes=0-262143", "bytes=262144-"), server.takeRequests());
+    }
+
+    @Test
+    public void backwardSeekIsReadFromTheCache() throws IOException {
+        String url = server.put("track.opus", track);
+        DataSource source = open(url, new DownloadCache(dir, DownloadCache.DEFAULT_MAX_BYTES));
+        assertArrayEquals(track, readAll(source));
+        assertEquals(Arrays.asList("bytes=0-262143", "bytes=262144-"), server.takeRequests());
+
+        assertTrue(source.seekTo(1000));
+        assertArrayEquals(Arrays.copyOfRange(track, 1000, TRACK_LENGTH), readAll(source));
+        assertEquals(0, server.takeRequests().size());
+        source.release();
+    }
+
+    @Test
+    public void replayOnlyAsksForTheLength() throws IOException {
+        String url = server.put("track.opus", track);
+        DownloadCache cache = new DownloadCache(dir, DownloadCache.DEFAULT_MAX_BYTES);
+        DataSource first = open(url, cache);
+        readAll(first);
+        first.release();
+        server.takeRequests();
+
+        DataSource again = open(url, cache);
+        assertArrayEquals(track, readAll(again));
+        again.release();
+        assertEquals(Arrays.asList("bytes=0-262143"), server.takeRequests());
+    }
+
+    @Test
+    public void seekKeepsTheConnection() throws IOException {
+        byte[] longTrack = new byte[4 * TRACK_LENGTH];
+        new Random(2).nextBytes(longTrack);
+        String url = server.put("long.opus", longTrack);
+        DataSourceRegistry registry = new DataSourceRegistry();
+        // a small read-ahead, so the seek abandons a download in progress
+        registry.setPrefetchCapacity(32 * 1024);
+        DataSource source = registry.open(url);
+        byte[] buffer = new byte[100000];
+        assertEquals(buffer.length, readFully(source, buffer));
+        assertArrayEquals(Arrays.copyOf(longTrack, buffer.length), buffer);
+
+        assertTrue(source.seekTo(1500000));
+        assertArrayEquals(Arrays.copyOfRange(longTrack, 1500000, longTrack.length), readAll(source));
+        source.release();
+        assertEquals(1, server.takeConnectionCount());
+    }
+
+    @Test
+    public void serverIgnoringRangeFillsTheGapFromTheStart() throws IOException {
+        String url = server.put("track.opus", track);
+        server.setIgnoreRange(true);
+        DownloadCache cache = new DownloadCache(dir, DownloadCache.DEFAULT_MAX_BYTES);
+        DownloadCache.Entry entry = cache.open(url + "|" + TRACK_LENGTH + "|\"1\"");
+        entry.write(0, track, 0, 300000);
+        cache.release(entry);
+
+        DataSource source = open(url, cache);
+        assertArrayEquals(track, readAll(source));
+        source.release();
+        // the bytes skipped to get to the gap are kept too
+        entry = cache.open(url + "|" + TRACK_LENGTH + "|\"1\"");
+        assertEquals(TRACK_LENGTH, entry.cachedUntil(0));
+        cache.release(entry);
+    }
+
+    @Test
+    public void leastRecentlyPlayedTracksAreTrimmed() throws Exception {
+        // room for one whole track and a half
+        DownloadCache cache = new DownloadCache(dir, TRACK_LENGTH * 3 / 2);
+        String[] urls = { server.put("a.opus", track), server.put("b.opus", track), server.put("c.opus", track) };
+        for (int i = 0; i < 2; i++) {
+            DataSource source = open(urls[i], cache);
+            readAll(source);
+            source.release();
+            // the order is taken from the file times
+            Thread.sleep(1100);
+        }
+        // opening a third one trims the oldest
+        DataSource c = open(urls[2], cache);
+        DownloadCache.Entry a = cache.open(urls[0] + "|" + TRACK_LENGTH + "|\"1\"");
+        DownloadCache.Entry b = cache.open(urls[1] + "|" + TRACK_LENGTH + "|\"1\"");
+        assertEquals(0, a.size());
+        assertEquals(TRACK_LENGTH, b.size());
+        cache.release(a);
+        cache.release(b);
+        c.release();
+    }
+
+    private static DataSource open(String url, DownloadCache cache) {
+        DataSourceRegistry registry = new DataSourceRegistry();
+        registry.setDownloadCache(cache);
+        DataSource source = registry.open(url);
+        assertTrue(source.isSourceValid());
+        return source;
+    }
+
+    private static byte[] readAll(DataSource source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = source.read(buffer, 0, buffer.length)) > 0) out.write(buffer, 0, read);
+        assertEquals(DataSource.DATA_SRC_FINISHED, read);
+        return out.toByteArray();
+    }
+
+    private static int readFully(DataSource source, byte[] buffer) {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = source.read(buffer, total, buffer.length - total);
+            if (read <= 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) for (File f : files) delete(f);
+        file.delete();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * LiveStreamTest.java - Live streams read against a local stand-in Icecast server
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LiveStreamTest {
+    private static final int STREAM_LENGTH = 100000, META_INTERVAL = 16000, READ_LENGTH = 1000;
+
+    private StandInIcecastServer server;
+    private byte[] audio;
+
+    // the titles reported and how much was read before the read that reported each
+    private final List<String> titles = new ArrayList<String>();
+    private final List<Long> titleOffsets = new ArrayList<Long>();
+    private long read;
+
+    @Before
+    public void setUp() throws IOException {
+        audio = new byte[STREAM_LENGTH];
+        new Random(1).nextBytes(audio);
+        server = new StandInIcecastServer(audio, META_INTERVAL, "One", "One", "Two");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void metadataIsTakenOutOfTheAudio() {
+        DataSource source = open(DataSourceRegistry.DEFAULT_RECONNECT_MS);
+        assertArrayEquals(audio, read(source, STREAM_LENGTH));
+        source.release();
+        // the length is asked for without metadata, the stream itself with it
+        assertEquals(Arrays.asList("plain", "icy"), server.takeRequests().subList(0, 2));
+    }
+
+    @Test
+    public void titlesAreReportedWhereTheyChange() {
+        DataSource source = open(DataSourceRegistry.DEFAULT_RECONNECT_MS);
+        read(source, STREAM_LENGTH);
+        source.release();
+        // the repeated title only once, each in the read reaching the block it came after, or in
+        // the next one when the block was not parsed yet
+        assertEquals(Arrays.asList("One", "Two"), titles);
+        assertReportedAt(META_INTERVAL, titleOffsets.get(0));
+        assertReportedAt(3 * META_INTERVAL, titleOffsets.get(1));
+    }
+
+    @Test
+    public void droppedConnectionIsConnectedAgain() {
+        DataSource source = open(DataSourceRegistry.DEFAULT_RECONNECT_MS);
+        byte[] twice = read(source, 2 * STREAM_LENGTH);
+        source.release();
+        // the new connection starts over, as a new listener would
+        assertArrayEquals(audio, Arrays.copyOfRange(twice, 0, STREAM_LENGTH));
+        assertArrayEquals(audio, Arrays.copyOfRange(twice, STREAM_LENGTH, 2 * STREAM_LENGTH));
+        assertEquals(Arrays.asList("plain", "icy", "icy"), server.takeRequests().subList(0, 3));
+    }
+
+    @Test
+    public void givesUpOnceNoConnectionWorks() {
+        server.setMaxConnections(2);
+        DataSource source = open(1000);
+        long start = System.currentTimeMillis();
+        assertArrayEquals(audio, read(source, 2 * STREAM_LENGTH));
+        assertEquals(DataSource.DATA_SRC_INVALID, source.read(new byte[READ_LENGTH], 0, READ_LENGTH));
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        source.release();
+    }
+
+    private DataSource open(int reconnectMs) {
+        DataSourceRegistry registry = new DataSourceRegistry();
+        registry.setReconnectMs(reconnectMs);
+        registry.setStreamTitleListener(new HttpDataSource.StreamTitleListener() {
+            @Override
+            public void onStreamTitle(String title) {
+                titles.add(title);
+                titleOffsets.add(read);
+            }
+        });
+        DataSource source = registry.open(server.getUrl());
+        assertTrue(source.isSourceValid());
+        return source;
+    }
+
+    /**
+     * @return up to length bytes, fewer if the stream was lost
+     */
+    private byte[] read(DataSource source, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_LENGTH];
+        read = 0;
+        while (read < length) {
+            int n = source.read(buffer, 0, (int) Math.min(READ_LENGTH, length - read));
+            if (n <= 0) break;
+            out.write(buffer, 0, n);
+            read += n;
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertReportedAt(long offset, long readBefore) {
+        assertTrue("reported after " + readBefore, readBefore <= offset && readBefore >= offset - READ_LENGTH);
+    }
+}
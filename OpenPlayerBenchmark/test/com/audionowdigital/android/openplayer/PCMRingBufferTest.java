@@ -0,0 +1,183 @@
+/*
+ * PCMRingBufferTest.java - The PCM ring between the decoder and the output thread, on the host
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PCMRingBufferTest {
+    private static final int CAPACITY = 1000;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    public void samplesComeOutInOrderAcrossTheWrap() throws Exception {
+        final PCMRingBuffer ring = new PCMRingBuffer(CAPACITY);
+        final int total = 1000000;
+        // odd chunk sizes, so the writes and the reads wrap at different places
+        Future<Integer> writer = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                short[] chunk = new short[333];
+                int written = 0;
+                while (written < total) {
+                    int count = Math.min(chunk.length, total - written);
+                    for (int i = 0; i < count; i++) chunk[i] = (short) (written + i);
+                    written += ring.write(chunk, 0, count);
+                }
+                return written;
+            }
+        });
+        int read = 0;
+        while (read < total) {
+            int count = ring.awaitReadable(257);
+            for (int i = 0; i < count; i++) assertEquals((short) (read + i), ring.getData()[ring.getReadIndex() + i]);
+            ring.commitRead(count);
+            read += count;
+        }
+        assertEquals(total, (int) writer.get(10, TimeUnit.SECONDS));
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void fullRingBlocksTheWriterUntilRead() throws Exception {
+        final PCMRingBuffer ring = new PCMRingBuffer(CAPACITY);
+        assertEquals(CAPACITY, ring.write(new short[CAPACITY], 0, CAPACITY));
+        Future<Integer> writer = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return ring.write(ShortBuffer.wrap(new short[100]), 100);
+            }
+        });
+        assertBlocked(writer);
+        ring.commitRead(ring.awaitReadable(100));
+        assertEquals(100, (int) writer.get(1, TimeUnit.SECONDS));
+        assertEquals(CAPACITY, ring.available());
+    }
+
+    @Test
+    public void clearDropsThePendingSamples() throws Exception {
+        final PCMRingBuffer ring = new PCMRingBuffer(CAPACITY, true);
+        ring.write(new float[10], 0, 10);
+        ring.clear();
+        // the reader drops them before its next read, then waits for new ones
+        Future<Integer> reader = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return ring.awaitReadable(CAPACITY);
+            }
+        });
+        while (ring.available() > 0) Thread.sleep(1);
+        assertBlocked(reader);
+        ring.write(FloatBuffer.wrap(new float[] { 1, 2, 3 }), 3);
+        assertEquals(3, (int) reader.get(1, TimeUnit.SECONDS));
+        assertEquals(1f, ring.getFloatData()[ring.getReadIndex()], 0f);
+    }
+
+    @Test
+    public void clearKeepsWhatIsWrittenAfterIt() {
+        PCMRingBuffer ring = new PCMRingBuffer(CAPACITY);
+        ring.write(new short[] { 1, 2, 3 }, 0, 3);
+        ring.clear();
+        // the reader only gets to it after the writer went on
+        ring.write(new short[] { 4, 5 }, 0, 2);
+        assertEquals(2, ring.awaitReadable(CAPACITY));
+        assertEquals(4, ring.getData()[ring.getReadIndex()]);
+    }
+
+    @Test
+    public void marksAreTakenAtTheirSample() {
+        PCMRingBuffer ring = new PCMRingBuffer(CAPACITY);
+        ring.write(new short[10], 0, 10);
+        ring.mark("a");
+        ring.write(new short[10], 0, 10);
+        // reads stop short of the mark, which is taken before its sample
+        assertEquals(10, ring.awaitReadable(CAPACITY));
+        assertNull(ring.takeMark());
+        ring.commitRead(10);
+        assertEquals(10, ring.awaitReadable(CAPACITY));
+        assertEquals("a", ring.takeMark());
+        assertNull(ring.takeMark());
+        // a clear drops the marks it skips, not the one right after it
+        ring.mark("b");
+        ring.write(new short[10], 0, 10);
+        ring.clear();
+        ring.mark("c");
+        ring.write(new short[10], 0, 10);
+        assertEquals(10, ring.awaitReadable(CAPACITY));
+        assertEquals("c", ring.takeMark());
+    }
+
+    @Test
+    public void awaitEmptyReturnsOnceAllIsRead() throws Exception {
+        final PCMRingBuffer ring = new PCMRingBuffer(CAPACITY);
+        ring.write(new short[500], 0, 500);
+        Future<?> drain = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                ring.awaitEmpty();
+            }
+        });
+        assertBlocked(drain);
+        ring.commitRead(ring.awaitReadable(300));
+        assertBlocked(drain);
+        ring.commitRead(ring.awaitReadable(300));
+        drain.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void closeReleasesBothSides() throws Exception {
+        final PCMRingBuffer empty = new PCMRingBuffer(CAPACITY);
+        Future<Integer> reader = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return empty.awaitReadable(CAPACITY);
+            }
+        });
+        final PCMRingBuffer full = new PCMRingBuffer(CAPACITY);
+        Future<Integer> writer = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return full.write(new short[CAPACITY + 100], 0, CAPACITY + 100);
+            }
+        });
+        assertBlocked(reader);
+        assertBlocked(writer);
+        empty.close();
+        full.close();
+        assertEquals(0, (int) reader.get(1, TimeUnit.SECONDS));
+        // what did not fit is not written
+        assertEquals(CAPACITY, (int) writer.get(1, TimeUnit.SECONDS));
+        assertTrue(full.isClosed());
+        assertEquals(0, full.write(new short[1], 0, 1));
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("returned without waiting");
+        } catch (TimeoutException e) {
+            assertFalse(future.isDone());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * PlayerStatesTest.java - The player state machine and the pause of the decoder and output threads, on the host
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.audionowdigital.android.openplayer.PlayerStates.BUFFERING;
+import static com.audionowdigital.android.openplayer.PlayerStates.PLAYING;
+import static com.audionowdigital.android.openplayer.PlayerStates.READING_HEADER;
+import static com.audionowdigital.android.openplayer.PlayerStates.READY_TO_PLAY;
+import static com.audionowdigital.android.openplayer.PlayerStates.STOPPED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PlayerStatesTest {
+    private static final int[] STATES = { READY_TO_PLAY, PLAYING, STOPPED, READING_HEADER, BUFFERING };
+
+    /**
+     * The states each state may change to, written out instead of taken from the class
+     */
+    private static final int[][] ALLOWED = new int[5][];
+    static {
+        ALLOWED[STOPPED] = new int[] { STOPPED, READING_HEADER };
+        ALLOWED[READING_HEADER] = new int[] { STOPPED, READY_TO_PLAY };
+        ALLOWED[READY_TO_PLAY] = new int[] { STOPPED, PLAYING };
+        ALLOWED[PLAYING] = new int[] { STOPPED, READY_TO_PLAY, BUFFERING };
+        ALLOWED[BUFFERING] = new int[] { STOPPED, READY_TO_PLAY, PLAYING };
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void setOnlyFollowsTheTransitions() {
+        for (int from : STATES) {
+            for (int to : STATES) {
+                PlayerStates states = statesAt(from);
+                if (allowed(from, to)) {
+                    states.set(to);
+                    assertEquals(to, states.get());
+                    continue;
+                }
+                try {
+                    states.set(to);
+                    fail("set " + to + " from " + from);
+                } catch (IllegalStateException e) {
+                    assertEquals(from, states.get());
+                }
+                assertFalse(states.moveTo(to));
+            }
+        }
+    }
+
+    @Test
+    public void pauseBlocksUntilPlayed() throws Exception {
+        final PlayerStates states = statesAt(READY_TO_PLAY);
+        Future<?> waiter = awaitNotPaused(states, new CountDownLatch(1));
+        assertBlocked(waiter);
+        assertTrue(states.transition(READY_TO_PLAY, PLAYING));
+        waiter.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void noWakeupIsLost() throws Exception {
+        PlayerStates states = statesAt(READY_TO_PLAY);
+        // played right as the waiter checks the state and parks, any of them lost would hang
+        for (int i = 0; i < 2000; i++) {
+            CountDownLatch started = new CountDownLatch(1);
+            Future<?> waiter = awaitNotPaused(states, started);
+            started.await();
+            assertTrue(states.transition(READY_TO_PLAY, PLAYING));
+            waiter.get(1, TimeUnit.SECONDS);
+            states.set(READY_TO_PLAY);
+        }
+    }
+
+    @Test
+    public void interruptKeepsThePause() throws Exception {
+        final PlayerStates states = statesAt(READY_TO_PLAY);
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                thread.set(Thread.currentThread());
+                states.awaitNotPaused();
+                return Thread.interrupted();
+            }
+        });
+        assertBlocked(waiter);
+        thread.get().interrupt();
+        assertBlocked(waiter);
+        states.set(PLAYING);
+        // passed on once the pause is over
+        assertTrue(waiter.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void resumeWhileRefillingIsBuffering() {
+        PlayerStates states = statesAt(BUFFERING);
+        ImplDecodeFeed feed = new ImplDecodeFeed(states, new PlayerEvents(new PlayerEvents.ListenerAdapter(), DIRECT), Player.DecoderType.OPUS);
+        final boolean[] refilling = { true };
+        feed.data = new HttpDataSource.PathOnly("http://127.0.0.1/track.opus") {
+            @Override
+            public boolean isBuffering() {
+                return refilling[0];
+            }
+        };
+        // paused while buffering, the refill ends or not while paused
+        states.set(READY_TO_PLAY);
+        states.set(PLAYING);
+        feed.resumeBuffering();
+        assertEquals(BUFFERING, states.get());
+
+        states.set(READY_TO_PLAY);
+        refilling[0] = false;
+        states.set(PLAYING);
+        feed.resumeBuffering();
+        assertEquals(PLAYING, states.get());
+    }
+
+    /**
+     * @return a state machine brought to the given state along the transitions of a playback
+     */
+    private static PlayerStates statesAt(int state) {
+        PlayerStates states = new PlayerStates();
+        int[] path = { READING_HEADER, READY_TO_PLAY, PLAYING, BUFFERING };
+        for (int i = 0; states.get() != state; i++) states.set(path[i]);
+        return states;
+    }
+
+    private static boolean allowed(int from, int to) {
+        for (int state : ALLOWED[from]) if (state == to) return true;
+        return false;
+    }
+
+    /**
+     * @param started counted down right before the wait
+     */
+    private Future<?> awaitNotPaused(final PlayerStates states, final CountDownLatch started) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                states.awaitNotPaused();
+            }
+        });
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("returned without waiting");
+        } catch (TimeoutException e) {
+            assertFalse(future.isDone());
+        }
+    }
+}
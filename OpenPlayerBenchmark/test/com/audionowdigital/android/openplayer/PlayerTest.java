@@ -0,0 +1,190 @@
+/*
+ * PlayerTest.java - The player on the host build of the native libraries, playing to a stand-in AudioTrack
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import android.media.AudioTrack;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PlayerTest {
+    /**
+     * Made by the host build, in the directory given by the openplayer.media property
+     */
+    private static final String OPUS_STEREO = "opus-stereo.opus", OPUS_MONO = "opus-mono.opus";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Calls the listener right away on the player's threads, so it sees the player as it was at the event
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // "header", "ready", "update <ms> <frames written>", "finished" or "failed" for each event of all players
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private final List<Player> players = new ArrayList<Player>();
+
+    // the stand-in track of the last player ready
+    private volatile AudioTrack track;
+
+    @After
+    public void tearDown() {
+        for (Player player : players) player.release();
+    }
+
+    @Test
+    public void nextDuringPlaybackStartsTheQueuedTrack() throws Exception {
+        Player player = newPlayer();
+        player.setDataSource(media(OPUS_STEREO), 0);
+        player.enqueue(media(OPUS_MONO), 0);
+        awaitEvent("ready");
+        awaitEvent("update");
+        assertTrue(player.next());
+        // read from its header and played, whatever the stopped track did meanwhile
+        awaitEvent("header");
+        awaitEvent("ready");
+        assertTrue(awaitUpdate() < 1000);
+        assertTrue(player.isPlaying());
+        assertEquals(0, player.getQueueSize());
+    }
+
+    @Test
+    public void stopBeforeTheDecoderThreadStartsIsKept() throws Exception {
+        List<Player> stopped = new ArrayList<Player>();
+        // most of the decoder threads start after the stop
+        for (int i = 0; i < 20; i++) {
+            Player player = newPlayer();
+            player.setDataSource(media(OPUS_STEREO), 0);
+            player.stop();
+            stopped.add(player);
+        }
+        Thread.sleep(500);
+        // a thread that started first may have read the header, none goes on to play
+        for (Player player : stopped) assertTrue(player.isStopped());
+        assertFalse(events.contains("ready"));
+    }
+
+    @Test
+    public void positionCountsTheSamplesPlayedAfterASeek() throws Exception {
+        Player player = newPlayer();
+        player.setProgressGranularity(100);
+        player.setDataSource(media(OPUS_STEREO), 30);
+        awaitEvent("ready");
+        awaitEvent("update");
+        player.setPosition(50);
+        long[] seek = awaitUpdateFrom(14000);
+        assertTrue(seek[0] <= 15100);
+        long[] later = awaitUpdateFrom(seek[0] + 2000);
+        // adding up the time of each write would have lost a fraction of a millisecond each time
+        assertEquals((later[1] - seek[1]) * 1000.0 / 48000, later[0] - seek[0], 1.0);
+    }
+
+    @Test
+    public void seekWithinTheProgressStepIsReported() throws Exception {
+        Player player = newPlayer();
+        // the whole track is one step
+        player.setProgressGranularity(60000);
+        player.setDataSource(media(OPUS_STEREO), 30);
+        awaitEvent("ready");
+        assertTrue(awaitUpdate() < 1000);
+        player.setPosition(50);
+        long seek = awaitUpdate();
+        assertTrue(seek >= 14000 && seek <= 15100);
+    }
+
+    /**
+     * @return a player for Opus that plays as soon as it is ready
+     */
+    private Player newPlayer() {
+        final Player[] player = new Player[1];
+        player[0] = new Player(new PlayerEvents.ListenerAdapter() {
+            @Override
+            public void onReadingHeader() {
+                events.add("header");
+            }
+
+            @Override
+            public void onReadyToPlay(int audioSessionId) {
+                track = AudioTrack.getTrack(audioSessionId);
+                events.add("ready");
+                player[0].play();
+            }
+
+            @Override
+            public void onPlayUpdate(long miliSeconds) {
+                events.add("update " + miliSeconds + " " + track.getFramesWritten());
+            }
+
+            @Override
+            public void onPlayingFailed() {
+                events.add("failed");
+            }
+
+            @Override
+            public void onPlayingFinished() {
+                events.add("finished");
+            }
+        }, DIRECT, Player.DecoderType.OPUS);
+        players.add(player[0]);
+        return player[0];
+    }
+
+    private static String media(String name) {
+        return new File(System.getProperty("openplayer.media", "build/media"), name).getPath();
+    }
+
+    /**
+     * Skips the events before the first one starting with the given name
+     * @return the event
+     */
+    private String awaitEvent(String name) throws InterruptedException {
+        while (true) {
+            String event = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (event == null) fail("no " + name);
+            if (event.startsWith(name)) return event;
+        }
+    }
+
+    /**
+     * @return the position of the next progress update
+     */
+    private long awaitUpdate() throws InterruptedException {
+        return awaitUpdateFrom(0)[0];
+    }
+
+    /**
+     * Skips the progress updates before the given position
+     * @return the position of the update and the frames written to the track when it was sent
+     */
+    private long[] awaitUpdateFrom(long ms) throws InterruptedException {
+        while (true) {
+            String[] update = awaitEvent("update").split(" ");
+            long position = Long.parseLong(update[1]);
+            if (position >= ms) return new long[] { position, Long.parseLong(update[2]) };
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * StandInHttpServer.java - A local HTTP server standing in for the one a remote track is played from
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves byte arrays with an ETag, honouring "bytes=start-[end]" ranges unless told to ignore them,
+ * and keeps the Range header of every request it got ("none" without one) and the client ends it came from
+ */
+
+class StandInHttpServer {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+
+    // guarded by itself
+    private final List<String> requests = new ArrayList<String>();
+    private final Set<InetSocketAddress> connections = new HashSet<InetSocketAddress>();
+
+    private volatile boolean ignoreRange = false;
+
+    StandInHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the url the data is served at
+     */
+    String put(String name, byte[] data) {
+        files.put("/" + name, data);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name;
+    }
+
+    /**
+     * Answers every request with the whole file, like a server without Range support
+     */
+    void setIgnoreRange(boolean ignore) {
+        ignoreRange = ignore;
+    }
+
+    /**
+     * @return the Range headers of the requests since the last call
+     */
+    List<String> takeRequests() {
+        synchronized (requests) {
+            List<String> taken = new ArrayList<String>(requests);
+            requests.clear();
+            return taken;
+        }
+    }
+
+    /**
+     * @return the number of connections the requests came on, since the last call
+     */
+    int takeConnectionCount() {
+        synchronized (requests) {
+            int count = connections.size();
+            connections.clear();
+            return count;
+        }
+    }
+
+    void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        synchronized (requests) {
+            requests.add(range != null ? range : "none");
+            connections.add(exchange.getRemoteAddress());
+        }
+        byte[] data = files.get(exchange.getRequestURI().getPath());
+        if (data == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", "\"1\"");
+        int start = 0, end = data.length;
+        Matcher m = (range != null && !ignoreRange) ? RANGE.matcher(range) : null;
+        if (m != null && m.matches()) {
+            start = Integer.parseInt(m.group(1));
+            if (m.group(2).length() > 0) end = Math.min(end, Integer.parseInt(m.group(2)) + 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + data.length);
+            exchange.sendResponseHeaders(206, end - start);
+        } else {
+            exchange.sendResponseHeaders(200, data.length);
+        }
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(data, start, end - start);
+        } catch (IOException e) {
+            // the player closed the download early, after a seek or on reaching cached bytes
+        } finally {
+            exchange.close();
+        }
+    }
+}
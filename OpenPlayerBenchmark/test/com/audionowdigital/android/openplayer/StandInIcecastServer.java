@@ -0,0 +1,126 @@
+/*
+ * StandInIcecastServer.java - A local server standing in for an Icecast live stream
+ *
+ * (C) 2014 Radu Motisan, radu.motisan@gmail.com
+ *
+ * Part of the OpenPlayer implementation for Alpine Audio Now Digital LLC
+ */
+
+package com.audionowdigital.android.openplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sends every listener the same audio without a length, then ends the response the way a dropped
+ * connection does. Listeners asking for "Icy-MetaData: 1" get a metadata block after every
+ * metaInterval bytes, block k carrying the k-th title (the last one repeated after that).
+ * Keeps "icy" or "plain" for every request it got.
+ */
+
+class StandInIcecastServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final byte[] audio;
+    private final int metaInterval;
+    private final String[] titles;
+
+    // guarded by itself
+    private final List<String> requests = new ArrayList<String>();
+
+    private volatile int maxConnections = Integer.MAX_VALUE;
+
+    StandInIcecastServer(byte[] audio, int metaInterval, String... titles) throws IOException {
+        this.audio = audio;
+        this.metaInterval = metaInterval;
+        this.titles = titles;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/live.ogg";
+    }
+
+    /**
+     * Refuses every request after this many with a 503, like a full server
+     */
+    void setMaxConnections(int connections) {
+        maxConnections = connections;
+    }
+
+    /**
+     * @return "icy" or "plain" for each request since the last call
+     */
+    List<String> takeRequests() {
+        synchronized (requests) {
+            List<String> taken = new ArrayList<String>(requests);
+            requests.clear();
+            return taken;
+        }
+    }
+
+    void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        boolean icy = "1".equals(exchange.getRequestHeaders().getFirst("Icy-MetaData"));
+        int count;
+        synchronized (requests) {
+            requests.add(icy ? "icy" : "plain");
+            count = requests.size();
+        }
+        if (count > maxConnections) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("icy-name", "Stand-in");
+        if (icy) exchange.getResponseHeaders().set("icy-metaint", String.valueOf(metaInterval));
+        // no length, sent chunked
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            if (!icy) {
+                out.write(audio);
+                return;
+            }
+            for (int offset = 0, block = 0; offset < audio.length; offset += metaInterval, block++) {
+                int length = Math.min(metaInterval, audio.length - offset);
+                out.write(audio, offset, length);
+                if (length == metaInterval) out.write(metadata(titles[Math.min(block, titles.length - 1)]));
+            }
+        } catch (IOException e) {
+            // the player hung up, after asking for the length
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] metadata(String title) throws IOException {
+        byte[] text = ("StreamTitle='" + title + "';StreamUrl='';").getBytes("UTF-8");
+        int blocks = (text.length + 15) / 16;
+        byte[] block = new byte[1 + blocks * 16];
+        block[0] = (byte) blocks;
+        System.arraycopy(text, 0, block, 1, text.length);
+        return block;
+    }
+}